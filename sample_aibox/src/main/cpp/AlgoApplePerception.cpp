@@ -2,6 +2,7 @@
 // Created by chenpeng on 2019/5/8.
 //
 #include "AlgoApplePerception.h"
+#include "TraceRing.h"
 
 #include <chrono>
 #include <cmath>
@@ -24,7 +25,7 @@ using namespace ninebot_algo;
 using namespace cnn_ninebot;
 // using namespace segway_scooter;
 
-AlgoApplePerception::AlgoApplePerception(){
+AlgoApplePerception::AlgoApplePerception(const std::string &modelPath){
     _sidewalk_config.enable_multi_thread = false;
     _sidewalk_config.input_width = 512;
     _sidewalk_config.input_height = 512;
@@ -36,16 +37,163 @@ AlgoApplePerception::AlgoApplePerception(){
     _sidewalk_config.conf_thresh = 0.45;
     _sidewalk_config.class_thresh = 0.5;
     _sidewalk_config.nms_thresh = 0.3;
-    _sidewalk_config.frozen_net_path = "/sdcard/apple_model.tflite";
+    _sidewalk_config.frozen_net_path = modelPath;
     _sidewalk_config.num_classes = 3;
     _sidewalk_config.softmax_CE = true;
     _sidewalk_config.robot_base_type=3000;
 
     _uq_pedestrian_perception = std::make_shared<ninebot_algo::cnn_ninebot::ApplePerception>(_sidewalk_config);
+    front_mask = getFrontMask();
+
+    for (int i = 0; i < 9; i++)
+        _birdview_h[i] = _fisheye_to_birdview_transform.at<float>(i / 3, i % 3);
+    _intrinsics = {_cam_paras[0], _cam_paras[1], _cam_paras[2], _cam_paras[3], _cam_paras[4]};
+    _intrinsics_w = _ground_config.reference_w;
+    _intrinsics_h = _ground_config.reference_h;
+    // distances are measured from the ground point at the bottom centre of the image
+    std::vector<float> origin_x(1, _cam_paras[2]);
+    std::vector<float> origin_y(1, (float)_ground_config.reference_h);
+    undistort_fisheye_points(origin_x, origin_y, _cam_paras);
+    transform_pts_to_birdview(origin_x, origin_y);
+    _ground_origin_x = origin_x[0];
+    _ground_origin_y = origin_y[0];
+
+    // per-frame vectors keep their capacity between frames, reserve it up front
+    _prev_boxes.reserve(_scratch.max_boxes);
+    _scratch.roi_boxes.reserve(_scratch.max_boxes);
+    _scratch.rois.reserve(_scratch.max_boxes);
+    _scratch.roi_sizes.reserve(_scratch.max_boxes);
+    _foot_x.reserve(_scratch.max_boxes);
+    _foot_y.reserve(_scratch.max_boxes);
+    _distance.reserve(_scratch.max_boxes);
+}
+
+float AlgoApplePerception::warmup(int iterations){
+    return _uq_pedestrian_perception->warmup(iterations);
+}
+
+bool AlgoApplePerception::isReady() const{
+    return _uq_pedestrian_perception->is_ready();
+}
+
+void AlgoApplePerception::setNumThreads(int numThreads){
+    _uq_pedestrian_perception->set_num_threads(numThreads);
+}
+
+void AlgoApplePerception::setLatencyBudget(float budgetMs){
+    _uq_pedestrian_perception->set_latency_budget(budgetMs);
+}
+
+void AlgoApplePerception::setThresholds(float confThresh, float nmsThresh){
+    _uq_pedestrian_perception->set_thresholds(confThresh, nmsThresh);
+}
+
+int AlgoApplePerception::inputSize() const{
+    return _uq_pedestrian_perception->input_size();
+}
+
+size_t AlgoApplePerception::modelBytes() const{
+    return _uq_pedestrian_perception->model_bytes();
+}
+
+size_t AlgoApplePerception::tensorBytes() const{
+    return _uq_pedestrian_perception->tensor_bytes();
+}
+
+void AlgoApplePerception::setRoiMode(bool enable, int refreshInterval){
+    _roi_config.enable = enable;
+    _roi_config.refresh_interval = std::max(1, refreshInterval);
+    _prev_boxes.clear();
+}
+
+void AlgoApplePerception::setIntrinsics(int width, int height, float fx, float fy, float cx, float cy, float distortion){
+    if (width <= 0 || height <= 0 || fx <= 0 || fy <= 0)
+        return;
+    _intrinsics = {fx, fy, cx, cy, distortion};
+    _intrinsics_w = width;
+    _intrinsics_h = height;
+    _undistort_luts.clear();
+}
+
+bool AlgoApplePerception::setPresenceGate(const std::string &modelPath, float presenceThresh, int auditInterval){
+    if (modelPath.empty()){
+        _presence.reset();
+        return true;
+    }
+    if (_presence == nullptr || _presence->path() != modelPath){
+        // one cpu thread, the classifier is a small fraction of the detector
+        std::unique_ptr<PresenceClassifier> presence(new PresenceClassifier(modelPath, 1));
+        if (!presence->is_ready())
+            return false;
+        presence->warmup(1);
+        _presence = std::move(presence);
+    }
+    CascadeGate::Options options = _cascade.options();
+    options.presence_thresh = presenceThresh;
+    options.audit_interval = std::max(0, auditInterval);
+    _cascade.configure(options);
+    return true;
+}
+
+CascadeGate::Stats AlgoApplePerception::cascadeStats() const{
+    return _cascade.stats();
+}
+
+void AlgoApplePerception::undistort_fisheye_points(std::vector<float>& pts_x, std::vector<float>& pts_y, const float* fisheyeParameter){
+    FovIntrinsics intrinsics = {fisheyeParameter[0], fisheyeParameter[1], fisheyeParameter[2], fisheyeParameter[3],
+                                fisheyeParameter[4]};
+    int n = std::min(pts_x.size(), pts_y.size());
+    undistort_fov_normalized(intrinsics, pts_x.data(), pts_y.data(), n);
+    project_pinhole(intrinsics, pts_x.data(), pts_y.data(), n);
+}
+
+void AlgoApplePerception::transform_pts_to_birdview(std::vector<float>& pts_x, std::vector<float>& pts_y){
+    apply_homography(_birdview_h, pts_x.data(), pts_y.data(), std::min(pts_x.size(), pts_y.size()));
+}
+
+void AlgoApplePerception::transform_pts_to_distance(const std::vector<float>& pts_x_bird, const std::vector<float>& pts_y_bird,
+        std::vector<float>& distance, const float valid_dis){
+    int n = std::min(pts_x_bird.size(), pts_y_bird.size());
+    distance.resize(n);
+    ground_distance(pts_x_bird.data(), pts_y_bird.data(), distance.data(), n, _ground_origin_x, _ground_origin_y,
+                    _ground_config.units_to_m, valid_dis);
+}
+
+// built once per frame resolution from the live intrinsics, scaled to that resolution
+const UndistortLut &AlgoApplePerception::getUndistortLut(int width, int height){
+    long long key = ((long long)width << 32) | height;
+    auto it = _undistort_luts.find(key);
+    if (it == _undistort_luts.end()){
+        std::shared_ptr<UndistortLut> lut = std::make_shared<UndistortLut>();
+        lut->build(width, height, _intrinsics.scaled((float)width / _intrinsics_w, (float)height / _intrinsics_h),
+                   _ground_config.lut_step);
+        it = _undistort_luts.insert(std::make_pair(key, lut)).first;
+    }
+    return *it->second;
+}
+
+// foot point (bottom centre) of every box -> undistorted -> bird's-eye -> metres, all boxes at once
+void AlgoApplePerception::computeDistances(std::vector<bbox> &boxes, int width, int height){
+    int n = boxes.size();
+    if (n == 0)
+        return;
+    _foot_x.resize(n);
+    _foot_y.resize(n);
+    for (int i = 0; i < n; i++){
+        _foot_x[i] = (boxes[i].x1 + boxes[i].x2) / 2;
+        _foot_y[i] = boxes[i].y2;
+    }
+    getUndistortLut(width, height).lookup(_foot_x.data(), _foot_y.data(), n);
+    FovIntrinsics reference = {_cam_paras[0], _cam_paras[1], _cam_paras[2], _cam_paras[3], _cam_paras[4]};
+    project_pinhole(reference, _foot_x.data(), _foot_y.data(), n);
+    transform_pts_to_birdview(_foot_x, _foot_y);
+    transform_pts_to_distance(_foot_x, _foot_y, _distance, _ground_config.max_distance);
+    for (int i = 0; i < n; i++)
+        boxes[i].distance = _distance[i];
 }
 
 std::vector<int> AlgoApplePerception::getFrontMask(){
-    segmentor_config sidewalk_config = _uq_pedestrian_perception->get_segmentor_config();
+    const segmentor_config &sidewalk_config = _uq_pedestrian_perception->get_segmentor_config();
     int basetype = sidewalk_config.robot_base_type;
     bool is_large_fov_ = true;
     std::vector<int> front_mask;
@@ -85,67 +233,209 @@ void AlgoApplePerception::setCropParameter(crop_config &_crop_config, int x, int
     _crop_config.crop_h = h;
 }
 
-vector<bbox> AlgoApplePerception::PerceptionProcess(const cv::Mat &frame){
+// map boxes normalized to the current crop back into frame pixels
+void AlgoApplePerception::mapToFrame(std::vector<bbox> &boxes){
+    for (int bid = 0; bid < boxes.size(); bid++){
+        int ptx1_resized = _crop_config.crop_x + (int)(boxes[bid].x1 * _crop_config.crop_w);
+        int ptx2_resized = _crop_config.crop_x + (int)(boxes[bid].x2 * _crop_config.crop_w);
+        int pty1_resized = _crop_config.crop_y + (int)(boxes[bid].y1 * _crop_config.crop_h);
+        int pty2_resized = _crop_config.crop_y + (int)(boxes[bid].y2 * _crop_config.crop_h);
 
-    auto coreAlgoStart = std::chrono::high_resolution_clock::now();
+        interset(ptx1_resized, pty1_resized, ptx2_resized, pty2_resized,
+                _crop_config.crop_w, _crop_config.crop_h);
 
-    // Init
-    int original_width = frame.cols;
-    int original_height = frame.rows;
-    front_mask = getFrontMask();
-    int handLoc = front_mask[3] % _sidewalk_config.input_width *
-            original_width / _sidewalk_config.input_width;
-    //ALOGTAGD(TAG,"VisionLog pedestrainPerception Time");
+        boxes[bid].x1 = ptx1_resized;
+        boxes[bid].x2 = ptx2_resized;
+        boxes[bid].y1 = pty1_resized;
+        boxes[bid].y2 = pty2_resized;
+    }
+}
 
-    std::vector<bbox> pedestrian_res;
-    if((1920 == frame.cols) && (1080 == frame.rows)){
-        setCropParameter(_crop_config, 240, 0, 1440, 1080);
-        cv::Mat cropped_frame;
-        cv::Rect crop_rect = cv::Rect(_crop_config.crop_x, _crop_config.crop_y, _crop_config.crop_w, _crop_config.crop_h);
-        cropped_frame = frame(crop_rect);
-        (*_uq_pedestrian_perception)(cropped_frame, pedestrian_res, handLoc);
+// padded regions around the previous boxes, merged while they overlap, into rois.
+// An empty result means the regions are not worth it and a full frame should run.
+void AlgoApplePerception::buildRois(std::vector<cv::Rect> &rois){
+    for (const bbox &box : _prev_boxes){
+        float w = box.x2 - box.x1;
+        float h = box.y2 - box.y1;
+        float pad = std::max(w, h) * _roi_config.padding;
+        int roi_w = std::max((int)(w + 2 * pad), _roi_config.min_size);
+        int roi_h = std::max((int)(h + 2 * pad), _roi_config.min_size);
+        int cx = (int)((box.x1 + box.x2) / 2);
+        int cy = (int)((box.y1 + box.y2) / 2);
+        cv::Rect roi(cx - roi_w / 2, cy - roi_h / 2, roi_w, roi_h);
+        roi &= _current_plan->roi_bounds;
+        if (roi.area() > 0)
+            rois.push_back(roi);
     }
-    else if((1280 == frame.cols) && (720 == frame.rows)){
-        setCropParameter(_crop_config, 160, 0, 1120, 720);
-        (*_uq_pedestrian_perception)(frame, pedestrian_res, handLoc);
+
+    bool merged = true;
+    while (merged){
+        merged = false;
+        for (int i = 0; i < rois.size() && !merged; i++){
+            for (int j = rois.size() - 1; j > i; j--){
+                if ((rois[i] & rois[j]).area() > 0){
+                    rois[i] |= rois[j];
+                    rois.erase(rois.begin() + j);
+                    merged = true;
+                }
+            }
+        }
     }
-    else if((960 == frame.cols) && (540 == frame.rows)){
-        setCropParameter(_crop_config, 0, 0, 640, 480);
-        (*_uq_pedestrian_perception)(frame, pedestrian_res, handLoc);
+
+    if (rois.size() > _roi_config.max_rois){
+        cv::Rect unionRoi = rois[0];
+        for (int i = 1; i < rois.size(); i++)
+            unionRoi |= rois[i];
+        rois.assign(1, unionRoi);
     }
-    else if((640 == frame.cols) && (480 == frame.rows)){
-        setCropParameter(_crop_config, 0, 0, 640, 480);
-        (*_uq_pedestrian_perception)(frame, pedestrian_res, handLoc);
+
+    int area = 0;
+    for (const cv::Rect &roi : rois)
+        area += roi.area();
+    if (rois.empty() || area > _roi_config.max_coverage * _current_plan->roi_bounds.area())
+        rois.clear();
+}
+
+std::shared_ptr<const AlgoApplePerception::pipeline_plan> AlgoApplePerception::buildPlan(int width, int height, int type){
+    std::shared_ptr<pipeline_plan> plan = std::make_shared<pipeline_plan>();
+    plan->frame_w = width;
+    plan->frame_h = height;
+    plan->frame_type = type;
+    plan->crop_input = false;
+    plan->hand_loc = front_mask[3] % _sidewalk_config.input_width *
+            width / _sidewalk_config.input_width;
+
+    if((1920 == width) && (1080 == height)){
+        setCropParameter(plan->output, 240, 0, 1440, 1080);
+        plan->crop_input = true;
+    }
+    else if((1280 == width) && (720 == height)){
+        setCropParameter(plan->output, 160, 0, 1120, 720);
+    }
+    else if((960 == width) && (540 == height)){
+        setCropParameter(plan->output, 0, 0, 640, 480);
+    }
+    else if((640 == width) && (480 == height)){
+        setCropParameter(plan->output, 0, 0, 640, 480);
     }
     else{
-        setCropParameter(_crop_config, 0, 0, 640, 480);
-        (*_uq_pedestrian_perception)(frame, pedestrian_res, handLoc);
+        // any other size (e.g. an image decoded at a reduced scale) is fed and mapped back whole
+        setCropParameter(plan->output, 0, 0, width, height);
     }
+    plan->crop_rect = cv::Rect(plan->output.crop_x, plan->output.crop_y, plan->output.crop_w, plan->output.crop_h);
+    plan->roi_bounds = plan->crop_rect & cv::Rect(0, 0, width, height);
+    return plan;
+}
 
-    // Pedestrian PostProcess
-    std::vector<cv::Point> pedestrian_coord, other_coord;
-    std::vector<cv::Rect> pedestrian_bboxes, other_bboxes;
-    std::vector<int> box_offset;
+const AlgoApplePerception::pipeline_plan &AlgoApplePerception::getPlan(const cv::Mat &frame){
+    const pipeline_plan *current = _current_plan.get();
+    if (current != nullptr && current->frame_w == frame.cols && current->frame_h == frame.rows
+            && current->frame_type == frame.type())
+        return *current;
+
+    // resolution changed, switch to the cached plan (or build it) in a single pointer swap
+    long long key = ((long long)frame.cols << 32) | ((long long)frame.rows << 8) | frame.type();
+    auto it = _plans.find(key);
+    if (it == _plans.end())
+        it = _plans.insert(std::make_pair(key, buildPlan(frame.cols, frame.rows, frame.type()))).first;
+    _current_plan = it->second;
+    _prev_boxes.clear();
+    return *_current_plan;
+}
+
+vector<bbox> AlgoApplePerception::PerceptionProcess(const cv::Mat &frame){
+    std::vector<bbox> pedestrian_res;
+    PerceptionProcess(frame, pedestrian_res);
+    return pedestrian_res;
+}
 
-    cv::Mat mask;
-    cv::Mat seg_choose;
+void AlgoApplePerception::PerceptionProcess(const cv::Mat &frame, std::vector<bbox> &pedestrian_res){
 
-    for (int bid = 0; bid < pedestrian_res.size(); bid++){
-        int ptx1_resized = _crop_config.crop_x + (int)(pedestrian_res[bid].x1 * _crop_config.crop_w);
-        int ptx2_resized = _crop_config.crop_x + (int)(pedestrian_res[bid].x2 * _crop_config.crop_w);
-        int pty1_resized = _crop_config.crop_y + (int)(pedestrian_res[bid].y1 * _crop_config.crop_h);
-        int pty2_resized = _crop_config.crop_y + (int)(pedestrian_res[bid].y2 * _crop_config.crop_h);
+    auto coreAlgoStart = std::chrono::high_resolution_clock::now();
 
-        interset(ptx1_resized, pty1_resized, ptx2_resized, pty2_resized,
-                _crop_config.crop_w, _crop_config.crop_h);
+    const pipeline_plan &plan = getPlan(frame);
+    //ALOGTAGD(TAG,"VisionLog pedestrainPerception Time");
+
+    pedestrian_res.clear();
+    frameCnt++;
 
-        pedestrian_res[bid].x1 = ptx1_resized;
-        pedestrian_res[bid].x2 = ptx2_resized;
-        pedestrian_res[bid].y1 = pty1_resized;
-        pedestrian_res[bid].y2 = pty2_resized;
+    if (_presence != nullptr){
+        if (_cascade.wants_gate()){
+            float score;
+            {
+                TRACE_SCOPE("presence");
+                score = _presence->score(plan.crop_input ? frame(plan.crop_rect) : frame);
+            }
+            std::chrono::duration<double, std::milli> gateTime = std::chrono::high_resolution_clock::now() - coreAlgoStart;
+            TRACE_COUNTER("presence_score_pct", (int)(score * 100));
+            // a failed classifier lets the detector decide
+            if (score < 0){
+                _cascade.bypass();
+            } else if (!_cascade.admit(score, (float)gateTime.count())){
+                _prev_boxes.clear();
+                return;
+            }
+        } else{
+            _cascade.bypass();
+        }
     }
-    return pedestrian_res;
 
+    auto detectorStart = std::chrono::high_resolution_clock::now();
+    runDetector(frame, plan, pedestrian_res);
+    computeDistances(pedestrian_res, frame.cols, frame.rows);
+    _prev_boxes = pedestrian_res;
+    if (_presence != nullptr){
+        std::chrono::duration<double, std::milli> detectorTime = std::chrono::high_resolution_clock::now() - detectorStart;
+        _cascade.detected(pedestrian_res.size(), (float)detectorTime.count());
+    }
+}
+
+// the detector on the regions around the previous boxes, or on the whole crop, boxes in frame pixels
+void AlgoApplePerception::runDetector(const cv::Mat &frame, const pipeline_plan &plan, std::vector<bbox> &pedestrian_res){
+    std::vector<cv::Rect> &rois = _scratch.rois;
+    rois.clear();
+    if (_roi_config.enable && !_prev_boxes.empty() && frameCnt % _roi_config.refresh_interval != 0)
+        buildRois(rois);
+
+    // each region runs at the smallest input that keeps the full frame's sampling density, and
+    // all regions together may not cost more than one full frame, otherwise the full frame runs
+    std::vector<int> &roi_sizes = _scratch.roi_sizes;
+    roi_sizes.clear();
+    if (!rois.empty()){
+        int full_size = _uq_pedestrian_perception->input_size();
+        int full_side = std::max(plan.roi_bounds.width, plan.roi_bounds.height);
+        long long cost = 0;
+        for (const cv::Rect &roi : rois){
+            int size = _uq_pedestrian_perception->region_input_size(std::max(roi.width, roi.height), full_side);
+            roi_sizes.push_back(size);
+            cost += (long long)size * size;
+        }
+        if (cost > (long long)full_size * full_size)
+            rois.clear();
+    }
+
+    if (!rois.empty()){
+        std::vector<bbox> &roi_res = _scratch.roi_boxes;
+        for (size_t i = 0; i < rois.size(); i++){
+            const cv::Rect &roi = rois[i];
+            roi_res.clear();
+            setCropParameter(_crop_config, roi.x, roi.y, roi.width, roi.height);
+            _uq_pedestrian_perception->detect_region(frame(roi), roi_res, roi_sizes[i]);
+            mapToFrame(roi_res);
+            pedestrian_res.insert(pedestrian_res.end(), roi_res.begin(), roi_res.end());
+        }
+        TRACE_COUNTER("roi_count", rois.size());
+        return;
+    }
+
+    _crop_config = plan.output;
+    if (plan.crop_input)
+        (*_uq_pedestrian_perception)(frame(plan.crop_rect), pedestrian_res, plan.hand_loc);
+    else
+        (*_uq_pedestrian_perception)(frame, pedestrian_res, plan.hand_loc);
+
+    // Pedestrian PostProcess
+    mapToFrame(pedestrian_res);
 }
 
 
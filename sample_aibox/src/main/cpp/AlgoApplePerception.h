@@ -3,15 +3,41 @@
 
 // #include "AlgoBase.h"
 #include "./include/ApplePerception.h"
+#include "CascadeGate.h"
+#include "FisheyeGeometry.h"
+#include "PresenceClassifier.h"
 #include <map>
 
 namespace ninebot_algo {
     namespace cnn_ninebot {
         class AlgoApplePerception{
         public:
-            AlgoApplePerception();
+            explicit AlgoApplePerception(const std::string &modelPath = "/sdcard/apple_model.tflite");
 
             std::vector<bbox> PerceptionProcess(const cv::Mat &frame);
+            // same into a caller owned vector, a frame allocates nothing once it has the capacity
+            void PerceptionProcess(const cv::Mat &frame, std::vector<bbox> &result);
+
+            float warmup(int iterations);   // return the warmup cost in ms, -1 if the model is not loaded
+            bool isReady() const;
+            void setNumThreads(int numThreads);
+            // detect only around the previous frame's boxes, with a full frame every refreshInterval frames
+            void setRoiMode(bool enable, int refreshInterval);
+            // step the network input down while inference is over budgetMs, <= 0 keeps the full size
+            void setLatencyBudget(float budgetMs);
+            int inputSize() const;  // network input width used for the next frame
+            // negative values keep the model's default
+            void setThresholds(float confThresh, float nmsThresh);
+            size_t modelBytes() const;  // mapped weights, shared by every engine of the same file
+            size_t tensorBytes() const; // tensors of all interpreters of this engine
+            // live intrinsics of the camera (FOV distortion model) at width x height, used for the
+            // distance of every box; until they are set the calibration in _cam_paras is used
+            void setIntrinsics(int width, int height, float fx, float fy, float cx, float cy, float distortion);
+            // cascade: on frames without recent detections a small presence model scores the frame
+            // first and the detector only runs from presenceThresh, auditing every auditInterval-th
+            // rejected frame. An empty path turns it off, false if the model can not be loaded
+            bool setPresenceGate(const std::string &modelPath, float presenceThresh, int auditInterval);
+            CascadeGate::Stats cascadeStats() const;
 
             bool step();    // run algorithm once
             // RawData *_main_rawdata;
@@ -35,6 +61,65 @@ namespace ninebot_algo {
                 int crop_h = 1080;
             } _crop_config;
 
+            // region-of-interest inference around the previous detections
+            struct roi_config {
+                bool enable = false;
+                int refresh_interval = 10;  // run a full frame every N frames
+                float padding = 0.5;        // grow each box by this fraction of its larger side
+                int min_size = 256;         // smallest roi side in frame pixels
+                int max_rois = 2;           // more regions than this collapse into their union
+                float max_coverage = 0.6;   // rois larger than this part of the full crop fall back to a full frame
+            } _roi_config;
+
+            std::vector<bbox> _prev_boxes;
+
+            // per-frame scratch, reserved at construction and reused
+            struct frame_scratch {
+                int max_boxes = 256;        // capacity reserved for the boxes of one frame
+                std::vector<cv::Rect> rois;
+                std::vector<bbox> roi_boxes;
+                std::vector<int> roi_sizes;     // network input width of each roi
+            } _scratch;
+
+            // everything the per-frame path needs for one (resolution, pixel format, model input),
+            // computed once and never modified afterwards
+            struct pipeline_plan {
+                int frame_w;
+                int frame_h;
+                int frame_type;
+                bool crop_input;            // feed frame(crop_rect) to the network instead of the whole frame
+                cv::Rect crop_rect;         // region the network sees
+                crop_config output;         // normalized box -> frame pixel transform
+                cv::Rect roi_bounds;        // crop_rect clipped to the frame
+                int hand_loc;
+            };
+            std::map<long long, std::shared_ptr<const pipeline_plan>> _plans;
+            std::shared_ptr<const pipeline_plan> _current_plan;
+
+            // box foot points -> ground distance. The bird's-eye homography was calibrated on
+            // undistorted pixels of the _cam_paras camera at reference_w x reference_h, so live
+            // frames are undistorted to normalized coordinates and reprojected with _cam_paras.
+            struct ground_config {
+                int reference_w = 1440;
+                int reference_h = 1080;
+                float units_to_m = 0.01;    // bird's-eye units are centimetres
+                float max_distance = 10;    // metres, further boxes get -1
+                int lut_step = 4;           // undistortion table resolution in frame pixels
+            } _ground_config;
+            FovIntrinsics _intrinsics;      // live intrinsics at _intrinsics_w x _intrinsics_h
+            int _intrinsics_w = 0;
+            int _intrinsics_h = 0;
+            std::map<long long, std::shared_ptr<const UndistortLut>> _undistort_luts;
+            float _birdview_h[9];
+            float _ground_origin_x;         // bird's-eye position of the bottom centre of the image
+            float _ground_origin_y;
+            std::vector<float> _foot_x;     // per-frame scratch, reused
+            std::vector<float> _foot_y;
+            std::vector<float> _distance;
+
+            // first stage of the cascade, null while it is off
+            std::unique_ptr<PresenceClassifier> _presence;
+            CascadeGate _cascade;
 
 
             bool _canDetection = false;
@@ -84,16 +169,25 @@ namespace ninebot_algo {
             //float _cam_paras[5] = {270.444126, 266.361114, 475.813021, 269.730255, 0.991961};
             float _cam_paras[5] = {568.714800,566.166463,712.200828,537.018834,0.993844};
 
-            void undistort_fisheye_points(std::vector<float>& pts_x, std::vector<float>& pts_y, float* fisheyeParameter);
+            // distorted pixels -> undistorted pixels of the same camera, fisheyeParameter is {fx, fy, cx, cy, w}
+            void undistort_fisheye_points(std::vector<float>& pts_x, std::vector<float>& pts_y, const float* fisheyeParameter);
+            // undistorted reference pixels -> bird's-eye plane, in place
             void transform_pts_to_birdview(std::vector<float>& pts_x, std::vector<float>& pts_y);
-            void transform_pts_to_distance(std::vector<float>& pts_x_bird, std::vector<float>& pts_y_bird,
-                    std::vector<float>& pts_x, std::vector<float>& pts_y,
-                    std::vector<float>& distance, std::vector<cv::Rect>& bboxes, const int valid_dis);
+            // metres from the robot on the ground, -1 beyond valid_dis metres or above the horizon
+            void transform_pts_to_distance(const std::vector<float>& pts_x_bird, const std::vector<float>& pts_y_bird,
+                    std::vector<float>& distance, const float valid_dis);
+            const UndistortLut &getUndistortLut(int width, int height);
+            void computeDistances(std::vector<bbox> &boxes, int width, int height);
             void roi_compare(const cv::Mat area0, const cv::Mat area1, bool &sidewalk_flag, bool &valid, const float valid_thresh);
             std::vector<int> getFrontMask();
+            std::shared_ptr<const pipeline_plan> buildPlan(int width, int height, int type);
+            const pipeline_plan &getPlan(const cv::Mat &frame);
             void interset(int &x1, int &y1, int &x2, int &y2, int w_input, int h_input);
             float frame_coverage(cv::Mat seg_roi, int x1, int y1, int x2, int y2);
             void setCropParameter(crop_config &_crop_config, int x, int y, int w, int h);
+            void mapToFrame(std::vector<bbox> &boxes);
+            void buildRois(std::vector<cv::Rect> &rois);
+            void runDetector(const cv::Mat &frame, const pipeline_plan &plan, std::vector<bbox> &boxes);
         };
     }
 }
@@ -1,10 +1,12 @@
 #include <android/log.h>
 
 #include "./include/ApplePerception.h"
+#include "TraceRing.h"
 
 //notice the order of these above two headers, it will influence the "_DOUBLE_SPHERES_DISTORTION_"
 
 #include <algorithm>
+#include <map>
 #include <opencv2/imgproc.hpp>
 #include <opencv2/highgui.hpp>
 
@@ -35,28 +37,57 @@ using namespace ninebot_algo;
 #define SP_LOG(...) __android_log_print(ANDROID_LOG_DEBUG, SP_LOG_TAG, __VA_ARGS__)
 
 namespace ninebot_algo{ namespace cnn_ninebot {
+    // engines of different camera streams share one mapped copy of each model,
+    // the model is unmapped when the last engine using it is destroyed
+    static std::shared_ptr<tflite::FlatBufferModel> load_shared_model(const std::string &path){
+        static std::mutex cache_mutex;
+        static std::map<std::string, std::weak_ptr<tflite::FlatBufferModel>> cache;
+        std::lock_guard<std::mutex> guard(cache_mutex);
+        std::shared_ptr<tflite::FlatBufferModel> model = cache[path].lock();
+        if(!model){
+            model = std::shared_ptr<tflite::FlatBufferModel>(tflite::FlatBufferModel::BuildFromFile(path.c_str()));
+            if(model)
+                cache[path] = model;
+        }
+        return model;
+    }
+
 	ApplePerception::ApplePerception(const segmentor_config &cfg)
 	{
 		cfg_ = cfg;
-		model_ = tflite::FlatBufferModel::BuildFromFile(cfg_.frozen_net_path.c_str());
-		tflite::ops::builtin::BuiltinOpResolver resolver;
-		tflite::InterpreterBuilder builder(*model_.get(), resolver);
-		builder(&interpreter_);
-        if(cfg_.enable_multi_thread)
-            interpreter_->SetNumThreads(2);
-		interpreter_->AllocateTensors();
-
-        if(cfg_.enable_gpu_inference){
-            const TfLiteGpuDelegateOptionsV2 options = {
-                .is_precision_loss_allowed = 1,
-                .inference_preference = TFLITE_GPU_INFERENCE_PREFERENCE_FAST_SINGLE_ANSWER,
-            };
-            delegate_ = TfLiteGpuDelegateV2Create(&options);
-
-            if (interpreter_->ModifyGraphWithDelegate(delegate_) != kTfLiteOk) {
-              return;
-            }
-        }
+		cam_paras_ = nullptr;
+		input_size_ = cfg_.input_width;
+		input_height_ = cfg_.input_height;
+		// BuildFromFile maps the flatbuffer read-only (MMAPAllocation) instead of
+		// copying the weights onto the heap
+		model_ = load_shared_model(cfg_.frozen_net_path);
+		if(!model_){
+			SP_LOG("failed to load model %s", cfg_.frozen_net_path.c_str());
+			return;
+		}
+		// sizes the output grid can not follow are dropped, the native size is always allowed
+		int stride = cfg_.input_w / cfg_.grid_w;
+		std::vector<int> sizes(1, cfg_.input_width);
+		for(int size : cfg_.input_sizes){
+			if(size > 0 && size <= cfg_.input_width && size % stride == 0)
+				sizes.push_back(size);
+			else
+				SP_LOG("input size %d ignored, it must be a multiple of %d up to %d", size, stride, cfg_.input_width);
+		}
+		InputSizeController::Options qos;
+		qos.budget_ms = cfg_.latency_budget_ms;
+		size_controller_.configure(sizes, qos);
+		if(!select_input_size(cfg_.input_width))
+			return;
+		// the candidate list can hold every anchor of the largest input, so parsing never grows it
+		YoloParams largest;
+		largest.grid_w = cfg_.input_width / stride;
+		largest.grid_h = cfg_.input_height / (cfg_.input_h / cfg_.grid_h);
+		largest.num_object = cfg_.num_object;
+		size_t max_candidates = yolo_max_candidates(largest, MAX_YOLO_OUTPUTS);
+		candidates_.reserve(max_candidates);
+		suppressed_.reserve(max_candidates);
+        ready_ = true;
 
 #if defined _FOV_DISTORTION_
         cam_paras_ = new float[5];
@@ -77,11 +108,113 @@ namespace ninebot_algo{ namespace cnn_ninebot {
 	}
 
     ApplePerception::~ApplePerception(){
-        delete cam_paras_;
+        delete[] cam_paras_;
+        for(auto &sized : interpreters_){
+            // the interpreter still references the delegate, release it first
+            sized->interpreter.reset();
+            if(sized->delegate != nullptr){
+                //Clean up.
+                TfLiteGpuDelegateV2Delete(sized->delegate);
+            }
+        }
+    }
+
+    // the input tensor is resized before the delegate sees the graph, so every size gets
+    // kernels compiled for its own shapes
+    ApplePerception::sized_interpreter *ApplePerception::get_interpreter(int width){
+        for(auto &sized : interpreters_){
+            if(sized->width == width)
+                return sized.get();
+        }
+        auto start = std::chrono::high_resolution_clock::now();
+        std::unique_ptr<sized_interpreter> sized(new sized_interpreter());
+        sized->width = width;
+        sized->height = width * cfg_.input_height / cfg_.input_width;
+        tflite::ops::builtin::BuiltinOpResolver resolver;
+        tflite::InterpreterBuilder builder(*model_.get(), resolver);
+        builder(&sized->interpreter);
+        if(!sized->interpreter){
+            SP_LOG("failed to build interpreter for %s", cfg_.frozen_net_path.c_str());
+            return nullptr;
+        }
+        tflite::Interpreter *interpreter = sized->interpreter.get();
+        if(width != cfg_.input_width &&
+           interpreter->ResizeInputTensor(interpreter->inputs()[0], {1, sized->height, width, cfg_.input_depth}) != kTfLiteOk){
+            SP_LOG("model can not be resized to %dx%d", width, sized->height);
+            return nullptr;
+        }
+        if(num_threads_ != 0)
+            interpreter->SetNumThreads(num_threads_);
+        else if(cfg_.enable_multi_thread)
+            interpreter->SetNumThreads(2);
+        if(interpreter->AllocateTensors() != kTfLiteOk){
+            SP_LOG("failed to allocate tensors at %dx%d", width, sized->height);
+            return nullptr;
+        }
+
         if(cfg_.enable_gpu_inference){
-            //Clean up.
-            TfLiteGpuDelegateV2Delete(delegate_);
+            // the delegate is reused for every frame, so favour steady-state speed
+            // over the one-shot bootstrap time
+            const TfLiteGpuDelegateOptionsV2 options = {
+                .is_precision_loss_allowed = 1,
+                .inference_preference = TFLITE_GPU_INFERENCE_PREFERENCE_SUSTAINED_SPEED,
+            };
+            sized->delegate = TfLiteGpuDelegateV2Create(&options);
+
+            if (interpreter->ModifyGraphWithDelegate(sized->delegate) != kTfLiteOk) {
+              SP_LOG("gpu delegate rejected the graph, running on cpu");
+            }
         }
+        sized->resized.create(sized->height, width, CV_8UC3);
+        std::chrono::duration<double, std::milli> elapsed = std::chrono::high_resolution_clock::now() - start;
+        SP_LOG("interpreter %dx%d built in %f ms", width, sized->height, elapsed.count());
+        interpreters_.push_back(std::move(sized));
+        return interpreters_.back().get();
+    }
+
+    bool ApplePerception::select_input_size(int width){
+        sized_interpreter *sized = get_interpreter(width);
+        if(sized == nullptr)
+            return false;
+        interpreter_ = sized->interpreter.get();
+        active_ = sized;
+        input_size_ = sized->width;
+        input_height_ = sized->height;
+        return true;
+    }
+
+    size_t ApplePerception::model_bytes() const{
+        return model_ && model_->allocation() ? model_->allocation()->bytes() : 0;
+    }
+
+    size_t ApplePerception::tensor_bytes() const{
+        std::lock_guard<std::mutex> guard(operator_mutex_);
+        size_t bytes = 0;
+        for(auto &sized : interpreters_){
+            tflite::Interpreter *interpreter = sized->interpreter.get();
+            for(size_t i = 0; i < interpreter->tensors_size(); i++){
+                const TfLiteTensor *tensor = interpreter->tensor(i);
+                if(tensor->allocation_type == kTfLiteArenaRw || tensor->allocation_type == kTfLiteArenaRwPersistent
+                   || tensor->allocation_type == kTfLiteDynamic)
+                    bytes += tensor->bytes;
+            }
+        }
+        return bytes;
+    }
+
+    void ApplePerception::set_thresholds(float conf_thresh, float nms_thresh){
+        std::lock_guard<std::mutex> guard(operator_mutex_);
+        if(conf_thresh >= 0)
+            cfg_.conf_thresh = conf_thresh;
+        if(nms_thresh >= 0)
+            cfg_.nms_thresh = nms_thresh;
+    }
+
+    void ApplePerception::set_latency_budget(float budget_ms){
+        std::lock_guard<std::mutex> guard(operator_mutex_);
+        size_controller_.set_budget(budget_ms);
+        if(ready_ && size_controller_.size() != input_size_ && !select_input_size(size_controller_.size()))
+            size_controller_.reject(size_controller_.size(), input_size_);
     }
 
     // pedestrian detection
@@ -89,140 +222,122 @@ namespace ninebot_algo{ namespace cnn_ninebot {
         int handLoc){
 
         std::lock_guard<std::mutex> guard(operator_mutex_);
-        return run_quantization(src_img, pedestrian_boxes, handLoc);
+        if(!ready_)
+            return;
+        return run_quantization(src_img, pedestrian_boxes, handLoc, active_, true);
+    }
+
+    // a region runs on the interpreter of its own size, the full frame size and its controller
+    // are left alone
+    void ApplePerception::detect_region(const cv::Mat &region, std::vector<bbox> &boxes, int input_width){
+        std::lock_guard<std::mutex> guard(operator_mutex_);
+        if(!ready_)
+            return;
+        sized_interpreter *sized = input_width != input_size_ ? get_interpreter(input_width) : active_;
+        if(sized == nullptr){
+            SP_LOG("no interpreter at %d for a region, running it at %d", input_width, (int)input_size_);
+            sized = active_;
+        }
+        run_quantization(region, boxes, 0, sized, false);
     }
 
-    float sigmoid(float x){
-        return (1 / (1 + exp(-x)));
+    int ApplePerception::region_input_size(int side_px, int full_px) const{
+        std::lock_guard<std::mutex> guard(operator_mutex_);
+        int current = input_size_;
+        if(full_px <= 0)
+            return current;
+        int needed = (side_px * current + full_px - 1) / full_px;
+        for(int size : size_controller_.sizes()){
+            if(size >= needed)
+                return std::min(size, current);
+        }
+        return current;
     }
 
-    bool comp(const bbox &a, const bbox &b){
-        return a.score > b.score; 
+    void ApplePerception::set_num_threads(int num_threads){
+        std::lock_guard<std::mutex> guard(operator_mutex_);
+        if(!ready_)
+            return;
+        // worker threads are spawned from the invoking thread and inherit its affinity
+        num_threads_ = num_threads > 0 ? num_threads : -1;
+        for(auto &sized : interpreters_)
+            sized->interpreter->SetNumThreads(num_threads_);
     }
 
-    std::vector<bbox> nms(std::vector<bbox> boxes, int classes, float thresh)
-    {
-        std::vector<bbox> res;
-        for(int i = 0; i < classes; i++)
-        {
-            vector<bbox> res_one_cls;
-            for(int j = 0; j < boxes.size(); j++)
-            {
-                if(boxes[j].classId == i)
-                    res_one_cls.push_back(boxes[j]);
+    float ApplePerception::warmup(int iterations){
+        std::lock_guard<std::mutex> guard(operator_mutex_);
+        if(!ready_)
+            return -1;
+        auto start = std::chrono::high_resolution_clock::now();
+        // with a latency budget every size the controller may switch to is built and warmed up
+        // now, so a switch under load does not stall on delegate compilation
+        std::vector<tflite::Interpreter*> warm(1, interpreter_);
+        if(size_controller_.budget_ms() > 0){
+            for(int size : size_controller_.sizes()){
+                sized_interpreter *sized = size != input_size_ ? get_interpreter(size) : nullptr;
+                if(sized != nullptr)
+                    warm.push_back(sized->interpreter.get());
             }
-            sort(res_one_cls.begin(),res_one_cls.end(),comp);
-            for(int j = 0; j < res_one_cls.size(); j++)
-            {
-                float area = (res_one_cls[j].x2 - res_one_cls[j].x1 + 0.0001) 
-                                * (res_one_cls[j].y2 - res_one_cls[j].y1 + 0.0001);
-                for(int k = res_one_cls.size()-1; k > j; k--)
-                {
-                    float xx1 = max(res_one_cls[j].x1, res_one_cls[k].x1);
-                    float xx2 = min(res_one_cls[j].x2, res_one_cls[k].x2);
-                    float yy1 = max(res_one_cls[j].y1, res_one_cls[k].y1);
-                    float yy2 = min(res_one_cls[j].y2, res_one_cls[k].y2);
-                    float w = xx2 - xx1 + 0.0001;
-                    float h = yy2 - yy1 + 0.0001;
-                    if (w > 0 && h > 0)
-                    {
-                        float o = w * h / area;
-                        if (o > thresh)
-                        {
-                            res_one_cls.erase(res_one_cls.begin() + k);
-                        }
-                    }
+        }
+        for(tflite::Interpreter *interpreter : warm){
+            TfLiteTensor* input = interpreter->tensor(interpreter->inputs()[0]);
+            memset(input->data.raw, 0, input->bytes);
+            for(int i = 0; i < iterations; i++){
+                if(interpreter->Invoke() != kTfLiteOk){
+                    SP_LOG("warmup invoke %d failed", i);
+                    break;
                 }
             }
-            res.insert(res.end(), res_one_cls.begin(), res_one_cls.end());
         }
-        return res;
+        std::chrono::duration<double, std::milli> elapsed = std::chrono::high_resolution_clock::now() - start;
+        return (float)elapsed.count();
     }
 
-    void ApplePerception::pedestrian_yolo_parse(const std::vector<TfLiteTensor*> outs, std::vector<bbox> &pedestrian_boxes){
-        std::vector<bbox> boxes;
-        for (int s = 0; s < outs.size(); ++s){
-            float* resdata = (float*)outs[s]->data.uint8;
-            int scale = pow(2, s); 
-            int outputwidth = cfg_.grid_w * scale;
-            int outputheight = cfg_.grid_h * scale;
-            int map_pixel_size = outputheight * outputwidth;
-            for (int i = 0; i < map_pixel_size; i++){
-                int j = i * (cfg_.num_object * (cfg_.classes + 5));
-                for (int k = 0; k < cfg_.num_object; k++){
-                    int obj = k * (cfg_.classes + 5);
-                    // conf
-                    float conf = sigmoid(resdata[j + obj + 4]);
-                    if(conf < cfg_.conf_thresh)
-                        continue;
-                    // class
-                    float cls_score;
-                    int max_class = 0;
-                    float class_conf = -10000.;
-                    for (int cls = 0; cls < cfg_.classes; cls ++){
-                        cls_score = sigmoid(resdata[j + obj + cls + 5]);
-                        if (cls_score > class_conf){
-                            class_conf = cls_score;
-                            max_class = cls;
-                        }
-                    }
-                    // bbox
-                    float bw = exp(resdata[j + obj + 2]);
-                    float bh = exp(resdata[j + obj + 3]);
-                    float width = bw * (cfg_.anchors[s * cfg_.num_object * 2 + k * 2] / cfg_.input_w); // anchor.x / input_w
-                    float height = bh * (cfg_.anchors[s * cfg_.num_object * 2 + k * 2 + 1] / cfg_.input_h); // anchor.y / input_h
-                    float offset_x = sigmoid(resdata[j + obj]);
-                    float offset_y = sigmoid(resdata[j + obj + 1]);
-                    bbox box;
-                    int y = i / outputwidth;
-                    int x = i % outputwidth;
-                    box.x1 = (x + offset_x) / outputwidth - width / 2;
-                    box.y1 = (y + offset_y) / outputheight - height / 2;
-                    box.x2 = (x + offset_x) / outputwidth + width / 2;
-                    box.y2 = (y + offset_y) / outputheight + height / 2;
-                    box.x1 = box.x1 > 0 ? box.x1 : 0;
-                    box.y1 = box.y1 > 0 ? box.y1 : 0;
-                    box.x2 = box.x2 < 1 ? box.x2 : 1;
-                    box.y2 = box.y2 < 1 ? box.y2 : 1;
-
-                    box.score = class_conf * conf;
-                    box.classId = max_class;
-                    boxes.push_back(box);
-                }
-            }
-
+    void ApplePerception::pedestrian_yolo_parse(TfLiteTensor* const *outs, int count, int input_width,
+                                                int input_height, std::vector<bbox> &pedestrian_boxes){
+        YoloParams params = yolo_params(cfg_.grid_w, cfg_.grid_h, cfg_.input_w, cfg_.input_h, input_width,
+                                        input_height, cfg_.num_object, cfg_.classes, cfg_.anchors.data(),
+                                        cfg_.conf_thresh);
+        const float *data[MAX_YOLO_OUTPUTS];
+        size_t bytes[MAX_YOLO_OUTPUTS];
+        for (int s = 0; s < count; s++){
+            data[s] = outs[s]->data.f;
+            bytes[s] = outs[s]->bytes;
         }
-        boxes = nms(boxes, cfg_.classes, cfg_.nms_thresh);
-        pedestrian_boxes.assign(boxes.begin(), boxes.end());
+        candidates_.clear();
+        int skipped = yolo_decode(data, bytes, count, params, candidates_);
+        if (skipped > 0)
+            SP_LOG("%d outputs too small for a %dx%d grid", skipped, params.grid_w, params.grid_h);
+        nms_in_place(candidates_, cfg_.classes, cfg_.nms_thresh, suppressed_);
+        pedestrian_boxes.assign(candidates_.begin(), candidates_.end());
     }
 
 
     void ApplePerception::run_quantization(const cv::Mat &src_img, std::vector<bbox> &pedestrian_boxes,
-            int handLoc){
+            int handLoc, sized_interpreter *sized, bool control_size){
 #ifdef CALCULATE_COST_TIME_
         auto start = std::chrono::high_resolution_clock::now();
 #endif
-        auto input_width = cfg_.input_width;
-        auto input_height = cfg_.input_height;
-        cv::Mat cropped_img, rotated_img, resized_img, normalized_img;
-        cropped_img = cv::Mat::zeros(src_img.rows, src_img.cols - handLoc, CV_8UC3);
-        src_img(cv::Rect(handLoc, 0.0, src_img.cols - handLoc, src_img.rows)).copyTo(cropped_img);
+        auto frame_start = std::chrono::high_resolution_clock::now();
+        static const int trace_preprocess = TraceRing::instance().name_id("preprocess");
+        static const int trace_invoke = TraceRing::instance().name_id("invoke");
+        static const int trace_parse = TraceRing::instance().name_id("parse");
+        TraceRing &trace = TraceRing::instance();
+        trace.begin(trace_preprocess);
+        tflite::Interpreter *interpreter = sized->interpreter.get();
+        int input_width = sized->width;
+        int input_height = sized->height;
+        // the resized image lives with the interpreter of its size and the normalized one is
+        // written straight into the input tensor, so neither is allocated per frame
+        cv::Mat &resized_img = sized->resized;
         cv::resize(src_img, resized_img, cv::Size(input_width, input_height), 0, 0, cv::INTER_NEAREST);
-        resized_img.convertTo(normalized_img, CV_32F, 1.0 / 255, 0);
 
 #ifdef _USE_TF_FLOAT_MODEL
-        auto input = interpreter_->typed_input_tensor<float>(0);
-
-        float *input_data = (float*)normalized_img.data;
-        int input_idx = 0;
-        while(input_idx < input_height * input_width * 3){
-            input[input_idx] = *input_data;
-            input_idx ++;
-            input_data ++;
-        }
+        cv::Mat input(input_height, input_width, CV_32FC3, interpreter->typed_input_tensor<float>(0));
+        resized_img.convertTo(input, CV_32F, 1.0 / 255, 0);
 #else
-        auto input_node_index = interpreter_->inputs()[0];
-        auto input = interpreter_->typed_tensor<std::uint8_t>(input_node_index);//float
+        auto input_node_index = interpreter->inputs()[0];
+        auto input = interpreter->typed_tensor<std::uint8_t>(input_node_index);//float
         memcpy(input, resized_img.data, resized_img.rows*resized_img.cols*3);
 
 #endif
@@ -231,22 +346,41 @@ namespace ninebot_algo{ namespace cnn_ninebot {
         auto end0 = std::chrono::high_resolution_clock::now();
 #endif
 
-        if(interpreter_->Invoke() != kTfLiteOk){
+        trace.end(trace_preprocess);
+        trace.begin(trace_invoke);
+        if(interpreter->Invoke() != kTfLiteOk){
+            trace.end(trace_invoke);
             return;
         }
+        trace.end(trace_invoke);
 
 
 #ifdef CALCULATE_COST_TIME_
         auto end1 = std::chrono::high_resolution_clock::now();
 #endif
-        auto pedestrian_yolo_node_index_0 = interpreter_->outputs()[0];
-        TfLiteTensor* p_tflts_output0 = interpreter_->tensor(pedestrian_yolo_node_index_0);
-        auto pedestrian_yolo_node_index_1 = interpreter_->outputs()[1];
-        TfLiteTensor* p_tflts_output1 = interpreter_->tensor(pedestrian_yolo_node_index_1);
-        auto pedestrian_yolo_node_index_2 = interpreter_->outputs()[2];
-        TfLiteTensor* p_tflts_output2 = interpreter_->tensor(pedestrian_yolo_node_index_2);
-        std::vector<TfLiteTensor*> tensors = {p_tflts_output0, p_tflts_output1, p_tflts_output2};
-        pedestrian_yolo_parse(tensors, pedestrian_boxes);
+        auto pedestrian_yolo_node_index_0 = interpreter->outputs()[0];
+        TfLiteTensor* p_tflts_output0 = interpreter->tensor(pedestrian_yolo_node_index_0);
+        auto pedestrian_yolo_node_index_1 = interpreter->outputs()[1];
+        TfLiteTensor* p_tflts_output1 = interpreter->tensor(pedestrian_yolo_node_index_1);
+        auto pedestrian_yolo_node_index_2 = interpreter->outputs()[2];
+        TfLiteTensor* p_tflts_output2 = interpreter->tensor(pedestrian_yolo_node_index_2);
+        TfLiteTensor* tensors[MAX_YOLO_OUTPUTS] = {p_tflts_output0, p_tflts_output1, p_tflts_output2};
+        trace.begin(trace_parse);
+        pedestrian_yolo_parse(tensors, MAX_YOLO_OUTPUTS, input_width, input_height, pedestrian_boxes);
+        trace.end(trace_parse);
+        if(!control_size)
+            return;
+
+        // the size for the next frame, from the latency of this one
+        std::chrono::duration<double, std::milli> latency = std::chrono::high_resolution_clock::now() - frame_start;
+        int next_size = size_controller_.update((float)latency.count());
+        if(next_size != input_size_){
+            SP_LOG("inference %f ms against a %f ms budget, input %d -> %d", size_controller_.average_ms(),
+                   size_controller_.budget_ms(), (int)input_size_, next_size);
+            if(!select_input_size(next_size))
+                size_controller_.reject(next_size, input_size_);
+        }
+        TRACE_COUNTER("input_size", input_size_);
 
 
 #ifdef CALCULATE_COST_TIME_
@@ -258,7 +392,7 @@ namespace ninebot_algo{ namespace cnn_ninebot {
 #endif
     }
    
-    segmentor_config ApplePerception::get_segmentor_config(){
+    const segmentor_config &ApplePerception::get_segmentor_config() const{
         return cfg_;
     }
 
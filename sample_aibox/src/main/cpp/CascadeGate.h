@@ -0,0 +1,105 @@
+//
+// Decides per frame whether the full detector runs, from the score of a cheap presence
+// classifier, and keeps the counters that show what the cascade saves and what it misses.
+// Only depends on libc so the host test can include it as is.
+//
+
+#ifndef CASCADEGATE_H
+#define CASCADEGATE_H
+
+#include <stdint.h>
+
+namespace ninebot_algo {
+    namespace cnn_ninebot {
+
+        // Per frame: ask wants_gate(); if it does, run the classifier and pass its score to admit(),
+        // otherwise call bypass(). When the detector runs, report its boxes with detected().
+        // Frames right after a detection skip the classifier, the targets are still in view. Every
+        // audit_interval-th rejected frame runs the detector anyway, a rejected frame in which it
+        // still finds boxes is a miss, so misses / audits estimates the miss rate of the gate.
+        class CascadeGate {
+        public:
+            struct Options {
+                float presence_thresh = 0.5f;   // classifier score from which the detector runs
+                int hold_frames = 3;            // frames after a detection that skip the classifier
+                int audit_interval = 30;        // rejected frames per audit, 0 never audits
+            };
+
+            struct Stats {
+                uint64_t frames = 0;            // frames that went through the cascade
+                uint64_t gated = 0;             // frames the classifier ran on
+                uint64_t rejected = 0;          // gated frames under the threshold
+                uint64_t skipped = 0;           // rejected frames the detector did not run on
+                uint64_t detected = 0;          // frames the detector ran on
+                uint64_t audits = 0;            // rejected frames detected anyway
+                uint64_t misses = 0;            // audits in which the detector found boxes
+                double gate_ms = 0;             // total time of the classifier
+                double detector_ms = 0;         // total time of the detector
+
+                float miss_rate() const { return audits > 0 ? (float) misses / audits : 0; }
+                // detector time not spent on skipped frames, less the cost of the classifier
+                double saved_ms() const {
+                    return (detected > 0 ? detector_ms / detected * skipped : 0) - gate_ms;
+                }
+            };
+
+            void configure(const Options &options) {
+                _options = options;
+                _hold = 0;
+                _rejected_since_audit = 0;
+            }
+
+            const Options &options() const { return _options; }
+
+            bool wants_gate() const { return _hold == 0; }
+
+            // the classifier scored this frame, returns whether the detector runs on it
+            bool admit(float score, float gate_ms) {
+                _stats.frames++;
+                _stats.gated++;
+                _stats.gate_ms += gate_ms;
+                _audit = false;
+                if (score >= _options.presence_thresh)
+                    return true;
+                _stats.rejected++;
+                if (_options.audit_interval > 0 && ++_rejected_since_audit >= _options.audit_interval) {
+                    _rejected_since_audit = 0;
+                    _audit = true;
+                    _stats.audits++;
+                    return true;
+                }
+                _stats.skipped++;
+                return false;
+            }
+
+            // the classifier did not run, the detector does
+            void bypass() {
+                _stats.frames++;
+                _audit = false;
+                if (_hold > 0)
+                    _hold--;
+            }
+
+            void detected(int boxes, float detector_ms) {
+                _stats.detected++;
+                _stats.detector_ms += detector_ms;
+                if (_audit && boxes > 0)
+                    _stats.misses++;
+                _audit = false;
+                if (boxes > 0)
+                    _hold = _options.hold_frames;
+            }
+
+            const Stats &stats() const { return _stats; }
+
+        private:
+            Options _options;
+            Stats _stats;
+            int _hold = 0;
+            int _rejected_since_audit = 0;
+            bool _audit = false;
+        };
+    }
+}
+
+#endif //CASCADEGATE_H
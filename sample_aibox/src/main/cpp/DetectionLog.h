@@ -0,0 +1,405 @@
+//
+// Persistent, append-only log of every detection, for yield analysis after the fact.
+// Records go into memory-mapped segment files of fixed-width records; a full segment is closed
+// and the oldest ones are deleted, so the log never takes more than max_segments segments of disk.
+// Only depends on libc so analysis tools (and the host benchmark) can include it as is.
+//
+
+#ifndef DETECTIONLOG_H
+#define DETECTIONLOG_H
+
+#include <algorithm>
+#include <atomic>
+#include <cstdint>
+#include <cstdio>
+#include <cstring>
+#include <ctime>
+#include <deque>
+#include <dirent.h>
+#include <fcntl.h>
+#include <mutex>
+#include <string>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+#include <vector>
+
+namespace ninebot_algo {
+    namespace cnn_ninebot {
+
+        // segment file <dir>/segment-<number>.dlog, all fields little endian:
+        //
+        //   header (64 bytes)
+        //     0  uint32 magic 'DLOG'
+        //     4  uint32 version
+        //     8  uint32 record_size
+        //    12  uint32 index_stride
+        //    16  uint64 capacity         records the segment can hold
+        //    24  uint64 count            committed records, readers never look past it
+        //    32  int64  first_timestamp
+        //    40  int64  last_timestamp   of the last committed record
+        //   index at 64: int64 timestamp of record k * index_stride, one per started stride
+        //   records at the next 64 byte boundary, record_size bytes each
+        //
+        // Timestamps are non-decreasing within the log (see append), so the sparse index can be
+        // binary searched.
+        //
+        // A record holds the stream as int32 like DetectionRing, engine handles start at 0x10000,
+        // and the score in [0, 1] in 1/65535 steps, which keeps it at 32 bytes.
+        struct DetectionLogRecord {
+            int64_t timestamp;
+            int32_t stream;
+            int16_t classId;
+            uint16_t score_q;
+            float x1;
+            float y1;
+            float x2;
+            float y2;
+
+            float score() const { return score_q / 65535.f; }
+        };
+
+        static_assert(sizeof(DetectionLogRecord) == 32, "records are fixed width");
+
+        struct DetectionLogHeader {
+            uint32_t magic;
+            uint32_t version;
+            uint32_t record_size;
+            uint32_t index_stride;
+            uint64_t capacity;
+            std::atomic<uint64_t> count;
+            int64_t first_timestamp;
+            std::atomic<int64_t> last_timestamp;
+            uint8_t reserved[16];
+        };
+
+        static_assert(sizeof(DetectionLogHeader) == 64, "the header is 64 bytes");
+
+        static const uint32_t DETECTION_LOG_MAGIC = 0x474f4c44;  // "DLOG"
+        static const uint32_t DETECTION_LOG_VERSION = 2;
+        static const uint32_t DETECTION_LOG_INDEX_STRIDE = 256;
+
+        // A mapped segment file, writable for the writer and read only for readers.
+        class DetectionLogSegment {
+        public:
+            ~DetectionLogSegment() { close(); }
+
+            bool create(const std::string &path, uint64_t capacity) {
+                close();
+                size_t size = records_offset(capacity) + capacity * sizeof(DetectionLogRecord);
+                int fd = ::open(path.c_str(), O_RDWR | O_CREAT | O_TRUNC, 0644);
+                if (fd < 0)
+                    return false;
+                // the file is sparse, pages get disk blocks as records are written
+                if (ftruncate(fd, size) != 0) {
+                    ::close(fd);
+                    unlink(path.c_str());
+                    return false;
+                }
+                void *base = mmap(nullptr, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+                ::close(fd);
+                if (base == MAP_FAILED) {
+                    unlink(path.c_str());
+                    return false;
+                }
+                _base = (uint8_t *) base;
+                _size = size;
+                _header = (DetectionLogHeader *) base;
+                _header->version = DETECTION_LOG_VERSION;
+                _header->record_size = sizeof(DetectionLogRecord);
+                _header->index_stride = DETECTION_LOG_INDEX_STRIDE;
+                _header->capacity = capacity;
+                _header->count.store(0, std::memory_order_relaxed);
+                _header->first_timestamp = 0;
+                _header->last_timestamp.store(0, std::memory_order_relaxed);
+                std::atomic_thread_fence(std::memory_order_release);
+                _header->magic = DETECTION_LOG_MAGIC;
+                return true;
+            }
+
+            bool open_read(const std::string &path) {
+                close();
+                int fd = ::open(path.c_str(), O_RDONLY);
+                if (fd < 0)
+                    return false;
+                struct stat st;
+                if (fstat(fd, &st) != 0 || st.st_size < (off_t) sizeof(DetectionLogHeader)) {
+                    ::close(fd);
+                    return false;
+                }
+                void *base = mmap(nullptr, st.st_size, PROT_READ, MAP_SHARED, fd, 0);
+                ::close(fd);
+                if (base == MAP_FAILED)
+                    return false;
+                _base = (uint8_t *) base;
+                _size = st.st_size;
+                _header = (DetectionLogHeader *) base;
+                if (_header->magic != DETECTION_LOG_MAGIC || _header->version != DETECTION_LOG_VERSION
+                    || _header->record_size != sizeof(DetectionLogRecord)
+                    || _header->index_stride != DETECTION_LOG_INDEX_STRIDE
+                    || records_offset(_header->capacity) + _header->capacity * sizeof(DetectionLogRecord) > _size) {
+                    close();
+                    return false;
+                }
+                std::atomic_thread_fence(std::memory_order_acquire);
+                return true;
+            }
+
+            void close() {
+                if (_base != nullptr)
+                    munmap(_base, _size);
+                _base = nullptr;
+                _header = nullptr;
+                _size = 0;
+            }
+
+            bool is_open() const { return _header != nullptr; }
+            DetectionLogHeader *header() const { return _header; }
+
+            int64_t *index() const { return (int64_t *) (_base + sizeof(DetectionLogHeader)); }
+
+            DetectionLogRecord *records() const {
+                return (DetectionLogRecord *) (_base + records_offset(_header->capacity));
+            }
+
+            // make records [from, to) durable, asynchronously unless sync is set
+            void flush(uint64_t from, uint64_t to, bool sync) const {
+                if (to <= from)
+                    return;
+                long page = sysconf(_SC_PAGESIZE);
+                uintptr_t begin = (uintptr_t) (records() + from) & ~(uintptr_t) (page - 1);
+                uintptr_t end = (uintptr_t) (records() + to);
+                msync((void *) begin, end - begin, sync ? MS_SYNC : MS_ASYNC);
+                // header and sparse index
+                msync(_base, records_offset(_header->capacity), sync ? MS_SYNC : MS_ASYNC);
+            }
+
+            // first record with a timestamp >= from among the first count records
+            uint64_t lower_bound(int64_t from, uint64_t count) const {
+                uint64_t entries = (count + DETECTION_LOG_INDEX_STRIDE - 1) / DETECTION_LOG_INDEX_STRIDE;
+                const int64_t *idx = index();
+                uint64_t block = std::lower_bound(idx, idx + entries, from) - idx;
+                uint64_t i = block == 0 ? 0 : (block - 1) * DETECTION_LOG_INDEX_STRIDE;
+                const DetectionLogRecord *r = records();
+                while (i < count && r[i].timestamp < from)
+                    i++;
+                return i;
+            }
+
+            static size_t records_offset(uint64_t capacity) {
+                size_t entries = (capacity + DETECTION_LOG_INDEX_STRIDE - 1) / DETECTION_LOG_INDEX_STRIDE;
+                return (sizeof(DetectionLogHeader) + entries * sizeof(int64_t) + 63) & ~(size_t) 63;
+            }
+
+        private:
+            uint8_t *_base = nullptr;
+            size_t _size = 0;
+            DetectionLogHeader *_header = nullptr;
+        };
+
+        inline std::string detection_log_segment_path(const std::string &dir, uint64_t number) {
+            char name[40];
+            snprintf(name, sizeof(name), "/segment-%010llu.dlog", (unsigned long long) number);
+            return dir + name;
+        }
+
+        // segment numbers found in dir, oldest first
+        inline std::vector<uint64_t> detection_log_segments(const std::string &dir) {
+            std::vector<uint64_t> numbers;
+            DIR *d = opendir(dir.c_str());
+            if (d == nullptr)
+                return numbers;
+            while (struct dirent *entry = readdir(d)) {
+                unsigned long long number;
+                char suffix[8];
+                if (sscanf(entry->d_name, "segment-%llu.%7s", &number, suffix) == 2 && strcmp(suffix, "dlog") == 0)
+                    numbers.push_back(number);
+            }
+            closedir(d);
+            std::sort(numbers.begin(), numbers.end());
+            return numbers;
+        }
+
+        // Appends are batched: the committed count (what readers see) and the msync of the new
+        // records happen once per group_size records, or on the first append commit_interval_ms
+        // after the previous commit. Thread safe, one writer process per directory.
+        class DetectionLogWriter {
+        public:
+            struct Options {
+                uint64_t segment_records = 1 << 20;
+                int max_segments = 8;
+                uint32_t group_size = 256;
+                int commit_interval_ms = 1000;
+                bool sync = false;
+            };
+
+            ~DetectionLogWriter() { close(); }
+
+            // continues after the newest segment already in dir, which must exist
+            bool open(const std::string &dir, const Options &options) {
+                std::lock_guard<std::mutex> guard(_mutex);
+                close_locked();
+                if (options.segment_records == 0 || options.max_segments <= 0 || options.group_size == 0)
+                    return false;
+                std::vector<uint64_t> existing = detection_log_segments(dir);
+                _segments.assign(existing.begin(), existing.end());
+                _next_number = existing.empty() ? 0 : existing.back() + 1;
+                _dir = dir;
+                _options = options;
+                _appended = 0;
+                _last_timestamp = 0;
+                return open_segment();
+            }
+
+            void close() {
+                std::lock_guard<std::mutex> guard(_mutex);
+                close_locked();
+            }
+
+            bool is_open() const { return _segment.is_open(); }
+
+            // Box needs classId, x1, y1, x2, y2 and score members. A timestamp older than the previous
+            // record's (frames of different streams finishing out of order) is raised to it.
+            template<typename Box>
+            bool append(int64_t timestamp, int stream, const Box *boxes, int count) {
+                std::lock_guard<std::mutex> guard(_mutex);
+                if (!_segment.is_open())
+                    return false;
+                timestamp = std::max(timestamp, _last_timestamp);
+                _last_timestamp = timestamp;
+                for (int i = 0; i < count; i++) {
+                    DetectionLogHeader *header = _segment.header();
+                    if (_written == header->capacity) {
+                        if (!rotate())
+                            return false;
+                        header = _segment.header();
+                    }
+                    if (_written % DETECTION_LOG_INDEX_STRIDE == 0)
+                        _segment.index()[_written / DETECTION_LOG_INDEX_STRIDE] = timestamp;
+                    if (_written == 0)
+                        header->first_timestamp = timestamp;
+                    DetectionLogRecord &r = _segment.records()[_written++];
+                    r.timestamp = timestamp;
+                    r.stream = stream;
+                    r.classId = (int16_t) boxes[i].classId;
+                    r.score_q = (uint16_t) (std::min(std::max((float) boxes[i].score, 0.f), 1.f) * 65535 + 0.5f);
+                    r.x1 = boxes[i].x1;
+                    r.y1 = boxes[i].y1;
+                    r.x2 = boxes[i].x2;
+                    r.y2 = boxes[i].y2;
+                    _appended++;
+                }
+                if (_written - _committed >= _options.group_size || elapsed_ms(_commit_ts) >= _options.commit_interval_ms)
+                    commit_locked();
+                return true;
+            }
+
+            void commit() {
+                std::lock_guard<std::mutex> guard(_mutex);
+                commit_locked();
+            }
+
+            uint64_t appended_count() const { return _appended; }
+
+        private:
+            static int64_t now_ms() {
+                struct timespec ts;
+                clock_gettime(CLOCK_MONOTONIC, &ts);
+                return (int64_t) ts.tv_sec * 1000 + ts.tv_nsec / 1000000;
+            }
+
+            static int64_t elapsed_ms(int64_t since) { return now_ms() - since; }
+
+            bool open_segment() {
+                uint64_t number = _next_number++;
+                if (!_segment.create(detection_log_segment_path(_dir, number), _options.segment_records))
+                    return false;
+                _segments.push_back(number);
+                while ((int) _segments.size() > _options.max_segments) {
+                    unlink(detection_log_segment_path(_dir, _segments.front()).c_str());
+                    _segments.pop_front();
+                }
+                _written = 0;
+                _committed = 0;
+                _commit_ts = now_ms();
+                return true;
+            }
+
+            bool rotate() {
+                commit_locked();
+                _segment.close();
+                return open_segment();
+            }
+
+            void commit_locked() {
+                if (!_segment.is_open())
+                    return;
+                _commit_ts = now_ms();
+                if (_written == _committed)
+                    return;
+                DetectionLogHeader *header = _segment.header();
+                header->last_timestamp.store(_segment.records()[_written - 1].timestamp, std::memory_order_relaxed);
+                header->count.store(_written, std::memory_order_release);
+                _segment.flush(_committed, _written, _options.sync);
+                _committed = _written;
+            }
+
+            void close_locked() {
+                commit_locked();
+                _segment.close();
+                _segments.clear();
+            }
+
+            std::mutex _mutex;
+            std::string _dir;
+            Options _options;
+            DetectionLogSegment _segment;
+            std::deque<uint64_t> _segments;
+            uint64_t _next_number = 0;
+            uint64_t _written = 0;      // records in the current segment
+            uint64_t _committed = 0;    // of them visible to readers
+            uint64_t _appended = 0;
+            int64_t _last_timestamp = 0;
+            int64_t _commit_ts = 0;
+        };
+
+        // Time-range scans over the committed records of every segment in a log directory.
+        // Works while the writer is appending; segments deleted by rotation during a scan are skipped.
+        class DetectionLogReader {
+        public:
+            explicit DetectionLogReader(const std::string &dir) : _dir(dir) {}
+
+            // Call visit(const DetectionLogRecord &) for every record with from <= timestamp <= to,
+            // oldest first. Returns the number of records visited.
+            template<typename Visitor>
+            uint64_t scan(int64_t from, int64_t to, Visitor visit) const {
+                uint64_t visited = 0;
+                DetectionLogSegment segment;
+                for (uint64_t number : detection_log_segments(_dir)) {
+                    if (!segment.open_read(detection_log_segment_path(_dir, number)))
+                        continue;
+                    const DetectionLogHeader *header = segment.header();
+                    uint64_t count = header->count.load(std::memory_order_acquire);
+                    if (count == 0 || header->first_timestamp > to
+                        || header->last_timestamp.load(std::memory_order_relaxed) < from)
+                        continue;
+                    const DetectionLogRecord *records = segment.records();
+                    for (uint64_t i = segment.lower_bound(from, count); i < count && records[i].timestamp <= to; i++) {
+                        visit(records[i]);
+                        visited++;
+                    }
+                }
+                return visited;
+            }
+
+            uint64_t count(int64_t from, int64_t to) const {
+                return scan(from, to, [](const DetectionLogRecord &) {});
+            }
+
+        private:
+            std::string _dir;
+        };
+    }
+}
+
+#endif //DETECTIONLOG_H
@@ -0,0 +1,293 @@
+//
+// Shared-memory ring of detection records, one writer process and any number of readers.
+// Only depends on libc so reader processes (and the host benchmark) can include it as is.
+//
+
+#ifndef DETECTIONRING_H
+#define DETECTIONRING_H
+
+#include <atomic>
+#include <cstddef>
+#include <cstdint>
+#include <cstring>
+#include <ctime>
+#include <fcntl.h>
+#include <mutex>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <unistd.h>
+
+namespace ninebot_algo {
+    namespace cnn_ninebot {
+
+        // fixed binary layout, all fields little endian and naturally aligned:
+        //
+        //   header (64 bytes)
+        //     0  uint32 magic 'DRNG'
+        //     4  uint32 version
+        //     8  uint32 slot_count
+        //    12  uint32 max_boxes
+        //    16  uint32 slot_size
+        //    20  uint32 generation     bumped whenever a writer lays the ring out anew
+        //    24  uint64 write_seq      number of published records
+        //   slot i at 64 + i * slot_size
+        //     0  uint64 seq            2n+1 while record n is written, 2n+2 once complete
+        //     8  int64  timestamp
+        //    16  int32  stream
+        //    20  int32  count
+        //    24  box[max_boxes]        int32 classId, float x1, y1, x2, y2, score
+        struct DetectionRingBox {
+            int32_t classId;
+            float x1;
+            float y1;
+            float x2;
+            float y2;
+            float score;
+        };
+
+        struct DetectionRingHeader {
+            uint32_t magic;
+            uint32_t version;
+            uint32_t slot_count;
+            uint32_t max_boxes;
+            uint32_t slot_size;
+            std::atomic<uint32_t> generation;
+            std::atomic<uint64_t> write_seq;
+            uint8_t reserved1[32];
+        };
+
+        struct DetectionRingSlot {
+            std::atomic<uint64_t> seq;
+            int64_t timestamp;
+            int32_t stream;
+            int32_t count;
+            DetectionRingBox boxes[1];
+        };
+
+        struct DetectionRecord {
+            uint64_t seq;
+            int64_t timestamp;
+            int32_t stream;
+            int32_t count;
+            DetectionRingBox *boxes;   // caller owned, at least max_boxes entries
+        };
+
+        static_assert(ATOMIC_LLONG_LOCK_FREE == 2 && ATOMIC_INT_LOCK_FREE == 2, "the ring needs address-free atomics");
+
+        static const uint32_t DETECTION_RING_MAGIC = 0x474e5244;  // "DRNG"
+        static const uint32_t DETECTION_RING_VERSION = 2;
+
+        class DetectionRingBase {
+        public:
+            virtual ~DetectionRingBase() { close(); }
+
+            void close() {
+                if (_base != nullptr)
+                    munmap(_base, _size);
+                _base = nullptr;
+                _header = nullptr;
+                _size = 0;
+            }
+
+            bool is_open() const { return _header != nullptr; }
+            uint32_t max_boxes() const { return _header->max_boxes; }
+            uint32_t slot_count() const { return _header->slot_count; }
+
+        protected:
+            DetectionRingSlot *slot(uint64_t seq) const {
+                return (DetectionRingSlot *) ((uint8_t *) _base + sizeof(DetectionRingHeader)
+                                              + (seq % _header->slot_count) * _header->slot_size);
+            }
+
+            static size_t slot_size(uint32_t max_boxes) {
+                size_t size = offsetof(DetectionRingSlot, boxes) + max_boxes * sizeof(DetectionRingBox);
+                return (size + 63) & ~(size_t) 63;
+            }
+
+            void *_base = nullptr;
+            size_t _size = 0;
+            DetectionRingHeader *_header = nullptr;
+        };
+
+        // Publishing never blocks on readers, a slow reader simply loses the oldest records.
+        // Threads of the writing process are serialized, other processes must not write.
+        class DetectionRingWriter : public DetectionRingBase {
+        public:
+            // Readers may stay mapped across a writer restart. A ring with the same layout is
+            // taken over and its sequence continues. Otherwise the ring is laid out anew under
+            // the next generation. The file only ever grows, so no reader mapping is cut short.
+            bool open(const char *path, uint32_t slot_count, uint32_t max_boxes) {
+                close();
+                if (slot_count == 0 || max_boxes == 0)
+                    return false;
+                size_t size = sizeof(DetectionRingHeader) + slot_count * slot_size(max_boxes);
+                int fd = ::open(path, O_RDWR | O_CREAT, 0644);
+                if (fd < 0)
+                    return false;
+                struct stat st;
+                if (fstat(fd, &st) != 0 || ((size_t) st.st_size < size && ftruncate(fd, size) != 0)) {
+                    ::close(fd);
+                    return false;
+                }
+                bool had_header = (size_t) st.st_size >= sizeof(DetectionRingHeader);
+                void *base = mmap(nullptr, size, PROT_READ | PROT_WRITE, MAP_SHARED, fd, 0);
+                ::close(fd);
+                if (base == MAP_FAILED)
+                    return false;
+                _base = base;
+                _size = size;
+                _header = (DetectionRingHeader *) base;
+                bool valid = had_header && _header->magic == DETECTION_RING_MAGIC
+                             && _header->version == DETECTION_RING_VERSION;
+                if (valid && _header->slot_count == slot_count && _header->max_boxes == max_boxes
+                    && _header->slot_size == slot_size(max_boxes))
+                    return true;
+
+                uint32_t generation = valid ? _header->generation.load(std::memory_order_relaxed) + 1 : 1;
+                // readers of the old layout fail from here on, new readers wait for the magic
+                _header->magic = 0;
+                _header->generation.store(generation, std::memory_order_relaxed);
+                std::atomic_thread_fence(std::memory_order_release);
+                memset((uint8_t *) base + sizeof(DetectionRingHeader), 0, size - sizeof(DetectionRingHeader));
+                _header->version = DETECTION_RING_VERSION;
+                _header->slot_count = slot_count;
+                _header->max_boxes = max_boxes;
+                _header->slot_size = (uint32_t) slot_size(max_boxes);
+                _header->write_seq.store(0, std::memory_order_relaxed);
+                // readers check the magic last
+                std::atomic_thread_fence(std::memory_order_release);
+                _header->magic = DETECTION_RING_MAGIC;
+                return true;
+            }
+
+            uint32_t generation() const { return _header->generation.load(std::memory_order_relaxed); }
+
+            // Box needs classId, x1, y1, x2, y2 and score members, boxes past max_boxes are dropped.
+            // Returns the sequence number of the record.
+            template<typename Box>
+            uint64_t publish(int64_t timestamp, int32_t stream, const Box *boxes, int count) {
+                std::lock_guard<std::mutex> guard(_mutex);
+                uint64_t seq = _header->write_seq.load(std::memory_order_relaxed);
+                DetectionRingSlot *s = slot(seq);
+                s->seq.store(2 * seq + 1, std::memory_order_relaxed);
+                std::atomic_thread_fence(std::memory_order_release);
+                s->timestamp = timestamp;
+                s->stream = stream;
+                s->count = count < (int) _header->max_boxes ? count : (int) _header->max_boxes;
+                for (int i = 0; i < s->count; i++) {
+                    DetectionRingBox &dst = s->boxes[i];
+                    dst.classId = boxes[i].classId;
+                    dst.x1 = boxes[i].x1;
+                    dst.y1 = boxes[i].y1;
+                    dst.x2 = boxes[i].x2;
+                    dst.y2 = boxes[i].y2;
+                    dst.score = boxes[i].score;
+                }
+                s->seq.store(2 * seq + 2, std::memory_order_release);
+                _header->write_seq.store(seq + 1, std::memory_order_release);
+                return seq;
+            }
+
+        private:
+            std::mutex _mutex;
+        };
+
+        class DetectionRingReader : public DetectionRingBase {
+        public:
+            bool open(const char *path) {
+                close();
+                int fd = ::open(path, O_RDONLY);
+                if (fd < 0)
+                    return false;
+                struct stat st;
+                if (fstat(fd, &st) != 0 || st.st_size < (off_t) sizeof(DetectionRingHeader)) {
+                    ::close(fd);
+                    return false;
+                }
+                void *base = mmap(nullptr, st.st_size, PROT_READ, MAP_SHARED, fd, 0);
+                ::close(fd);
+                if (base == MAP_FAILED)
+                    return false;
+                _base = base;
+                _size = st.st_size;
+                _header = (DetectionRingHeader *) base;
+                if (_header->magic != DETECTION_RING_MAGIC || _header->version != DETECTION_RING_VERSION
+                    || sizeof(DetectionRingHeader) + (size_t) _header->slot_count * _header->slot_size > _size) {
+                    close();
+                    return false;
+                }
+                std::atomic_thread_fence(std::memory_order_acquire);
+                _generation = _header->generation.load(std::memory_order_relaxed);
+                return true;
+            }
+
+            // false once a writer laid the ring out again, reopen to follow it
+            bool is_current() const {
+                return _header->generation.load(std::memory_order_acquire) == _generation;
+            }
+
+            // number of records published so far, the newest one is published_count() - 1
+            uint64_t published_count() const {
+                return _header->write_seq.load(std::memory_order_acquire);
+            }
+
+            // Copy record seq into out. Fails when it is not published yet, or was overwritten
+            // before or while it was copied.
+            bool read(uint64_t seq, DetectionRecord &out) const {
+                if (seq >= published_count())
+                    return false;
+                const DetectionRingSlot *s = slot(seq);
+                uint64_t before = s->seq.load(std::memory_order_acquire);
+                if (before != 2 * seq + 2)
+                    return false;
+                out.seq = seq;
+                out.timestamp = s->timestamp;
+                out.stream = s->stream;
+                out.count = s->count;
+                if (out.count < 0 || out.count > (int) _header->max_boxes)
+                    return false;
+                memcpy(out.boxes, s->boxes, out.count * sizeof(DetectionRingBox));
+                std::atomic_thread_fence(std::memory_order_acquire);
+                return s->seq.load(std::memory_order_relaxed) == before && is_current();
+            }
+
+            bool read_latest(DetectionRecord &out) const {
+                for (int attempt = 0; attempt < 4; attempt++) {
+                    uint64_t count = published_count();
+                    if (count == 0)
+                        return false;
+                    if (read(count - 1, out))
+                        return true;
+                }
+                return false;
+            }
+
+            // Spin briefly, then poll with short sleeps until more than after_count records are
+            // published. Returns false on timeout or when the ring was laid out again.
+            bool wait(uint64_t after_count, int timeout_ms) const {
+                for (int spin = 0; spin < 1000; spin++) {
+                    if (published_count() > after_count)
+                        return true;
+                }
+                struct timespec start, now;
+                clock_gettime(CLOCK_MONOTONIC, &start);
+                struct timespec nap = {0, 100 * 1000};
+                while (published_count() <= after_count) {
+                    if (!is_current())
+                        return false;
+                    clock_gettime(CLOCK_MONOTONIC, &now);
+                    long elapsed_ms = (now.tv_sec - start.tv_sec) * 1000 + (now.tv_nsec - start.tv_nsec) / 1000000;
+                    if (elapsed_ms >= timeout_ms)
+                        return false;
+                    nanosleep(&nap, nullptr);
+                }
+                return true;
+            }
+
+        private:
+            uint32_t _generation = 0;
+        };
+    }
+}
+
+#endif //DETECTIONRING_H
@@ -0,0 +1,148 @@
+//
+// Fisheye image points to positions on the ground: FOV-model undistortion, exact or through a
+// per-resolution lookup table, the bird's-eye homography and the distance on the ground plane.
+// Batch functions work in place on plain float arrays with no allocation and no branches in the
+// inner loops, so the compiler can vectorize them. Only depends on libc so the host benchmark
+// can include it as is.
+//
+
+#ifndef FISHEYEGEOMETRY_H
+#define FISHEYEGEOMETRY_H
+
+#include <algorithm>
+#include <cmath>
+#include <limits>
+#include <vector>
+
+namespace ninebot_algo {
+    namespace cnn_ninebot {
+
+        // pinhole intrinsics in pixels plus the FOV distortion parameter w (0 = no distortion)
+        struct FovIntrinsics {
+            float fx;
+            float fy;
+            float cx;
+            float cy;
+            float w;
+
+            // the same camera at another resolution
+            FovIntrinsics scaled(float sx, float sy) const {
+                FovIntrinsics s = {fx * sx, fy * sy, cx * sx, cy * sy, w};
+                return s;
+            }
+        };
+
+        // Distorted pixels to normalized undistorted coordinates, in place. Points at or beyond
+        // 90 degrees from the optical axis have no pinhole image and become NaN.
+        inline void undistort_fov_normalized(const FovIntrinsics &k, float *x, float *y, int n) {
+            // ru = tan(rd * w) / (2 tan(w / 2)), ru / rd tends to w / (2 tan(w / 2)) at the centre
+            float w = k.w;
+            float scale = w > 1e-6f ? 1.f / (2.f * std::tan(w / 2)) : 0.f;
+            float centre_factor = w > 1e-6f ? w * scale : 1.f;
+            float limit = w > 1e-6f ? (float) M_PI / 2 / w : std::numeric_limits<float>::infinity();
+            float nan = std::numeric_limits<float>::quiet_NaN();
+            for (int i = 0; i < n; i++) {
+                float xd = (x[i] - k.cx) / k.fx;
+                float yd = (y[i] - k.cy) / k.fy;
+                float rd = std::sqrt(xd * xd + yd * yd);
+                float factor = rd > 1e-6f ? std::tan(rd * w) * scale / rd : centre_factor;
+                factor = w > 1e-6f ? factor : 1.f;
+                factor = rd < limit ? factor : nan;
+                x[i] = xd * factor;
+                y[i] = yd * factor;
+            }
+        }
+
+        // Normalized undistorted coordinates of every step-th pixel of one resolution, looked up
+        // with bilinear interpolation. Between grid points the error is far below a pixel for the
+        // smooth FOV model, and a lookup costs the same wherever the point is.
+        class UndistortLut {
+        public:
+            void build(int width, int height, const FovIntrinsics &intrinsics, int step) {
+                _width = width;
+                _height = height;
+                _step = step;
+                _cols = width / step + 2;
+                _rows = height / step + 2;
+                _x.resize(_cols * _rows);
+                _y.resize(_cols * _rows);
+                for (int r = 0; r < _rows; r++) {
+                    for (int c = 0; c < _cols; c++) {
+                        _x[r * _cols + c] = (float) (c * step);
+                        _y[r * _cols + c] = (float) (r * step);
+                    }
+                }
+                undistort_fov_normalized(intrinsics, _x.data(), _y.data(), _cols * _rows);
+            }
+
+            int width() const { return _width; }
+            int height() const { return _height; }
+            size_t bytes() const { return (_x.size() + _y.size()) * sizeof(float); }
+
+            // pixel coordinates in x, y to normalized undistorted coordinates, in place
+            void lookup(float *x, float *y, int n) const {
+                float inv_step = 1.f / _step;
+                for (int i = 0; i < n; i++) {
+                    float gx = std::min(std::max(x[i] * inv_step, 0.f), (float) (_cols - 2));
+                    float gy = std::min(std::max(y[i] * inv_step, 0.f), (float) (_rows - 2));
+                    int c = std::min((int) gx, _cols - 2);
+                    int r = std::min((int) gy, _rows - 2);
+                    float fx = gx - c;
+                    float fy = gy - r;
+                    int i00 = r * _cols + c;
+                    int i10 = i00 + _cols;
+                    float top_x = _x[i00] + (_x[i00 + 1] - _x[i00]) * fx;
+                    float bottom_x = _x[i10] + (_x[i10 + 1] - _x[i10]) * fx;
+                    float top_y = _y[i00] + (_y[i00 + 1] - _y[i00]) * fx;
+                    float bottom_y = _y[i10] + (_y[i10 + 1] - _y[i10]) * fx;
+                    x[i] = top_x + (bottom_x - top_x) * fy;
+                    y[i] = top_y + (bottom_y - top_y) * fy;
+                }
+            }
+
+        private:
+            int _width = 0;
+            int _height = 0;
+            int _step = 1;
+            int _cols = 0;
+            int _rows = 0;
+            std::vector<float> _x;
+            std::vector<float> _y;
+        };
+
+        // normalized coordinates to pixels of a pinhole camera, in place
+        inline void project_pinhole(const FovIntrinsics &k, float *x, float *y, int n) {
+            for (int i = 0; i < n; i++) {
+                x[i] = x[i] * k.fx + k.cx;
+                y[i] = y[i] * k.fy + k.cy;
+            }
+        }
+
+        // row major 3x3 homography applied in place, points mapped behind the camera become NaN
+        inline void apply_homography(const float *h, float *x, float *y, int n) {
+            float nan = std::numeric_limits<float>::quiet_NaN();
+            for (int i = 0; i < n; i++) {
+                float px = h[0] * x[i] + h[1] * y[i] + h[2];
+                float py = h[3] * x[i] + h[4] * y[i] + h[5];
+                float pw = h[6] * x[i] + h[7] * y[i] + h[8];
+                float inv = pw > 1e-9f ? 1.f / pw : nan;
+                x[i] = px * inv;
+                y[i] = py * inv;
+            }
+        }
+
+        // Euclidean distance from (origin_x, origin_y) scaled by units_to_m, -1 for NaN points and
+        // points further than max_m
+        inline void ground_distance(const float *x, const float *y, float *distance, int n,
+                                    float origin_x, float origin_y, float units_to_m, float max_m) {
+            for (int i = 0; i < n; i++) {
+                float dx = x[i] - origin_x;
+                float dy = y[i] - origin_y;
+                float d = std::sqrt(dx * dx + dy * dy) * units_to_m;
+                distance[i] = d <= max_m ? d : -1.f;
+            }
+        }
+    }
+}
+
+#endif //FISHEYEGEOMETRY_H
@@ -0,0 +1,141 @@
+//
+// Wire format of the local inference service and a blocking client for it.
+// Only depends on libc so client apps and the host load test can include it as is.
+//
+
+#ifndef INFERENCEPROTOCOL_H
+#define INFERENCEPROTOCOL_H
+
+#include <algorithm>
+#include <cerrno>
+#include <cstddef>
+#include <cstdint>
+#include <cstring>
+#include <string>
+#include <sys/socket.h>
+#include <sys/un.h>
+#include <unistd.h>
+#include <vector>
+
+#include "DetectionRing.h"
+
+namespace ninebot_algo {
+    namespace cnn_ninebot {
+
+        static const uint32_t INFERENCE_REQUEST_MAGIC = 0x51524941;   // "AIRQ"
+        static const uint32_t INFERENCE_RESPONSE_MAGIC = 0x53524941;  // "AIRS"
+        static const uint32_t INFERENCE_MAX_PAYLOAD = 64 * 1024 * 1024;
+
+        enum InferenceStatus {
+            INFERENCE_OK = 0,
+            INFERENCE_BAD_FORMAT = 1,
+            INFERENCE_NOT_READY = 2,
+        };
+
+        // followed by payload_size bytes of frame data (NV12 or RGBA8888)
+        struct InferenceRequestHeader {
+            uint32_t magic;
+            uint32_t request_id;
+            int32_t format;
+            int32_t width;
+            int32_t height;
+            uint32_t payload_size;
+            int64_t timestamp;
+        };
+
+        // followed by count DetectionRingBox records in frame pixels
+        struct InferenceResponseHeader {
+            uint32_t magic;
+            uint32_t request_id;
+            int32_t status;
+            int32_t count;
+            int64_t timestamp;
+        };
+
+        inline bool read_fully(int fd, void *buffer, size_t size) {
+            uint8_t *p = (uint8_t *) buffer;
+            while (size > 0) {
+                ssize_t n = ::read(fd, p, size);
+                if (n < 0 && errno == EINTR)
+                    continue;
+                if (n <= 0)
+                    return false;
+                p += n;
+                size -= n;
+            }
+            return true;
+        }
+
+        inline bool write_fully(int fd, const void *buffer, size_t size) {
+            const uint8_t *p = (const uint8_t *) buffer;
+            while (size > 0) {
+                ssize_t n = ::send(fd, p, size, MSG_NOSIGNAL);
+                if (n < 0 && errno == EINTR)
+                    continue;
+                if (n <= 0)
+                    return false;
+                p += n;
+                size -= n;
+            }
+            return true;
+        }
+
+        // "@name" is an abstract socket (no file, Linux/Android only), anything else a filesystem path
+        inline socklen_t make_socket_address(const std::string &name, sockaddr_un &addr) {
+            memset(&addr, 0, sizeof(addr));
+            addr.sun_family = AF_UNIX;
+            size_t len = std::min(name.size(), sizeof(addr.sun_path) - 1);
+            memcpy(addr.sun_path, name.data(), len);
+            if (len > 0 && name[0] == '@')
+                addr.sun_path[0] = '\0';
+            return (socklen_t) (offsetof(sockaddr_un, sun_path) + len);
+        }
+
+        // One connection, requests may be pipelined: send several frames, then receive their
+        // results in order.
+        class InferenceClient {
+        public:
+            ~InferenceClient() { disconnect(); }
+
+            bool connect(const std::string &name) {
+                disconnect();
+                _fd = socket(AF_UNIX, SOCK_STREAM, 0);
+                if (_fd < 0)
+                    return false;
+                sockaddr_un addr;
+                socklen_t len = make_socket_address(name, addr);
+                if (::connect(_fd, (sockaddr *) &addr, len) != 0) {
+                    disconnect();
+                    return false;
+                }
+                return true;
+            }
+
+            void disconnect() {
+                if (_fd >= 0)
+                    ::close(_fd);
+                _fd = -1;
+            }
+
+            bool send_frame(uint32_t request_id, int32_t format, int32_t width, int32_t height,
+                            int64_t timestamp, const void *data, uint32_t size) {
+                InferenceRequestHeader header = {INFERENCE_REQUEST_MAGIC, request_id, format, width, height,
+                                                 size, timestamp};
+                return write_fully(_fd, &header, sizeof(header)) && write_fully(_fd, data, size);
+            }
+
+            bool receive_result(InferenceResponseHeader &header, std::vector<DetectionRingBox> &boxes) {
+                if (!read_fully(_fd, &header, sizeof(header)) || header.magic != INFERENCE_RESPONSE_MAGIC
+                    || header.count < 0)
+                    return false;
+                boxes.resize(header.count);
+                return header.count == 0 || read_fully(_fd, boxes.data(), header.count * sizeof(DetectionRingBox));
+            }
+
+        private:
+            int _fd = -1;
+        };
+    }
+}
+
+#endif //INFERENCEPROTOCOL_H
@@ -0,0 +1,204 @@
+#include "InferenceServer.h"
+
+#include <sys/socket.h>
+#include <sys/un.h>
+#include <unistd.h>
+
+using namespace ninebot_algo;
+using namespace cnn_ninebot;
+
+struct InferenceServer::Connection {
+    int fd;
+    std::mutex write_mutex;
+
+    explicit Connection(int fd) : fd(fd) {}
+
+    ~Connection() {
+        ::close(fd);
+    }
+};
+
+InferenceServer::InferenceServer(BatchDetector detector, int max_batch, int max_pending)
+        : _detector(detector), _max_batch(std::max(1, max_batch)),
+          _max_pending(std::max(max_pending, max_batch)),
+          _running(false), _request_count(0), _batch_count(0) {
+}
+
+InferenceServer::~InferenceServer() {
+    stop();
+    for (Request *request : _free_requests)
+        delete request;
+}
+
+bool InferenceServer::start(const std::string &name) {
+    if (_running)
+        return false;
+    _listen_fd = socket(AF_UNIX, SOCK_STREAM, 0);
+    if (_listen_fd < 0)
+        return false;
+    sockaddr_un addr;
+    socklen_t len = make_socket_address(name, addr);
+    if (name.empty() || name[0] != '@')
+        unlink(name.c_str());
+    if (bind(_listen_fd, (sockaddr *) &addr, len) != 0 || listen(_listen_fd, 8) != 0) {
+        ::close(_listen_fd);
+        _listen_fd = -1;
+        return false;
+    }
+    _running = true;
+    _worker_thread = std::thread(&InferenceServer::worker_loop, this);
+    _accept_thread = std::thread(&InferenceServer::accept_loop, this);
+    return true;
+}
+
+void InferenceServer::stop() {
+    if (!_running.exchange(false))
+        return;
+    // wake up accept() and every blocking read()
+    shutdown(_listen_fd, SHUT_RDWR);
+    {
+        std::lock_guard<std::mutex> guard(_clients_mutex);
+        for (Client &client : _clients) {
+            std::shared_ptr<Connection> connection = client.connection.lock();
+            if (connection)
+                shutdown(connection->fd, SHUT_RDWR);
+        }
+    }
+    _queue_not_empty.notify_all();
+    _queue_not_full.notify_all();
+    _accept_thread.join();
+    ::close(_listen_fd);
+    _listen_fd = -1;
+    {
+        std::lock_guard<std::mutex> guard(_clients_mutex);
+        for (Client &client : _clients)
+            client.thread.join();
+        _clients.clear();
+    }
+    _worker_thread.join();
+    std::lock_guard<std::mutex> guard(_queue_mutex);
+    for (Request *request : _queue)
+        recycle_request(request);
+    _queue.clear();
+}
+
+InferenceServer::Request *InferenceServer::obtain_request() {
+    std::lock_guard<std::mutex> guard(_queue_mutex);
+    if (_free_requests.empty())
+        return new Request();
+    Request *request = _free_requests.back();
+    _free_requests.pop_back();
+    return request;
+}
+
+// _queue_mutex must be held
+void InferenceServer::recycle_request(Request *request) {
+    request->connection.reset();
+    _free_requests.push_back(request);
+}
+
+void InferenceServer::accept_loop() {
+    while (_running) {
+        int fd = accept(_listen_fd, nullptr, nullptr);
+        if (fd < 0) {
+            if (errno == EINTR)
+                continue;
+            break;
+        }
+        std::shared_ptr<Connection> connection = std::make_shared<Connection>(fd);
+        std::lock_guard<std::mutex> guard(_clients_mutex);
+        if (!_running) {
+            break;
+        }
+        // clients come and go for the lifetime of the service, do not keep their threads around
+        reap_clients_locked();
+        Client client;
+        client.connection = connection;
+        client.finished = std::make_shared<std::atomic<bool>>(false);
+        client.thread = std::thread(&InferenceServer::client_loop, this, connection, client.finished);
+        _clients.push_back(std::move(client));
+    }
+}
+
+void InferenceServer::reap_clients_locked() {
+    for (auto it = _clients.begin(); it != _clients.end();) {
+        if (*it->finished) {
+            it->thread.join();
+            it = _clients.erase(it);
+        } else {
+            ++it;
+        }
+    }
+}
+
+int InferenceServer::client_count() {
+    std::lock_guard<std::mutex> guard(_clients_mutex);
+    return (int) _clients.size();
+}
+
+void InferenceServer::client_loop(std::shared_ptr<Connection> connection, std::shared_ptr<std::atomic<bool>> finished) {
+    while (_running) {
+        Request *request = obtain_request();
+        InferenceRequestHeader &header = request->header;
+        bool ok = read_fully(connection->fd, &header, sizeof(header))
+                  && header.magic == INFERENCE_REQUEST_MAGIC && header.payload_size <= INFERENCE_MAX_PAYLOAD;
+        if (ok) {
+            // payload buffers are recycled with the request, so steady state does not allocate
+            request->payload.resize(header.payload_size);
+            ok = read_fully(connection->fd, request->payload.data(), header.payload_size);
+        }
+        std::unique_lock<std::mutex> lock(_queue_mutex);
+        if (!ok) {
+            recycle_request(request);
+            break;
+        }
+        // back pressure: a client that outruns the engine blocks on its own socket
+        _queue_not_full.wait(lock, [this] { return !_running || (int) _queue.size() < _max_pending; });
+        if (!_running) {
+            recycle_request(request);
+            break;
+        }
+        request->connection = connection;
+        _queue.push_back(request);
+        _queue_not_empty.notify_one();
+    }
+    // the socket closes with the last pending response, the thread is joined on the next accept
+    *finished = true;
+}
+
+void InferenceServer::worker_loop() {
+    std::vector<Request *> batch;
+    while (true) {
+        {
+            std::unique_lock<std::mutex> lock(_queue_mutex);
+            _queue_not_empty.wait(lock, [this] { return !_running || !_queue.empty(); });
+            if (!_running)
+                return;
+            // take everything pending at once, up to max_batch
+            batch.clear();
+            while (!_queue.empty() && (int) batch.size() < _max_batch) {
+                batch.push_back(_queue.front());
+                _queue.pop_front();
+            }
+            _queue_not_full.notify_all();
+        }
+
+        _detector(batch);
+        _batch_count++;
+        _request_count += batch.size();
+
+        for (Request *request : batch) {
+            InferenceResponseHeader header = {INFERENCE_RESPONSE_MAGIC, request->header.request_id,
+                                              request->status, (int32_t) request->boxes.size(),
+                                              request->header.timestamp};
+            Connection *connection = request->connection.get();
+            std::lock_guard<std::mutex> guard(connection->write_mutex);
+            if (write_fully(connection->fd, &header, sizeof(header)) && !request->boxes.empty())
+                write_fully(connection->fd, request->boxes.data(), request->boxes.size() * sizeof(DetectionRingBox));
+        }
+
+        std::lock_guard<std::mutex> guard(_queue_mutex);
+        for (Request *request : batch)
+            recycle_request(request);
+    }
+}
@@ -0,0 +1,89 @@
+//
+// Local-socket inference service: several client apps share one engine (and one copy of the
+// weights) instead of embedding their own. Requests of all clients that are pending at the same
+// time are handed to the detector as one batch, results are streamed back per request.
+//
+
+#ifndef INFERENCESERVER_H
+#define INFERENCESERVER_H
+
+#include <atomic>
+#include <condition_variable>
+#include <deque>
+#include <functional>
+#include <memory>
+#include <mutex>
+#include <string>
+#include <thread>
+#include <vector>
+
+#include "InferenceProtocol.h"
+
+namespace ninebot_algo {
+    namespace cnn_ninebot {
+
+        class InferenceServer {
+        public:
+            struct Connection;
+
+            struct Request {
+                std::shared_ptr<Connection> connection;
+                InferenceRequestHeader header;
+                std::vector<uint8_t> payload;
+                int32_t status;
+                std::vector<DetectionRingBox> boxes;
+            };
+
+            // fill status and boxes of every request in the batch
+            typedef std::function<void(std::vector<Request *> &batch)> BatchDetector;
+
+            InferenceServer(BatchDetector detector, int max_batch, int max_pending);
+            ~InferenceServer();
+
+            bool start(const std::string &name);
+            void stop();
+            bool is_running() const { return _running; }
+
+            uint64_t request_count() const { return _request_count; }
+            uint64_t batch_count() const { return _batch_count; }
+            // clients whose thread has not been joined yet, finished ones are reaped on accept
+            int client_count();
+
+        private:
+            void accept_loop();
+            void client_loop(std::shared_ptr<Connection> connection, std::shared_ptr<std::atomic<bool>> finished);
+            // join the threads of clients that disconnected, _clients_mutex must be held
+            void reap_clients_locked();
+            void worker_loop();
+            Request *obtain_request();
+            void recycle_request(Request *request);
+
+            BatchDetector _detector;
+            int _max_batch;
+            int _max_pending;
+            int _listen_fd = -1;
+            std::atomic<bool> _running;
+            std::atomic<uint64_t> _request_count;
+            std::atomic<uint64_t> _batch_count;
+
+            std::mutex _queue_mutex;
+            std::condition_variable _queue_not_empty;
+            std::condition_variable _queue_not_full;
+            std::deque<Request *> _queue;
+            std::vector<Request *> _free_requests;
+
+            struct Client {
+                std::weak_ptr<Connection> connection;
+                std::thread thread;
+                std::shared_ptr<std::atomic<bool>> finished;    // set when client_loop returns
+            };
+
+            std::mutex _clients_mutex;
+            std::vector<Client> _clients;
+            std::thread _accept_thread;
+            std::thread _worker_thread;
+        };
+    }
+}
+
+#endif //INFERENCESERVER_H
@@ -0,0 +1,119 @@
+//
+// Picks the network input size from the measured inference latency so a throttled board keeps a
+// bounded reaction time at a lower resolution instead of falling behind at full resolution.
+// Only depends on libc so the host test can include it as is.
+//
+
+#ifndef INPUTSIZECONTROLLER_H
+#define INPUTSIZECONTROLLER_H
+
+#include <algorithm>
+#include <vector>
+
+namespace ninebot_algo {
+    namespace cnn_ninebot {
+
+        // Steps down one size when the smoothed latency goes over the budget and back up when the
+        // latency predicted at the next size (cost ~ pixel count) is well under it. Every switch is
+        // followed by a dwell period, and an upgrade that has to be undone soon after doubles the
+        // dwell before the next upgrade, so the size does not flap around the budget.
+        class InputSizeController {
+        public:
+            struct Options {
+                float budget_ms = 0;            // <= 0 keeps the largest size
+                float smoothing = 0.2f;         // weight of the newest frame in the moving average
+                float upgrade_margin = 0.75f;   // predicted latency / budget that allows a step up
+                int downgrade_dwell = 10;       // frames after a switch before stepping down
+                int upgrade_dwell = 60;         // frames after a switch before stepping up
+                int max_backoff = 16;           // cap of the upgrade dwell multiplier
+            };
+
+            // sizes in any order, the controller starts at the largest
+            void configure(const std::vector<int> &sizes, const Options &options) {
+                _sizes = sizes;
+                std::sort(_sizes.begin(), _sizes.end());
+                _sizes.erase(std::unique(_sizes.begin(), _sizes.end()), _sizes.end());
+                _options = options;
+                _index = _sizes.empty() ? -1 : (int) _sizes.size() - 1;
+                _average_ms = -1;
+                _frames = 0;
+                _backoff = 1;
+                _upgraded = false;
+            }
+
+            void set_budget(float budget_ms) {
+                _options.budget_ms = budget_ms;
+                _frames = 0;
+                _backoff = 1;
+                if (budget_ms <= 0 && !_sizes.empty())
+                    switch_to((int) _sizes.size() - 1);
+            }
+
+            // feed the latency of the frame that just ran, return the size for the next one
+            int update(float latency_ms) {
+                if (_index < 0)
+                    return 0;
+                _average_ms = _average_ms < 0 ? latency_ms
+                                              : _average_ms + _options.smoothing * (latency_ms - _average_ms);
+                _frames++;
+                if (_options.budget_ms <= 0)
+                    return size();
+                if (_upgraded && _frames > 2 * _options.upgrade_dwell * _backoff) {
+                    // the last step up held, trust the prediction again
+                    _upgraded = false;
+                    _backoff = 1;
+                }
+                if (_average_ms > _options.budget_ms && _index > 0 && _frames >= _options.downgrade_dwell) {
+                    if (_upgraded)
+                        _backoff = std::min(_backoff * 2, _options.max_backoff);
+                    _upgraded = false;
+                    switch_to(_index - 1);
+                } else if (_index + 1 < (int) _sizes.size() && _frames >= _options.upgrade_dwell * _backoff &&
+                           predicted_ms(_index + 1) < _options.budget_ms * _options.upgrade_margin) {
+                    _upgraded = true;
+                    switch_to(_index + 1);
+                }
+                return size();
+            }
+
+            // a size that turned out to be unusable, the controller stays at current
+            void reject(int size, int current) {
+                _sizes.erase(std::remove(_sizes.begin(), _sizes.end(), size), _sizes.end());
+                auto it = std::find(_sizes.begin(), _sizes.end(), current);
+                _index = it != _sizes.end() ? (int) (it - _sizes.begin()) : (int) _sizes.size() - 1;
+                _frames = 0;
+            }
+
+            int size() const { return _index < 0 ? 0 : _sizes[_index]; }
+            const std::vector<int> &sizes() const { return _sizes; }
+            float average_ms() const { return _average_ms; }
+            float budget_ms() const { return _options.budget_ms; }
+
+        private:
+            float predicted_ms(int index) const {
+                float ratio = (float) _sizes[index] / _sizes[_index];
+                return _average_ms * ratio * ratio;
+            }
+
+            void switch_to(int index) {
+                if (index == _index)
+                    return;
+                // carry the average over so the dwell starts from a sensible estimate
+                if (_average_ms >= 0)
+                    _average_ms = predicted_ms(index);
+                _index = index;
+                _frames = 0;
+            }
+
+            std::vector<int> _sizes;
+            Options _options;
+            int _index = -1;
+            float _average_ms = -1;
+            int _frames = 0;
+            int _backoff = 1;
+            bool _upgraded = false;
+        };
+    }
+}
+
+#endif //INPUTSIZECONTROLLER_H
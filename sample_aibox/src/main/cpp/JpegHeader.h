@@ -0,0 +1,68 @@
+//
+// JPEG size from the frame header, read before decoding so the decoder can be asked for a
+// reduced scale (libjpeg decodes at 1/2, 1/4 and 1/8 for a fraction of the work) that still
+// covers the network input. Only depends on libc, so the host test can include it as is.
+//
+
+#ifndef JPEGHEADER_H
+#define JPEGHEADER_H
+
+#include <cstddef>
+
+namespace ninebot_algo {
+    namespace cnn_ninebot {
+
+        // Width and height from the first SOFn marker, false when data is not a JPEG or ends
+        // before the frame header.
+        inline bool jpeg_dimensions(const unsigned char *data, size_t size, int *width, int *height) {
+            if (size < 4 || data[0] != 0xFF || data[1] != 0xD8)
+                return false;
+            size_t p = 2;
+            while (p + 4 <= size) {
+                if (data[p] != 0xFF)
+                    return false;
+                unsigned char marker = data[p + 1];
+                // fill bytes before a marker
+                if (marker == 0xFF) {
+                    p++;
+                    continue;
+                }
+                p += 2;
+                // markers without a segment
+                if (marker == 0x01 || (marker >= 0xD0 && marker <= 0xD7))
+                    continue;
+                // end of image or start of scan before any frame header
+                if (marker == 0xD9 || marker == 0xDA)
+                    return false;
+                size_t length = ((size_t) data[p] << 8) | data[p + 1];
+                if (length < 2 || p + length > size)
+                    return false;
+                // SOF0..SOF15, except DHT, JPG and DAC which share the range
+                if (marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC) {
+                    if (length < 7)
+                        return false;
+                    *height = (data[p + 3] << 8) | data[p + 4];
+                    *width = (data[p + 5] << 8) | data[p + 6];
+                    return *width > 0 && *height > 0;
+                }
+                p += length;
+            }
+            return false;
+        }
+
+        // The largest libjpeg scale denominator (1, 2, 4 or 8) whose decoded image is still at
+        // least min_side on both sides. libjpeg rounds the scaled size up.
+        inline int jpeg_reduction(int width, int height, int min_side) {
+            int reduction = 1;
+            while (reduction < 8) {
+                int next = reduction * 2;
+                if ((width + next - 1) / next < min_side || (height + next - 1) / next < min_side)
+                    break;
+                reduction = next;
+            }
+            return reduction;
+        }
+    }
+}
+
+#endif //JPEGHEADER_H
@@ -0,0 +1,241 @@
+#include "ModelRegistry.h"
+
+#include <android/log.h>
+#include <chrono>
+
+#include "TraceRing.h"
+
+#define REGISTRY_LOG_TAG "aibox_models"
+#define REGISTRY_LOG(...) __android_log_print(ANDROID_LOG_DEBUG, REGISTRY_LOG_TAG, __VA_ARGS__)
+
+namespace ninebot_algo {
+    namespace cnn_ninebot {
+
+        void ModelRegistry::register_model(const std::string &id, const std::string &path) {
+            std::lock_guard<std::mutex> guard(_mutex);
+            _paths[id] = path;
+            _stats[id].path = path;
+        }
+
+        bool ModelRegistry::has_model(const std::string &id) {
+            std::lock_guard<std::mutex> guard(_mutex);
+            return _paths.count(id) != 0;
+        }
+
+        void ModelRegistry::set_memory_budget(size_t bytes) {
+            std::vector<std::pair<Key, Entry>> evicted;
+            {
+                std::lock_guard<std::mutex> guard(_mutex);
+                _budget = bytes;
+                evict_locked(Key(), evicted);
+            }
+            destroy(evicted);
+        }
+
+        void ModelRegistry::set_current(int stream, const std::string &id) {
+            std::lock_guard<std::mutex> guard(_mutex);
+            if (id.empty())
+                _current.erase(stream);
+            else
+                _current[stream] = id;
+        }
+
+        std::shared_ptr<AlgoApplePerception> ModelRegistry::acquire(const std::string &id, int stream, bool *loaded) {
+            Key key(id, stream);
+            std::string path;
+            std::vector<std::pair<Key, Entry>> evicted;
+            *loaded = false;
+            {
+                std::unique_lock<std::mutex> guard(_mutex);
+                _load_done.wait(guard, [&] { return _loading.count(key) == 0; });
+                auto it = _entries.find(key);
+                if (it != _entries.end() && it->second.algo->isReady()) {
+                    it->second.last_used = ++_clock;
+                    return it->second.algo;
+                }
+                if (it != _entries.end())
+                    _entries.erase(it);
+                auto path_it = _paths.find(id);
+                if (path_it == _paths.end())
+                    return nullptr;
+                path = path_it->second;
+                _loading.insert(key);
+            }
+
+            // the load runs outside the registry lock so other streams keep detecting
+            TRACE_SCOPE("model_load");
+            auto start = std::chrono::high_resolution_clock::now();
+            std::shared_ptr<AlgoApplePerception> algo = std::make_shared<AlgoApplePerception>(path);
+            std::chrono::duration<double, std::milli> elapsed = std::chrono::high_resolution_clock::now() - start;
+            *loaded = true;
+            if (!algo->isReady()) {
+                {
+                    std::lock_guard<std::mutex> guard(_mutex);
+                    _loading.erase(key);
+                }
+                _load_done.notify_all();
+                return algo;
+            }
+
+            Entry entry;
+            entry.algo = algo;
+            entry.path = path;
+            entry.model_bytes = algo->modelBytes();
+            entry.tensor_bytes = algo->tensorBytes();
+            size_t resident;
+            {
+                std::lock_guard<std::mutex> guard(_mutex);
+                entry.last_used = ++_clock;
+                _entries[key] = entry;
+                _loading.erase(key);
+                ModelStats &stats = _stats[id];
+                stats.loads++;
+                stats.last_load_ms = elapsed.count();
+                evict_locked(key, evicted);
+                resident = resident_bytes_locked();
+            }
+            _load_done.notify_all();
+            destroy(evicted);
+            REGISTRY_LOG("model %s loaded for stream %d in %f ms, %zu bytes mapped, %zu bytes of tensors, %zu resident",
+                         id.c_str(), stream, elapsed.count(), entry.model_bytes, entry.tensor_bytes, resident);
+            TRACE_COUNTER("model_resident_bytes", resident);
+            return algo;
+        }
+
+        std::shared_ptr<AlgoApplePerception> ModelRegistry::find(const std::string &id, int stream) {
+            std::lock_guard<std::mutex> guard(_mutex);
+            auto it = _entries.find(Key(id, stream));
+            return it != _entries.end() ? it->second.algo : nullptr;
+        }
+
+        void ModelRegistry::unload(const std::string &id, int stream) {
+            std::shared_ptr<AlgoApplePerception> unloaded;
+            {
+                std::lock_guard<std::mutex> guard(_mutex);
+                auto it = _entries.find(Key(id, stream));
+                if (it == _entries.end())
+                    return;
+                unloaded = it->second.algo;
+                _entries.erase(it);
+            }
+            // released outside the lock
+            unloaded.reset();
+        }
+
+        void ModelRegistry::unload(int stream) {
+            std::vector<std::pair<Key, Entry>> unloaded;
+            {
+                std::lock_guard<std::mutex> guard(_mutex);
+                for (auto it = _entries.begin(); it != _entries.end();) {
+                    if (it->first.second == stream) {
+                        unloaded.push_back(*it);
+                        it = _entries.erase(it);
+                    } else {
+                        ++it;
+                    }
+                }
+            }
+            // released outside the lock, explicit unloads do not count as evictions
+            unloaded.clear();
+        }
+
+        std::vector<std::shared_ptr<AlgoApplePerception>> ModelRegistry::engines(int stream) {
+            std::lock_guard<std::mutex> guard(_mutex);
+            std::vector<std::shared_ptr<AlgoApplePerception>> result;
+            for (auto &it : _entries) {
+                if (stream == ALL_STREAMS || it.first.second == stream)
+                    result.push_back(it.second.algo);
+            }
+            return result;
+        }
+
+        size_t ModelRegistry::resident_bytes() {
+            std::lock_guard<std::mutex> guard(_mutex);
+            return resident_bytes_locked();
+        }
+
+        std::map<std::string, ModelRegistry::ModelStats> ModelRegistry::stats() {
+            std::vector<std::pair<Key, std::shared_ptr<AlgoApplePerception>>> loaded;
+            {
+                std::lock_guard<std::mutex> guard(_mutex);
+                for (auto &it : _entries)
+                    loaded.push_back(std::make_pair(it.first, it.second.algo));
+            }
+            // interpreters are added when an engine switches input size, count them again
+            std::vector<size_t> tensor_bytes;
+            for (auto &it : loaded)
+                tensor_bytes.push_back(it.second->tensorBytes());
+
+            std::lock_guard<std::mutex> guard(_mutex);
+            for (size_t i = 0; i < loaded.size(); i++) {
+                auto it = _entries.find(loaded[i].first);
+                if (it != _entries.end() && it->second.algo == loaded[i].second)
+                    it->second.tensor_bytes = tensor_bytes[i];
+            }
+            std::map<std::string, ModelStats> result = _stats;
+            std::map<std::string, size_t> mapped;
+            for (auto &it : _entries) {
+                ModelStats &stats = result[it.first.first];
+                stats.engines++;
+                stats.resident_bytes += it.second.tensor_bytes;
+                // a file mapped by several engines is resident once
+                if (mapped.insert(std::make_pair(it.second.path, it.second.model_bytes)).second)
+                    stats.resident_bytes += it.second.model_bytes;
+            }
+            return result;
+        }
+
+        size_t ModelRegistry::resident_bytes_locked() const {
+            size_t bytes = 0;
+            std::map<std::string, size_t> mapped;
+            for (auto &it : _entries) {
+                bytes += it.second.tensor_bytes;
+                mapped[it.second.path] = it.second.model_bytes;
+            }
+            for (auto &it : mapped)
+                bytes += it.second;
+            return bytes;
+        }
+
+        void ModelRegistry::evict_locked(const Key &keep, std::vector<std::pair<Key, Entry>> &evicted) {
+            if (_budget == 0)
+                return;
+            while (resident_bytes_locked() > _budget) {
+                // an engine referenced outside the registry is detecting right now, and the engine
+                // of a stream's current model detects its next frame, both stay
+                auto lru = _entries.end();
+                for (auto it = _entries.begin(); it != _entries.end(); ++it) {
+                    auto current = _current.find(it->first.second);
+                    if (it->first != keep && it->second.algo.use_count() == 1
+                        && (current == _current.end() || current->second != it->first.first)
+                        && (lru == _entries.end() || it->second.last_used < lru->second.last_used))
+                        lru = it;
+                }
+                if (lru == _entries.end()) {
+                    REGISTRY_LOG("%zu bytes resident over a budget of %zu, nothing idle to unload",
+                                 resident_bytes_locked(), _budget);
+                    return;
+                }
+                _stats[lru->first.first].evictions++;
+                evicted.push_back(*lru);
+                _entries.erase(lru);
+            }
+        }
+
+        void ModelRegistry::destroy(std::vector<std::pair<Key, Entry>> &evicted) {
+            for (auto &it : evicted) {
+                auto start = std::chrono::high_resolution_clock::now();
+                // the last reference, this unmaps the weights when no other engine uses the file
+                it.second.algo.reset();
+                std::chrono::duration<double, std::milli> elapsed = std::chrono::high_resolution_clock::now() - start;
+                {
+                    std::lock_guard<std::mutex> guard(_mutex);
+                    _stats[it.first.first].last_evict_ms = elapsed.count();
+                }
+                REGISTRY_LOG("model %s unloaded from stream %d in %f ms", it.first.first.c_str(), it.first.second,
+                             elapsed.count());
+            }
+            evicted.clear();
+        }
+    }
+}
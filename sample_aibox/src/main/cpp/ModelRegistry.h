@@ -0,0 +1,97 @@
+//
+// Detector models by id, so a task can switch between models (fruits, seasons, quantized
+// variants) without restarting. Engines are loaded on first use per (model, stream) with the
+// weights memory-mapped, and the least recently used idle engines are unloaded while the resident
+// total is over the memory budget.
+//
+
+#ifndef MODELREGISTRY_H
+#define MODELREGISTRY_H
+
+#include <condition_variable>
+#include <map>
+#include <memory>
+#include <mutex>
+#include <set>
+#include <string>
+#include <utility>
+#include <vector>
+
+#include "AlgoApplePerception.h"
+
+namespace ninebot_algo {
+    namespace cnn_ninebot {
+
+        class ModelRegistry {
+        public:
+            // what one model costs and how often it moved in and out
+            struct ModelStats {
+                std::string path;
+                int engines = 0;            // engines loaded now
+                size_t resident_bytes = 0;  // mapped weights once plus the tensors of every engine
+                uint64_t loads = 0;
+                uint64_t evictions = 0;
+                double last_load_ms = 0;
+                double last_evict_ms = 0;
+            };
+
+            // replaces the path of an existing id, loaded engines keep the old file until unloaded
+            void register_model(const std::string &id, const std::string &path);
+            bool has_model(const std::string &id);
+            // 0 disables eviction
+            void set_memory_budget(size_t bytes);
+            // the model a stream detects with, its engine is never evicted. An empty id forgets
+            // the stream.
+            void set_current(int stream, const std::string &id);
+
+            // The engine of model id for a stream, loaded when it is not resident. A call for a
+            // (model, stream) that another thread is loading waits for that load, so one engine is
+            // only ever loaded once even when a background swap races the stream's own detection;
+            // loaded tells whether this call created it. An engine whose model could not be loaded
+            // is created again on the next call. Null for an unknown id.
+            std::shared_ptr<AlgoApplePerception> acquire(const std::string &id, int stream, bool *loaded);
+            // the resident engine without touching the LRU order, null if not loaded
+            std::shared_ptr<AlgoApplePerception> find(const std::string &id, int stream);
+            // drop the engine of a model for a stream, if resident
+            void unload(const std::string &id, int stream);
+            // drop every engine of a stream
+            void unload(int stream);
+            // resident engines of a stream, or of every stream with stream == ALL_STREAMS
+            std::vector<std::shared_ptr<AlgoApplePerception>> engines(int stream);
+
+            size_t resident_bytes();
+            std::map<std::string, ModelStats> stats();
+
+            static const int ALL_STREAMS = 0x7fffffff;
+
+        private:
+            typedef std::pair<std::string, int> Key;
+
+            struct Entry {
+                std::shared_ptr<AlgoApplePerception> algo;
+                std::string path;
+                size_t model_bytes = 0;
+                size_t tensor_bytes = 0;
+                uint64_t last_used = 0;
+            };
+
+            size_t resident_bytes_locked() const;
+            // pick idle LRU entries to unload until the total fits, never the one just acquired
+            // nor the current model of a stream
+            void evict_locked(const Key &keep, std::vector<std::pair<Key, Entry>> &evicted);
+            void destroy(std::vector<std::pair<Key, Entry>> &evicted);
+
+            std::mutex _mutex;
+            std::map<std::string, std::string> _paths;
+            std::map<Key, Entry> _entries;
+            std::set<Key> _loading;                 // engines being loaded outside the lock
+            std::condition_variable _load_done;
+            std::map<std::string, ModelStats> _stats;
+            std::map<int, std::string> _current;    // model id by stream
+            size_t _budget = 0;
+            uint64_t _clock = 0;
+        };
+    }
+}
+
+#endif //MODELREGISTRY_H
@@ -0,0 +1,90 @@
+#include "PresenceClassifier.h"
+
+#include <android/log.h>
+#include <chrono>
+
+#include "tensorflow/lite/interpreter.h"
+#include "tensorflow/lite/kernels/register.h"
+#include "tensorflow/lite/model.h"
+
+#define PRESENCE_LOG_TAG "aibox_presence"
+#define PRESENCE_LOG(...) __android_log_print(ANDROID_LOG_DEBUG, PRESENCE_LOG_TAG, __VA_ARGS__)
+
+namespace ninebot_algo {
+    namespace cnn_ninebot {
+
+        PresenceClassifier::PresenceClassifier(const std::string &path, int num_threads) : _path(path) {
+            _model = tflite::FlatBufferModel::BuildFromFile(path.c_str());
+            if (!_model) {
+                PRESENCE_LOG("failed to load presence model %s", path.c_str());
+                return;
+            }
+            tflite::ops::builtin::BuiltinOpResolver resolver;
+            std::unique_ptr<tflite::Interpreter> interpreter;
+            tflite::InterpreterBuilder(*_model, resolver)(&interpreter);
+            if (!interpreter) {
+                PRESENCE_LOG("failed to build interpreter for %s", path.c_str());
+                return;
+            }
+            interpreter->SetNumThreads(num_threads > 0 ? num_threads : 1);
+            if (interpreter->AllocateTensors() != kTfLiteOk) {
+                PRESENCE_LOG("failed to allocate tensors for %s", path.c_str());
+                return;
+            }
+            const TfLiteTensor *input = interpreter->tensor(interpreter->inputs()[0]);
+            if (input->dims->size != 4 || input->dims->data[3] != 3 ||
+                (input->type != kTfLiteFloat32 && input->type != kTfLiteUInt8)) {
+                PRESENCE_LOG("%s: expected a float or uint8 1xHxWx3 input", path.c_str());
+                return;
+            }
+            _input_h = input->dims->data[1];
+            _input_w = input->dims->data[2];
+            _float_input = input->type == kTfLiteFloat32;
+            _resized.create(_input_h, _input_w, CV_8UC3);
+            _interpreter = std::move(interpreter);
+            PRESENCE_LOG("presence model %s, input %dx%d %s", path.c_str(), _input_w, _input_h,
+                         _float_input ? "float" : "uint8");
+        }
+
+        // out of line for the unique_ptrs of incomplete types, the interpreter goes before the model
+        PresenceClassifier::~PresenceClassifier() {
+        }
+
+        float PresenceClassifier::score(const cv::Mat &frame) {
+            if (!_interpreter)
+                return -1;
+            // area averaging keeps small targets visible at a few dozen pixels
+            cv::resize(frame, _resized, cv::Size(_input_w, _input_h), 0, 0, cv::INTER_AREA);
+            if (_float_input) {
+                cv::Mat input(_input_h, _input_w, CV_32FC3, _interpreter->typed_input_tensor<float>(0));
+                _resized.convertTo(input, CV_32F, 1.0 / 255, 0);
+            } else {
+                memcpy(_interpreter->typed_input_tensor<uint8_t>(0), _resized.data, _input_w * _input_h * 3);
+            }
+            if (_interpreter->Invoke() != kTfLiteOk)
+                return -1;
+            const TfLiteTensor *output = _interpreter->tensor(_interpreter->outputs()[0]);
+            if (output->type == kTfLiteFloat32) {
+                int count = output->bytes / sizeof(float);
+                return count > 0 ? output->data.f[count - 1] : -1;
+            }
+            if (output->type == kTfLiteUInt8 && output->bytes > 0)
+                return (output->data.uint8[output->bytes - 1] - output->params.zero_point) * output->params.scale;
+            return -1;
+        }
+
+        float PresenceClassifier::warmup(int iterations) {
+            if (!_interpreter)
+                return -1;
+            auto start = std::chrono::high_resolution_clock::now();
+            TfLiteTensor *input = _interpreter->tensor(_interpreter->inputs()[0]);
+            memset(input->data.raw, 0, input->bytes);
+            for (int i = 0; i < iterations; i++) {
+                if (_interpreter->Invoke() != kTfLiteOk)
+                    break;
+            }
+            std::chrono::duration<double, std::milli> elapsed = std::chrono::high_resolution_clock::now() - start;
+            return (float) elapsed.count();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+//
+// First stage of the detection cascade: a small tflite classifier that scores whether a
+// downsampled frame contains any target at all, so the full detector only runs when it might
+// find something. Runs on the cpu, a model of this size does not pay for a delegate.
+//
+
+#ifndef PRESENCECLASSIFIER_H
+#define PRESENCECLASSIFIER_H
+
+#include <memory>
+#include <string>
+
+#include <opencv2/opencv.hpp>
+
+namespace tflite {
+    class Interpreter;
+    class FlatBufferModel;
+}
+
+namespace ninebot_algo {
+    namespace cnn_ninebot {
+
+        class PresenceClassifier {
+        public:
+            // the input size and type (float or uint8) are taken from the model. The output is one
+            // probability of presence, or one score per class with "present" last.
+            PresenceClassifier(const std::string &path, int num_threads);
+            ~PresenceClassifier();
+
+            bool is_ready() const { return _interpreter != nullptr; }
+            const std::string &path() const { return _path; }
+
+            // probability in [0, 1] that a BGR frame contains a target, -1 if inference failed.
+            // The frame is scaled to the model input with the detector's normalization.
+            float score(const cv::Mat &frame);
+
+            // return the warmup cost in ms, -1 if the model is not loaded
+            float warmup(int iterations);
+
+        private:
+            std::string _path;
+            std::unique_ptr<tflite::FlatBufferModel> _model;
+            std::unique_ptr<tflite::Interpreter> _interpreter;
+            int _input_w = 0;
+            int _input_h = 0;
+            bool _float_input = true;
+            cv::Mat _resized;   // reused between frames
+        };
+    }
+}
+
+#endif //PRESENCECLASSIFIER_H
@@ -0,0 +1,194 @@
+//
+// Fixed-size in-memory ring of begin/end/counter events per pipeline stage, written from native
+// code and from java through VisionNative. Recording is a relaxed load when tracing is off and a
+// handful of stores when it is on, so it can stay in the per-frame path. The ring is dumped on
+// demand as Chrome trace-event JSON, open it in chrome://tracing or ui.perfetto.dev.
+// Only depends on libc so the host tools can include it as is.
+//
+
+#ifndef TRACERING_H
+#define TRACERING_H
+
+#include <atomic>
+#include <cstdint>
+#include <cstdio>
+#include <cstring>
+#include <ctime>
+#include <mutex>
+#include <sched.h>
+#include <sys/syscall.h>
+#include <unistd.h>
+
+namespace ninebot_algo {
+    namespace cnn_ninebot {
+
+        class TraceRing {
+        public:
+            static const uint32_t CAPACITY = 16384;     // power of two
+            static const int MAX_NAMES = 128;
+            static const int MAX_NAME_LENGTH = 32;
+
+            static TraceRing &instance() {
+                static TraceRing ring;
+                return ring;
+            }
+
+            // Id of a stage name, registering it on first use. Not for the per-frame path, callers
+            // keep the id. Returns -1 when the name table is full.
+            int name_id(const char *name) {
+                std::lock_guard<std::mutex> guard(_names_mutex);
+                int count = _name_count.load(std::memory_order_relaxed);
+                for (int i = 0; i < count; i++) {
+                    if (strncmp(_names[i], name, MAX_NAME_LENGTH - 1) == 0)
+                        return i;
+                }
+                if (count == MAX_NAMES)
+                    return -1;
+                strncpy(_names[count], name, MAX_NAME_LENGTH - 1);
+                _names[count][MAX_NAME_LENGTH - 1] = '\0';
+                _name_count.store(count + 1, std::memory_order_release);
+                return count;
+            }
+
+            void set_enabled(bool enabled) { _enabled.store(enabled, std::memory_order_relaxed); }
+            bool enabled() const { return _enabled.load(std::memory_order_relaxed); }
+
+            // arg shows up in the event's args when it is not 0
+            void begin(int id, int64_t arg = 0) { record(id, 'B', arg); }
+            void end(int id) { record(id, 'E', 0); }
+            void counter(int id, int64_t value) { record(id, 'C', value); }
+
+            // Write the events still in the ring, oldest first. Writers may keep going, events
+            // overwritten while they are copied are skipped. Returns the number of events written,
+            // -1 if the file can not be written.
+            int dump(const char *path) const {
+                FILE *file = fopen(path, "w");
+                if (file == nullptr)
+                    return -1;
+                int pid = getpid();
+                uint64_t next = _next.load(std::memory_order_acquire);
+                uint64_t first = next > CAPACITY ? next - CAPACITY : 0;
+                int name_count = _name_count.load(std::memory_order_acquire);
+                int written = 0;
+                fprintf(file, "{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+                for (uint64_t seq = first; seq < next; seq++) {
+                    const Event &e = _events[seq & (CAPACITY - 1)];
+                    if (e.seq.load(std::memory_order_acquire) != complete(seq))
+                        continue;
+                    int64_t ts_ns = e.ts_ns;
+                    int64_t arg = e.arg;
+                    int32_t tid = e.tid;
+                    int32_t name = e.name;
+                    char phase = e.phase;
+                    std::atomic_thread_fence(std::memory_order_acquire);
+                    if (e.seq.load(std::memory_order_relaxed) != complete(seq) || name < 0 || name >= name_count)
+                        continue;
+                    fprintf(file, "%s\n{\"name\":\"%s\",\"ph\":\"%c\",\"ts\":%lld.%03d,\"pid\":%d,\"tid\":%d",
+                            written == 0 ? "" : ",", _names[name], phase, (long long) (ts_ns / 1000),
+                            (int) (ts_ns % 1000), pid, tid);
+                    if (phase == 'C')
+                        fprintf(file, ",\"args\":{\"value\":%lld}", (long long) arg);
+                    else if (arg != 0)
+                        fprintf(file, ",\"args\":{\"arg\":%lld}", (long long) arg);
+                    fputc('}', file);
+                    written++;
+                }
+                fprintf(file, "\n]}\n");
+                bool ok = ferror(file) == 0;
+                ok = fclose(file) == 0 && ok;
+                return ok ? written : -1;
+            }
+
+            static int64_t now_ns() {
+                struct timespec ts;
+                clock_gettime(CLOCK_MONOTONIC, &ts);
+                return (int64_t) ts.tv_sec * 1000000000 + ts.tv_nsec;
+            }
+
+        private:
+            // seq is 0 for a slot never written, 2 * index + 1 while event index is written into it
+            // and 2 * index + 2 once it holds event index
+            struct Event {
+                std::atomic<uint64_t> seq;
+                int64_t ts_ns;
+                int64_t arg;
+                int32_t tid;
+                int32_t name;
+                char phase;
+            };
+
+            TraceRing() {
+                for (uint32_t i = 0; i < CAPACITY; i++)
+                    _events[i].seq.store(0, std::memory_order_relaxed);
+            }
+
+            static uint64_t writing(uint64_t index) { return 2 * index + 1; }
+            static uint64_t complete(uint64_t index) { return 2 * index + 2; }
+
+            // Indices a lap apart share a slot. A writer claims the slot by moving seq from the state
+            // an older event left to writing(index): a writer that finds a newer event there was
+            // lapped and drops its own, one that finds an older event still being written waits
+            // for those few stores, so two writers never fill the same slot at once.
+            void record(int id, char phase, int64_t arg) {
+                if (!_enabled.load(std::memory_order_relaxed) || id < 0)
+                    return;
+                static thread_local int32_t tid = (int32_t) syscall(SYS_gettid);
+                uint64_t index = _next.fetch_add(1, std::memory_order_relaxed);
+                Event &e = _events[index & (CAPACITY - 1)];
+                uint64_t seq = e.seq.load(std::memory_order_relaxed);
+                for (;;) {
+                    if (seq != 0 && (seq - 1) / 2 >= index)
+                        return;
+                    if (seq & 1) {
+                        sched_yield();
+                        seq = e.seq.load(std::memory_order_relaxed);
+                        continue;
+                    }
+                    if (e.seq.compare_exchange_weak(seq, writing(index), std::memory_order_acquire,
+                                                    std::memory_order_relaxed))
+                        break;
+                }
+                std::atomic_thread_fence(std::memory_order_release);
+                e.ts_ns = now_ns();
+                e.arg = arg;
+                e.tid = tid;
+                e.name = id;
+                e.phase = phase;
+                e.seq.store(complete(index), std::memory_order_release);
+            }
+
+            std::atomic<bool> _enabled{false};
+            std::atomic<uint64_t> _next{0};
+            Event _events[CAPACITY];
+            std::mutex _names_mutex;
+            std::atomic<int> _name_count{0};
+            char _names[MAX_NAMES][MAX_NAME_LENGTH];
+        };
+
+        // begin on construction, end when the scope is left
+        class TraceScope {
+        public:
+            explicit TraceScope(int id, int64_t arg = 0) : _id(id) { TraceRing::instance().begin(id, arg); }
+            ~TraceScope() { TraceRing::instance().end(_id); }
+
+        private:
+            int _id;
+        };
+    }
+}
+
+#define TRACE_CONCAT_(a, b) a##b
+#define TRACE_CONCAT(a, b) TRACE_CONCAT_(a, b)
+
+// trace the rest of the enclosing scope as stage name, the name is registered once per call site
+#define TRACE_SCOPE(name) \
+    static const int TRACE_CONCAT(trace_id_, __LINE__) = \
+            ninebot_algo::cnn_ninebot::TraceRing::instance().name_id(name); \
+    ninebot_algo::cnn_ninebot::TraceScope TRACE_CONCAT(trace_scope_, __LINE__)(TRACE_CONCAT(trace_id_, __LINE__))
+
+#define TRACE_COUNTER(name, value) do { \
+        static const int trace_counter_id = ninebot_algo::cnn_ninebot::TraceRing::instance().name_id(name); \
+        ninebot_algo::cnn_ninebot::TraceRing::instance().counter(trace_counter_id, value); \
+    } while (0)
+
+#endif //TRACERING_H
@@ -1,7 +1,25 @@
 #include "VisionNative.h"
 #include <jni.h>
+#include <android/bitmap.h>
 #include <android/log.h>
 #include "AlgoApplePerception.h"
+#include "DetectionLog.h"
+#include "DetectionRing.h"
+#include "InferenceServer.h"
+#include "JpegHeader.h"
+#include "ModelRegistry.h"
+#include "TraceRing.h"
+#include <atomic>
+#include <chrono>
+#include <mutex>
+#include <errno.h>
+#include <fcntl.h>
+#include <map>
+#include <sched.h>
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <thread>
+#include <time.h>
 
 using namespace ninebot_algo;
 using namespace cnn_ninebot;
@@ -14,6 +32,13 @@ using namespace cnn_ninebot;
 #define RGBA8888  1
 #define YUV420  5
 
+#define DEFAULT_STREAM  -1
+#define SERVER_STREAM  -2
+#define DEFAULT_MODEL  "apple"
+#define DEFAULT_MODEL_PATH  "/sdcard/apple_model.tflite"
+// engines created by handle are streams of their own above the camera stream types
+#define FIRST_ENGINE_HANDLE  0x10000
+
 JavaVM *javaVM;
 
 typedef struct {
@@ -25,7 +50,42 @@ jclass mVisionNativeClazz;
 com_segway_robot_sample_aibox_DetectedResult mDetectedResult;
 
 static JNINativeMethod methodTable[] = {
+        {"nativeInit", "(I)F", (void *) jni_init},
+        {"nativeInitStream", "(II)F", (void *) jni_init_stream},
+        {"nativeReleaseStream", "(I)V", (void *) jni_release_stream},
+        {"nativeSetThreadAffinity", "(J)I", (void *) jni_set_thread_affinity},
+        {"nativeSetNumThreads", "(II)V", (void *) jni_set_num_threads},
+        {"nativeSetRoiMode", "(ZI)V", (void *) jni_set_roi_mode},
+        {"nativeSetLatencyBudget", "(F)V", (void *) jni_set_latency_budget},
+        {"nativeGetInputSize", "(I)I", (void *) jni_get_input_size},
+        {"nativeRegisterModel", "(Ljava/lang/String;Ljava/lang/String;)V", (void *) jni_register_model},
+        {"nativeSelectModel", "(ILjava/lang/String;)Z", (void *) jni_select_model},
+        {"nativeSetModelMemoryBudget", "(J)V", (void *) jni_set_model_memory_budget},
+        {"nativeGetModelStats", "()Ljava/lang/String;", (void *) jni_get_model_stats},
+        {"nativeSetIntrinsics", "(IIIFFFFF)V", (void *) jni_set_intrinsics},
+        {"nativeCreateEngine", "(Ljava/lang/String;I)I", (void *) jni_create_engine},
+        {"nativeConfigureEngine", "(IFF)Z", (void *) jni_configure_engine},
+        {"nativeSwapModel", "(ILjava/lang/String;I)Z", (void *) jni_swap_model},
+        {"nativeGetEngineModel", "(I)Ljava/lang/String;", (void *) jni_get_engine_model},
+        {"nativeReleaseEngine", "(I)V", (void *) jni_release_engine},
+        {"nativeSetPresenceGate", "(ILjava/lang/String;FI)Z", (void *) jni_set_presence_gate},
+        {"nativeGetCascadeStats", "(I)Ljava/lang/String;", (void *) jni_get_cascade_stats},
         {"nativeDetect", "(Ljava/nio/ByteBuffer;III)[Lcom/segway/robot/sample/aibox/DetectedResult;", (void *) jni_detect},
+        {"nativeDetectStream", "(ILjava/nio/ByteBuffer;IIIJLandroid/graphics/Bitmap;)[Lcom/segway/robot/sample/aibox/DetectedResult;", (void *) jni_detect_stream},
+        {"nativeDetectImage", "(ILjava/lang/String;JLandroid/graphics/Bitmap;)[Lcom/segway/robot/sample/aibox/DetectedResult;", (void *) jni_detect_image},
+        {"nativeDetectImageBuffer", "(ILjava/nio/ByteBuffer;IJLandroid/graphics/Bitmap;)[Lcom/segway/robot/sample/aibox/DetectedResult;", (void *) jni_detect_image_buffer},
+        {"nativeRenderPreview", "(Ljava/nio/ByteBuffer;IIILandroid/graphics/Bitmap;)Z", (void *) jni_render_preview},
+        {"nativeOpenPublisher", "(Ljava/lang/String;II)Z", (void *) jni_open_publisher},
+        {"nativeClosePublisher", "()V", (void *) jni_close_publisher},
+        {"nativeOpenDetectionLog", "(Ljava/lang/String;II)Z", (void *) jni_open_detection_log},
+        {"nativeCloseDetectionLog", "()V", (void *) jni_close_detection_log},
+        {"nativeStartServer", "(Ljava/lang/String;I)Z", (void *) jni_start_server},
+        {"nativeStopServer", "()V", (void *) jni_stop_server},
+        {"nativeTraceName", "(Ljava/lang/String;)I", (void *) jni_trace_name},
+        {"nativeTraceBegin", "(IJ)V", (void *) jni_trace_begin},
+        {"nativeTraceEnd", "(I)V", (void *) jni_trace_end},
+        {"nativeTraceEnable", "(Z)V", (void *) jni_trace_enable},
+        {"nativeTraceDump", "(Ljava/lang/String;)I", (void *) jni_trace_dump},
 };
 
 JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
@@ -42,7 +102,7 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void *reserved) {
     mDetectedResult.clazz = (jclass) env->NewGlobalRef(
             env->FindClass("com/segway/robot/sample/aibox/DetectedResult"));
     mDetectedResult.DetectedResult_id = env->GetMethodID(mDetectedResult.clazz, "<init>",
-                                                         "(IFFFFF)V");
+                                                         "(IFFFFFF)V");
 
     env->RegisterNatives(mVisionNativeClazz, methodTable,
                          sizeof(methodTable) / sizeof(methodTable[0]));
@@ -55,55 +115,930 @@ void yuv2bgr(cv::Mat &frame, char *data, jint width, jint height) {
 }
 
 void rgba2bgr(cv::Mat &frame, char *data, jint width, jint height) {
-    //cv::Mat srcFrame(cv::Size(width, height), CV_8UC4, data, cv::Mat::AUTO_STEP);
-    //cv::cvtColor(srcFrame, frame, CV_RGBA2BGR);
+    // converted at the client's size, the detector scales to its input itself
     cv::Mat srcFrame(cv::Size(width, height), CV_8UC4, data, cv::Mat::AUTO_STEP);
-    cv::Mat resizeFrame;
-    cv::cvtColor(srcFrame, resizeFrame, CV_RGBA2BGR);
-    cv::resize(resizeFrame, frame, cv::Size(1920, 1080));
-    cv::imwrite("/sdcard/apple1.jpeg", frame);
-    LOGD("detect, frame.cols %d, frame.rows %d", frame.cols, frame.rows);
+    cv::cvtColor(srcFrame, frame, CV_RGBA2BGR);
 }
 
-AlgoApplePerception *algoApplePerception = nullptr;
-
-JNIEXPORT jobjectArray JNICALL
-jni_detect(JNIEnv *env, jclass obj, jobject data, jint format, jint width, jint height) {
-    LOGD("width: %d, height: %d, format %d", width, height, format);
-    char *imageData = (char *) env->GetDirectBufferAddress(data);
-    cv::Mat frame;
-
+bool convertToBgr(cv::Mat &frame, char *data, jint format, jint width, jint height) {
     switch (format) {
         case RGBA8888:
-            rgba2bgr(frame, imageData, width, height);
-            LOGD("detect image");
-            break;
+            rgba2bgr(frame, data, width, height);
+            return true;
         case YUV420:
-            yuv2bgr(frame, imageData, width, height);
-            LOGD("detect video");
-            break;
+            yuv2bgr(frame, data, width, height);
+            return true;
         default:
-            return nullptr;
+            return false;
+    }
+}
+
+// Decode an encoded image into frame, a JPEG straight at the largest reduced scale that still
+// covers minSide on both sides. width and height get the full size of the image.
+bool decodeImage(const unsigned char *data, size_t size, int minSide, cv::Mat &frame, int *width, int *height) {
+    TRACE_SCOPE("decode");
+    int flags = cv::IMREAD_COLOR;
+    if (jpeg_dimensions(data, size, width, height)) {
+        switch (jpeg_reduction(*width, *height, minSide)) {
+            case 2:
+                flags = cv::IMREAD_REDUCED_COLOR_2;
+                break;
+            case 4:
+                flags = cv::IMREAD_REDUCED_COLOR_4;
+                break;
+            case 8:
+                flags = cv::IMREAD_REDUCED_COLOR_8;
+                break;
+            default:
+                break;
+        }
+    }
+    cv::Mat encoded(1, (int) size, CV_8UC1, (void *) data);
+    cv::imdecode(encoded, flags, &frame);
+    if (frame.empty()) {
+        return false;
+    }
+    if (flags == cv::IMREAD_COLOR) {
+        *width = frame.cols;
+        *height = frame.rows;
+    }
+    TRACE_COUNTER("decode_reduction", *width / frame.cols);
+    return true;
+}
+
+int64_t threadCpuTimeNs() {
+    struct timespec ts;
+    clock_gettime(CLOCK_THREAD_CPUTIME_ID, &ts);
+    return (int64_t) ts.tv_sec * 1000000000 + ts.tv_nsec;
+}
+
+// Write the BGR frame into an RGBA_8888 bitmap, downscaled to the bitmap's size, so the preview
+// comes out of the same NV12 conversion as the network input.
+bool renderPreview(JNIEnv *env, jobject bitmap, const cv::Mat &bgr) {
+    TRACE_SCOPE("render");
+    AndroidBitmapInfo info;
+    if (AndroidBitmap_getInfo(env, bitmap, &info) != ANDROID_BITMAP_RESULT_SUCCESS
+        || info.format != ANDROID_BITMAP_FORMAT_RGBA_8888) {
+        LOGE("preview needs an ARGB_8888 bitmap");
+        return false;
+    }
+    void *pixels;
+    if (AndroidBitmap_lockPixels(env, bitmap, &pixels) != ANDROID_BITMAP_RESULT_SUCCESS) {
+        return false;
+    }
+    cv::Mat rgba(info.height, info.width, CV_8UC4, pixels, info.stride);
+    if (bgr.cols == (int) info.width && bgr.rows == (int) info.height) {
+        cv::cvtColor(bgr, rgba, CV_BGR2RGBA);
+    } else {
+        // nearest neighbour, like the sampled java conversion it replaces
+        static thread_local cv::Mat scaled;
+        cv::resize(bgr, scaled, cv::Size(info.width, info.height), 0, 0, cv::INTER_NEAREST);
+        cv::cvtColor(scaled, rgba, CV_BGR2RGBA);
+    }
+    AndroidBitmap_unlockPixels(env, bitmap);
+    return true;
+}
+
+// settings of a stream applied to every engine it loads, kept across engine re-creation
+struct EngineConfig {
+    // camera intrinsics
+    bool hasIntrinsics = false;
+    int width = 0;
+    int height = 0;
+    float intrinsics[5];
+    // detection thresholds, negative keeps the model's default
+    float confThresh = -1;
+    float nmsThresh = -1;
+    // presence model gating the detector, empty for none
+    std::string presenceModel;
+    float presenceThresh = 0.5f;
+    int auditInterval = 0;
+    // bumped on every change, so a model loaded in the background sees what changed meanwhile
+    int version = 0;
+};
+
+// one engine per camera stream and model, so streams only contend inside the delegate.
+// The model weights are mapped once and shared between the engines, the registry unloads the
+// least recently used engines when they go over the memory budget.
+struct StreamEngine {
+    std::mutex mutex;
+    std::string modelId = DEFAULT_MODEL;
+    // per-frame scratch, reused while the resolution does not change
+    cv::Mat bgr;
+    std::vector<bbox> boxes;
+    EngineConfig config;
+    // a model is loading in the background to replace modelId
+    std::atomic<bool> swapping{false};
+    // set by nativeReleaseEngine, the handle does not detect any more
+    bool released = false;
+};
+
+// shared with the calls using an engine, so a released engine is freed once the last detect or
+// swap holding it returns
+std::map<int, std::shared_ptr<StreamEngine>> streamEngines;
+std::mutex streamEnginesMutex;
+int nextEngineHandle = FIRST_ENGINE_HANDLE;
+// settings of every engine, written by forEachEngine under streamEnginesMutex and read once per
+// configureAlgo without it
+std::atomic<int> inferenceThreadCount{0};
+std::atomic<bool> roiModeEnabled{false};
+std::atomic<int> roiRefreshInterval{10};
+std::atomic<float> latencyBudgetMs{0};
+// bumped with every write of the settings above
+std::atomic<unsigned> engineSettingsVersion{0};
+
+ModelRegistry &modelRegistry() {
+    static ModelRegistry *registry = nullptr;
+    static std::once_flag once;
+    std::call_once(once, []() {
+        registry = new ModelRegistry();
+        registry->register_model(DEFAULT_MODEL, DEFAULT_MODEL_PATH);
+    });
+    return *registry;
+}
+
+// the engine of a camera stream, created on first use. Handles are only created by
+// nativeCreateEngine, null for an unknown or released one.
+std::shared_ptr<StreamEngine> getStreamEngine(int stream) {
+    std::lock_guard<std::mutex> guard(streamEnginesMutex);
+    if (stream >= FIRST_ENGINE_HANDLE) {
+        auto it = streamEngines.find(stream);
+        return it != streamEngines.end() ? it->second : nullptr;
+    }
+    std::shared_ptr<StreamEngine> &engine = streamEngines[stream];
+    if (engine == nullptr) {
+        engine = std::make_shared<StreamEngine>();
+        modelRegistry().set_current(stream, engine->modelId);
+    }
+    return engine;
+}
+
+// the engine of a handle or of a stream that has been used, null otherwise
+std::shared_ptr<StreamEngine> findStreamEngine(int stream) {
+    std::lock_guard<std::mutex> guard(streamEnginesMutex);
+    auto it = streamEngines.find(stream);
+    return it != streamEngines.end() ? it->second : nullptr;
+}
+
+void configureAlgo(AlgoApplePerception *algo, const EngineConfig &config) {
+    int threads = inferenceThreadCount;
+    if (threads > 0) {
+        algo->setNumThreads(threads);
+    }
+    algo->setRoiMode(roiModeEnabled, roiRefreshInterval);
+    algo->setLatencyBudget(latencyBudgetMs);
+    algo->setThresholds(config.confThresh, config.nmsThresh);
+    if (!algo->setPresenceGate(config.presenceModel, config.presenceThresh, config.auditInterval)) {
+        LOGE("presence model %s can not be loaded, detecting every frame", config.presenceModel.c_str());
+    }
+    if (config.hasIntrinsics) {
+        algo->setIntrinsics(config.width, config.height, config.intrinsics[0], config.intrinsics[1],
+                            config.intrinsics[2], config.intrinsics[3], config.intrinsics[4]);
+    }
+}
+
+// the engine of the stream's model, loaded on first use and retried while the model can not be
+// loaded (e.g. the storage permission has not been granted yet). engine->mutex must be held, the
+// returned reference keeps the engine alive while it detects even if the registry unloads it.
+std::shared_ptr<AlgoApplePerception> getAlgoApplePerception(StreamEngine *engine, int stream) {
+    bool loaded;
+    std::shared_ptr<AlgoApplePerception> algo = modelRegistry().acquire(engine->modelId, stream, &loaded);
+    if (algo != nullptr && loaded) {
+        configureAlgo(algo.get(), engine->config);
+    }
+    return algo;
+}
+
+// Load and warm up modelId for a stream without its lock, so the stream keeps detecting on its
+// current model meanwhile, then switch under the lock: the frame in flight finishes on the old
+// engine and the next one runs on the new engine. The registry serializes loads of the same
+// (model, stream), a select_model racing the swap waits for this load instead of repeating it.
+void swapModel(std::shared_ptr<StreamEngine> engine, int stream, std::string modelId, int warmupIterations) {
+    TRACE_SCOPE("model_swap");
+    EngineConfig config;
+    {
+        std::lock_guard<std::mutex> guard(engine->mutex);
+        config = engine->config;
+    }
+    // a setting written while the engine is configured below may have been swept over it already
+    unsigned settingsVersion = engineSettingsVersion;
+    auto start = std::chrono::high_resolution_clock::now();
+    bool loaded;
+    std::shared_ptr<AlgoApplePerception> algo = modelRegistry().acquire(modelId, stream, &loaded);
+    if (algo == nullptr || !algo->isReady()) {
+        LOGE("stream %d: swap to model %s failed, model is not loaded", stream, modelId.c_str());
+        engine->swapping = false;
+        return;
+    }
+    if (loaded) {
+        configureAlgo(algo.get(), config);
+    }
+    float warmupTime = algo->warmup(warmupIterations);
+    std::chrono::duration<double, std::milli> elapsed = std::chrono::high_resolution_clock::now() - start;
+
+    std::string previous;
+    bool released;
+    {
+        std::lock_guard<std::mutex> guard(engine->mutex);
+        released = engine->released;
+        if (!released) {
+            if (engine->config.version != config.version || engineSettingsVersion != settingsVersion) {
+                configureAlgo(algo.get(), engine->config);
+            }
+            previous = engine->modelId;
+            engine->modelId = modelId;
+            modelRegistry().set_current(stream, modelId);
+        }
+    }
+    if (released) {
+        modelRegistry().unload(stream);
+    } else {
+        // the engine of the previous model stays resident until the registry needs the memory
+        LOGD("stream %d: swapped model %s for %s, load and warmup %f ms (warmup %f ms)", stream, previous.c_str(),
+             modelId.c_str(), elapsed.count(), warmupTime);
+    }
+    engine->swapping = false;
+}
+
+// detections are published here for other processes when a ring is open
+DetectionRingWriter detectionPublisher;
+std::mutex detectionPublisherMutex;
+
+// and appended to the persistent log when it is open, it has its own lock
+DetectionLogWriter detectionLog;
+
+// write a setting and apply it to every engine that already exists. Both happen under
+// streamEnginesMutex and the sweep takes each engine's mutex, so an engine loaded meanwhile under
+// its own mutex either reads the new setting or is swept after it was loaded.
+template<typename W, typename F>
+void forEachEngine(W write, F apply) {
+    std::lock_guard<std::mutex> guard(streamEnginesMutex);
+    write();
+    engineSettingsVersion++;
+    for (auto &it : streamEngines) {
+        std::lock_guard<std::mutex> engineGuard(it.second->mutex);
+        for (auto &algo : modelRegistry().engines(it.first)) {
+            apply(algo.get());
+        }
+    }
+}
+
+JNIEXPORT jint JNICALL
+jni_set_thread_affinity(JNIEnv *env, jclass obj, jlong cpuMask) {
+    cpu_set_t cpuSet;
+    CPU_ZERO(&cpuSet);
+    for (int cpu = 0; cpu < 64 && cpu < CPU_SETSIZE; cpu++) {
+        if ((cpuMask >> cpu) & 1) {
+            CPU_SET(cpu, &cpuSet);
+        }
+    }
+    // pid 0 is the calling thread, the java thread maps 1:1 onto a native one
+    int ret = sched_setaffinity(0, sizeof(cpuSet), &cpuSet);
+    if (ret != 0) {
+        LOGE("sched_setaffinity 0x%llx failed: %d", (long long) cpuMask, errno);
+        return -errno;
+    }
+    return 0;
+}
+
+JNIEXPORT void JNICALL
+jni_set_num_threads(JNIEnv *env, jclass obj, jint inferenceThreads, jint opencvThreads) {
+    if (opencvThreads > 0) {
+        cv::setNumThreads(opencvThreads);
+    }
+    forEachEngine([inferenceThreads]() { inferenceThreadCount = inferenceThreads; },
+                  [inferenceThreads](AlgoApplePerception *algo) {
+                      if (inferenceThreads > 0) {
+                          algo->setNumThreads(inferenceThreads);
+                      }
+                  });
+    LOGD("threads: inference %d, opencv %d", inferenceThreads, cv::getNumThreads());
+}
+
+JNIEXPORT jfloat JNICALL
+jni_init_stream(JNIEnv *env, jclass obj, jint stream, jint warmupIterations) {
+    std::shared_ptr<StreamEngine> engine = getStreamEngine(stream);
+    if (engine == nullptr) {
+        LOGE("init: engine %d does not exist", stream);
+        return -1;
+    }
+    std::lock_guard<std::mutex> guard(engine->mutex);
+    auto start = std::chrono::high_resolution_clock::now();
+    std::shared_ptr<AlgoApplePerception> algo = getAlgoApplePerception(engine.get(), stream);
+    std::chrono::duration<double, std::milli> loadTime = std::chrono::high_resolution_clock::now() - start;
+    if (algo == nullptr || !algo->isReady()) {
+        LOGE("init stream %d failed, model is not loaded", stream);
+        return -1;
+    }
+    float warmupTime = algo->warmup(warmupIterations);
+    LOGD("init stream %d load %f ms, warmup %d iterations %f ms", stream, loadTime.count(), warmupIterations, warmupTime);
+    return (jfloat) (loadTime.count() + warmupTime);
+}
+
+JNIEXPORT jfloat JNICALL
+jni_init(JNIEnv *env, jclass obj, jint warmupIterations) {
+    return jni_init_stream(env, obj, DEFAULT_STREAM, warmupIterations);
+}
+
+JNIEXPORT void JNICALL
+jni_release_stream(JNIEnv *env, jclass obj, jint stream) {
+    std::shared_ptr<StreamEngine> engine = getStreamEngine(stream);
+    if (engine == nullptr) {
+        return;
+    }
+    std::lock_guard<std::mutex> guard(engine->mutex);
+    modelRegistry().unload(stream);
+}
+
+JNIEXPORT void JNICALL
+jni_set_roi_mode(JNIEnv *env, jclass obj, jboolean enable, jint refreshInterval) {
+    forEachEngine([enable, refreshInterval]() {
+                      roiModeEnabled = enable;
+                      roiRefreshInterval = refreshInterval;
+                  },
+                  [enable, refreshInterval](AlgoApplePerception *algo) { algo->setRoiMode(enable, refreshInterval); });
+    LOGD("roi mode %d, full frame every %d frames", enable, refreshInterval);
+}
+
+JNIEXPORT void JNICALL
+jni_set_latency_budget(JNIEnv *env, jclass obj, jfloat budgetMs) {
+    forEachEngine([budgetMs]() { latencyBudgetMs = budgetMs; },
+                  [budgetMs](AlgoApplePerception *algo) { algo->setLatencyBudget(budgetMs); });
+    LOGD("latency budget %f ms", budgetMs);
+}
+
+JNIEXPORT jint JNICALL
+jni_get_input_size(JNIEnv *env, jclass obj, jint stream) {
+    std::shared_ptr<StreamEngine> engine = getStreamEngine(stream);
+    if (engine == nullptr) {
+        return 0;
+    }
+    std::lock_guard<std::mutex> guard(engine->mutex);
+    std::shared_ptr<AlgoApplePerception> algo = modelRegistry().find(engine->modelId, stream);
+    return algo != nullptr && algo->isReady() ? algo->inputSize() : 0;
+}
+
+JNIEXPORT void JNICALL
+jni_register_model(JNIEnv *env, jclass obj, jstring id, jstring path) {
+    const char *modelId = env->GetStringUTFChars(id, nullptr);
+    const char *modelPath = env->GetStringUTFChars(path, nullptr);
+    modelRegistry().register_model(modelId, modelPath);
+    LOGD("model %s at %s", modelId, modelPath);
+    env->ReleaseStringUTFChars(path, modelPath);
+    env->ReleaseStringUTFChars(id, modelId);
+}
+
+JNIEXPORT jboolean JNICALL
+jni_select_model(JNIEnv *env, jclass obj, jint stream, jstring id) {
+    const char *modelId = env->GetStringUTFChars(id, nullptr);
+    bool known = modelRegistry().has_model(modelId);
+    if (known) {
+        // the engine of the previous model stays resident until the registry needs the memory
+        std::shared_ptr<StreamEngine> engine = getStreamEngine(stream);
+        if (engine != nullptr) {
+            std::lock_guard<std::mutex> guard(engine->mutex);
+            engine->modelId = modelId;
+            modelRegistry().set_current(stream, modelId);
+        }
+        known = engine != nullptr;
+    } else {
+        LOGE("stream %d: model %s is not registered", stream, modelId);
+    }
+    env->ReleaseStringUTFChars(id, modelId);
+    return (jboolean) known;
+}
+
+JNIEXPORT void JNICALL
+jni_set_model_memory_budget(JNIEnv *env, jclass obj, jlong bytes) {
+    modelRegistry().set_memory_budget(bytes > 0 ? (size_t) bytes : 0);
+}
+
+JNIEXPORT jstring JNICALL
+jni_get_model_stats(JNIEnv *env, jclass obj) {
+    std::string text;
+    char line[256];
+    for (auto &it : modelRegistry().stats()) {
+        const ModelRegistry::ModelStats &stats = it.second;
+        snprintf(line, sizeof(line), "%s%s: %d engines, %.1f MB resident, %llu loads (last %.1f ms), "
+                                     "%llu evictions (last %.1f ms)", text.empty() ? "" : "; ", it.first.c_str(),
+                 stats.engines, stats.resident_bytes / 1048576.0, (unsigned long long) stats.loads,
+                 stats.last_load_ms, (unsigned long long) stats.evictions, stats.last_evict_ms);
+        text += line;
+    }
+    return env->NewStringUTF(text.c_str());
+}
+
+JNIEXPORT void JNICALL
+jni_set_intrinsics(JNIEnv *env, jclass obj, jint stream, jint width, jint height, jfloat fx, jfloat fy, jfloat cx,
+                   jfloat cy, jfloat distortion) {
+    std::shared_ptr<StreamEngine> engine = getStreamEngine(stream);
+    if (engine == nullptr) {
+        return;
+    }
+    std::lock_guard<std::mutex> guard(engine->mutex);
+    EngineConfig &config = engine->config;
+    config.hasIntrinsics = true;
+    config.width = width;
+    config.height = height;
+    config.intrinsics[0] = fx;
+    config.intrinsics[1] = fy;
+    config.intrinsics[2] = cx;
+    config.intrinsics[3] = cy;
+    config.intrinsics[4] = distortion;
+    config.version++;
+    for (auto &algo : modelRegistry().engines(stream)) {
+        algo->setIntrinsics(width, height, fx, fy, cx, cy, distortion);
+    }
+    LOGD("stream %d intrinsics %dx%d f %f %f c %f %f w %f", stream, width, height, fx, fy, cx, cy, distortion);
+}
+
+JNIEXPORT jint JNICALL
+jni_create_engine(JNIEnv *env, jclass obj, jstring id, jint warmupIterations) {
+    const char *modelId = env->GetStringUTFChars(id, nullptr);
+    bool known = modelRegistry().has_model(modelId);
+    int handle = 0;
+    if (known) {
+        std::lock_guard<std::mutex> guard(streamEnginesMutex);
+        handle = nextEngineHandle++;
+        streamEngines[handle] = std::make_shared<StreamEngine>();
+        streamEngines[handle]->modelId = modelId;
+        modelRegistry().set_current(handle, modelId);
+    } else {
+        LOGE("create engine: model %s is not registered", modelId);
+    }
+    env->ReleaseStringUTFChars(id, modelId);
+    if (handle == 0 || jni_init_stream(env, obj, handle, warmupIterations) < 0) {
+        if (handle != 0) {
+            jni_release_engine(env, obj, handle);
+        }
+        return 0;
+    }
+    return handle;
+}
+
+JNIEXPORT jboolean JNICALL
+jni_configure_engine(JNIEnv *env, jclass obj, jint handle, jfloat confThresh, jfloat nmsThresh) {
+    std::shared_ptr<StreamEngine> engine = findStreamEngine(handle);
+    if (engine == nullptr) {
+        return (jboolean) false;
+    }
+    std::lock_guard<std::mutex> guard(engine->mutex);
+    if (engine->released) {
+        return (jboolean) false;
     }
+    engine->config.confThresh = confThresh;
+    engine->config.nmsThresh = nmsThresh;
+    engine->config.version++;
+    for (auto &algo : modelRegistry().engines(handle)) {
+        algo->setThresholds(confThresh, nmsThresh);
+    }
+    LOGD("engine %d thresholds conf %f nms %f", handle, confThresh, nmsThresh);
+    return (jboolean) true;
+}
+
+JNIEXPORT jboolean JNICALL
+jni_set_presence_gate(JNIEnv *env, jclass obj, jint handle, jstring path, jfloat threshold, jint auditInterval) {
+    // camera streams may be configured before their first frame, engines only once created
+    std::shared_ptr<StreamEngine> engine = getStreamEngine(handle);
+    if (engine == nullptr) {
+        return (jboolean) false;
+    }
+    std::string modelPath;
+    if (path != nullptr) {
+        const char *chars = env->GetStringUTFChars(path, nullptr);
+        modelPath = chars;
+        env->ReleaseStringUTFChars(path, chars);
+    }
+    std::lock_guard<std::mutex> guard(engine->mutex);
+    if (engine->released) {
+        return (jboolean) false;
+    }
+    EngineConfig &config = engine->config;
+    config.presenceModel = modelPath;
+    config.presenceThresh = threshold;
+    config.auditInterval = auditInterval;
+    config.version++;
+    bool loaded = true;
+    for (auto &algo : modelRegistry().engines(handle)) {
+        loaded &= algo->setPresenceGate(modelPath, threshold, auditInterval);
+    }
+    if (!loaded) {
+        // keep detecting every frame rather than with a gate that is not there
+        config.presenceModel.clear();
+        for (auto &algo : modelRegistry().engines(handle)) {
+            algo->setPresenceGate("", threshold, auditInterval);
+        }
+        LOGE("engine %d: presence model %s can not be loaded", handle, modelPath.c_str());
+        return (jboolean) false;
+    }
+    LOGD("engine %d presence gate %s threshold %f audit every %d", handle,
+         modelPath.empty() ? "off" : modelPath.c_str(), threshold, auditInterval);
+    return (jboolean) true;
+}
+
+JNIEXPORT jstring JNICALL
+jni_get_cascade_stats(JNIEnv *env, jclass obj, jint handle) {
+    std::shared_ptr<StreamEngine> engine = findStreamEngine(handle);
+    if (engine == nullptr) {
+        return nullptr;
+    }
+    // summed over the resident engines of the handle, each model keeps its own counters
+    CascadeGate::Stats total;
+    {
+        std::lock_guard<std::mutex> guard(engine->mutex);
+        for (auto &algo : modelRegistry().engines(handle)) {
+            CascadeGate::Stats stats = algo->cascadeStats();
+            total.frames += stats.frames;
+            total.gated += stats.gated;
+            total.rejected += stats.rejected;
+            total.skipped += stats.skipped;
+            total.detected += stats.detected;
+            total.audits += stats.audits;
+            total.misses += stats.misses;
+            total.gate_ms += stats.gate_ms;
+            total.detector_ms += stats.detector_ms;
+        }
+    }
+    char text[256];
+    snprintf(text, sizeof(text), "%llu frames, presence on %llu (%.2f ms avg), detector on %llu (%.1f ms avg), "
+                                 "%llu skipped saving %.0f ms, %llu of %llu audits missed (%.1f%%)",
+             (unsigned long long) total.frames, (unsigned long long) total.gated,
+             total.gated > 0 ? total.gate_ms / total.gated : 0, (unsigned long long) total.detected,
+             total.detected > 0 ? total.detector_ms / total.detected : 0, (unsigned long long) total.skipped,
+             total.saved_ms(), (unsigned long long) total.misses, (unsigned long long) total.audits,
+             total.miss_rate() * 100);
+    return env->NewStringUTF(text);
+}
+
+JNIEXPORT jboolean JNICALL
+jni_swap_model(JNIEnv *env, jclass obj, jint handle, jstring id, jint warmupIterations) {
+    std::shared_ptr<StreamEngine> engine = findStreamEngine(handle);
+    const char *chars = env->GetStringUTFChars(id, nullptr);
+    std::string modelId = chars;
+    env->ReleaseStringUTFChars(id, chars);
+    if (engine == nullptr || !modelRegistry().has_model(modelId)) {
+        LOGE("engine %d: can not swap to model %s", handle, modelId.c_str());
+        return (jboolean) false;
+    }
+    {
+        std::lock_guard<std::mutex> guard(engine->mutex);
+        if (engine->released || engine->modelId == modelId) {
+            return (jboolean) (!engine->released);
+        }
+    }
+    // one swap at a time, so only this thread loads the (model, stream) engine outside the lock
+    if (engine->swapping.exchange(true)) {
+        LOGE("engine %d: a model swap is already running", handle);
+        return (jboolean) false;
+    }
+    std::thread(swapModel, engine, (int) handle, modelId, (int) warmupIterations).detach();
+    return (jboolean) true;
+}
+
+JNIEXPORT jstring JNICALL
+jni_get_engine_model(JNIEnv *env, jclass obj, jint handle) {
+    std::shared_ptr<StreamEngine> engine = findStreamEngine(handle);
+    if (engine == nullptr) {
+        return nullptr;
+    }
+    std::lock_guard<std::mutex> guard(engine->mutex);
+    return engine->released ? nullptr : env->NewStringUTF(engine->modelId.c_str());
+}
+
+JNIEXPORT void JNICALL
+jni_release_engine(JNIEnv *env, jclass obj, jint handle) {
+    std::shared_ptr<StreamEngine> engine;
+    {
+        std::lock_guard<std::mutex> guard(streamEnginesMutex);
+        auto it = streamEngines.find(handle);
+        if (it == streamEngines.end() || handle < FIRST_ENGINE_HANDLE) {
+            return;
+        }
+        engine = it->second;
+        streamEngines.erase(it);
+    }
+    std::lock_guard<std::mutex> guard(engine->mutex);
+    // a swap still loading unloads its model when it finds the engine released, a detect still
+    // holding the engine frees it when it returns
+    engine->released = true;
+    engine->bgr.release();
+    std::vector<bbox>().swap(engine->boxes);
+    modelRegistry().set_current(handle, "");
+    modelRegistry().unload(handle);
+}
+
+JNIEXPORT jboolean JNICALL
+jni_open_publisher(JNIEnv *env, jclass obj, jstring path, jint slotCount, jint maxBoxes) {
+    const char *ringPath = env->GetStringUTFChars(path, nullptr);
+    std::lock_guard<std::mutex> guard(detectionPublisherMutex);
+    bool ret = detectionPublisher.open(ringPath, slotCount, maxBoxes);
+    if (!ret) {
+        LOGE("open detection ring %s failed: %d", ringPath, errno);
+    }
+    env->ReleaseStringUTFChars(path, ringPath);
+    return (jboolean) ret;
+}
+
+JNIEXPORT void JNICALL
+jni_close_publisher(JNIEnv *env, jclass obj) {
+    std::lock_guard<std::mutex> guard(detectionPublisherMutex);
+    detectionPublisher.close();
+}
+
+JNIEXPORT jboolean JNICALL
+jni_open_detection_log(JNIEnv *env, jclass obj, jstring dir, jint segmentRecords, jint maxSegments) {
+    const char *logDir = env->GetStringUTFChars(dir, nullptr);
+    mkdir(logDir, 0755);
+    DetectionLogWriter::Options options;
+    options.segment_records = segmentRecords;
+    options.max_segments = maxSegments;
+    bool ret = detectionLog.open(logDir, options);
+    if (!ret) {
+        LOGE("open detection log %s failed: %d", logDir, errno);
+    }
+    env->ReleaseStringUTFChars(dir, logDir);
+    return (jboolean) ret;
+}
+
+JNIEXPORT void JNICALL
+jni_close_detection_log(JNIEnv *env, jclass obj) {
+    detectionLog.close();
+}
+
+InferenceServer *inferenceServer = nullptr;
+std::mutex inferenceServerMutex;
+
+// requests of all clients pending at the same time run back to back on the server engine
+void detectBatch(std::vector<InferenceServer::Request *> &batch) {
+    std::shared_ptr<StreamEngine> engine = getStreamEngine(SERVER_STREAM);
+    std::lock_guard<std::mutex> guard(engine->mutex);
+    std::shared_ptr<AlgoApplePerception> algo = getAlgoApplePerception(engine.get(), SERVER_STREAM);
+    // consecutive requests come from unrelated clients, there is no previous frame to track
+    if (algo != nullptr) {
+        algo->setRoiMode(false, 1);
+    }
+    for (InferenceServer::Request *request : batch) {
+        InferenceRequestHeader &header = request->header;
+        request->boxes.clear();
+        if (algo == nullptr || !algo->isReady()) {
+            request->status = INFERENCE_NOT_READY;
+            continue;
+        }
+        size_t expected = header.format == RGBA8888 ? (size_t) header.width * header.height * 4
+                                                    : (size_t) header.width * header.height * 3 / 2;
+        cv::Mat &frame = engine->bgr;
+        if (header.width <= 0 || header.height <= 0 || request->payload.size() < expected
+            || !convertToBgr(frame, (char *) request->payload.data(), header.format, header.width, header.height)) {
+            request->status = INFERENCE_BAD_FORMAT;
+            continue;
+        }
+        std::vector<bbox> &result = engine->boxes;
+        algo->PerceptionProcess(frame, result);
+        request->boxes.resize(result.size());
+        for (int i = 0; i < result.size(); i++) {
+            DetectionRingBox &box = request->boxes[i];
+            box.classId = result[i].classId;
+            box.x1 = result[i].x1;
+            box.y1 = result[i].y1;
+            box.x2 = result[i].x2;
+            box.y2 = result[i].y2;
+            box.score = result[i].score;
+        }
+        request->status = INFERENCE_OK;
+    }
+}
+
+JNIEXPORT jboolean JNICALL
+jni_start_server(JNIEnv *env, jclass obj, jstring name, jint maxBatch) {
+    const char *socketName = env->GetStringUTFChars(name, nullptr);
+    std::lock_guard<std::mutex> guard(inferenceServerMutex);
+    if (inferenceServer == nullptr) {
+        inferenceServer = new InferenceServer(detectBatch, maxBatch, maxBatch * 2);
+    }
+    bool ret = inferenceServer->is_running() || inferenceServer->start(socketName);
+    if (!ret) {
+        LOGE("start inference server on %s failed: %d", socketName, errno);
+    }
+    env->ReleaseStringUTFChars(name, socketName);
+    return (jboolean) ret;
+}
+
+JNIEXPORT void JNICALL
+jni_stop_server(JNIEnv *env, jclass obj) {
+    std::lock_guard<std::mutex> guard(inferenceServerMutex);
+    if (inferenceServer != nullptr) {
+        inferenceServer->stop();
+        LOGD("inference server: %llu requests in %llu batches",
+             (unsigned long long) inferenceServer->request_count(), (unsigned long long) inferenceServer->batch_count());
+        delete inferenceServer;
+        inferenceServer = nullptr;
+    }
+}
+
+JNIEXPORT jint JNICALL
+jni_trace_name(JNIEnv *env, jclass obj, jstring name) {
+    const char *stageName = env->GetStringUTFChars(name, nullptr);
+    int id = TraceRing::instance().name_id(stageName);
+    env->ReleaseStringUTFChars(name, stageName);
+    return id;
+}
+
+JNIEXPORT void JNICALL
+jni_trace_begin(JNIEnv *env, jclass obj, jint id, jlong arg) {
+    TraceRing::instance().begin(id, arg);
+}
+
+JNIEXPORT void JNICALL
+jni_trace_end(JNIEnv *env, jclass obj, jint id) {
+    TraceRing::instance().end(id);
+}
 
+JNIEXPORT void JNICALL
+jni_trace_enable(JNIEnv *env, jclass obj, jboolean enable) {
+    TraceRing::instance().set_enabled(enable);
+}
+
+JNIEXPORT jint JNICALL
+jni_trace_dump(JNIEnv *env, jclass obj, jstring path) {
+    const char *tracePath = env->GetStringUTFChars(path, nullptr);
+    int count = TraceRing::instance().dump(tracePath);
+    if (count < 0) {
+        LOGE("dump trace to %s failed: %d", tracePath, errno);
+    } else {
+        LOGD("dumped %d trace events to %s", count, tracePath);
+    }
+    env->ReleaseStringUTFChars(path, tracePath);
+    return count;
+}
+
+JNIEXPORT jboolean JNICALL
+jni_render_preview(JNIEnv *env, jclass obj, jobject data, jint format, jint width, jint height, jobject preview) {
+    char *imageData = (char *) env->GetDirectBufferAddress(data);
+    if (imageData == nullptr) {
+        return JNI_FALSE;
+    }
+    TRACE_SCOPE("convert");
+    int64_t cpuStart = threadCpuTimeNs();
+    static thread_local cv::Mat frame;
+    bool ret = convertToBgr(frame, imageData, format, width, height) && renderPreview(env, preview, frame);
+    TRACE_COUNTER("convert_cpu_us", (threadCpuTimeNs() - cpuStart) / 1000);
+    return (jboolean) ret;
+}
+
+// Detect on engine->bgr, publish and log the boxes scaled by scaleX, scaleY (from the frame to
+// the coordinates the caller expects) and return them. engine->mutex must be held.
+jobjectArray detectFrame(JNIEnv *env, StreamEngine *engine, int stream, std::shared_ptr<AlgoApplePerception> algo,
+                         jlong timestamp, float scaleX, float scaleY) {
     //调用算法
-    if (algoApplePerception == nullptr) {
-        algoApplePerception = new AlgoApplePerception();
+    std::vector<bbox> &appleDetectResult = engine->boxes;
+    appleDetectResult.clear();
+    {
+        TRACE_SCOPE("perception");
+        if (algo != nullptr) {
+            algo->PerceptionProcess(engine->bgr, appleDetectResult);
+        }
+    }
+    if (scaleX != 1 || scaleY != 1) {
+        for (bbox &box : appleDetectResult) {
+            box.x1 *= scaleX;
+            box.x2 *= scaleX;
+            box.y1 *= scaleY;
+            box.y2 *= scaleY;
+        }
+    }
+    TRACE_COUNTER("boxes", appleDetectResult.size());
+    {
+        TRACE_SCOPE("publish");
+        std::lock_guard<std::mutex> guard(detectionPublisherMutex);
+        if (detectionPublisher.is_open()) {
+            detectionPublisher.publish(timestamp, stream, appleDetectResult.data(), appleDetectResult.size());
+        }
+    }
+    {
+        TRACE_SCOPE("log");
+        detectionLog.append(timestamp, stream, appleDetectResult.data(), appleDetectResult.size());
     }
-    std::vector<bbox> appleDetectResult = algoApplePerception->PerceptionProcess(frame);
-    LOGD("appleDetectResult size is %d", appleDetectResult.size());
 
+    TRACE_SCOPE("results");
     jobjectArray objArray = env->NewObjectArray(appleDetectResult.size(), mDetectedResult.clazz, nullptr);
 
     for(int i=0; i<appleDetectResult.size(); i++) {
         bbox box = appleDetectResult[i];
         jobject detectedResultObj = env->NewObject(mDetectedResult.clazz,
                                                        mDetectedResult.DetectedResult_id, box.classId, box.x1, box.y1,
-                                                       box.x2, box.y2, box.score);
+                                                       box.x2, box.y2, box.score, box.distance);
         env->SetObjectArrayElement(objArray, i, detectedResultObj);
-
-        LOGD("appleDetectResult box.classId %d, x1 %f, x2 %f, y1 %f, y2 %f,score %f", box.classId, box.x1, box.y1, box.x2, box.y2, box.score);
     }
     return objArray;
 
-}
\ No newline at end of file
+}
+
+JNIEXPORT jobjectArray JNICALL
+jni_detect(JNIEnv *env, jclass obj, jobject data, jint format, jint width, jint height) {
+    return jni_detect_stream(env, obj, DEFAULT_STREAM, data, format, width, height, 0, nullptr);
+}
+
+JNIEXPORT jobjectArray JNICALL
+jni_detect_stream(JNIEnv *env, jclass obj, jint stream, jobject data, jint format, jint width, jint height,
+                  jlong timestamp, jobject preview) {
+    // read in place, the buffer may be the vision service's own frame
+    char *imageData = (char *) env->GetDirectBufferAddress(data);
+    if (imageData == nullptr) {
+        LOGE("detect needs a direct buffer");
+        return nullptr;
+    }
+    // the stream's lock covers its scratch buffers as well as its engines
+    std::shared_ptr<StreamEngine> engine = getStreamEngine(stream);
+    if (engine == nullptr) {
+        LOGE("detect on released engine %d", stream);
+        return nullptr;
+    }
+    std::lock_guard<std::mutex> guard(engine->mutex);
+    if (engine->released) {
+        LOGE("detect on released engine %d", stream);
+        return nullptr;
+    }
+    cv::Mat &frame = engine->bgr;
+    {
+        TRACE_SCOPE("convert");
+        int64_t cpuStart = threadCpuTimeNs();
+        if (!convertToBgr(frame, imageData, format, width, height)) {
+            return nullptr;
+        }
+        if (preview != nullptr) {
+            renderPreview(env, preview, frame);
+        }
+        TRACE_COUNTER("convert_cpu_us", (threadCpuTimeNs() - cpuStart) / 1000);
+    }
+
+    return detectFrame(env, engine.get(), stream, getAlgoApplePerception(engine.get(), stream), timestamp, 1, 1);
+}
+
+
+// The image is decoded straight into the stream's frame at the reduced scale that still covers the
+// network input, instead of a full size Bitmap copied into a buffer and converted on every frame.
+jobjectArray detectEncoded(JNIEnv *env, int stream, const unsigned char *data, size_t size, jlong timestamp,
+                           jobject preview) {
+    std::shared_ptr<StreamEngine> engine = getStreamEngine(stream);
+    if (engine == nullptr) {
+        LOGE("detect on released engine %d", stream);
+        return nullptr;
+    }
+    std::lock_guard<std::mutex> guard(engine->mutex);
+    if (engine->released) {
+        LOGE("detect on released engine %d", stream);
+        return nullptr;
+    }
+    std::shared_ptr<AlgoApplePerception> algo = getAlgoApplePerception(engine.get(), stream);
+    int minSide = algo != nullptr && algo->isReady() ? algo->inputSize() : 0;
+    int width, height;
+    if (!decodeImage(data, size, minSide, engine->bgr, &width, &height)) {
+        LOGE("stream %d: image can not be decoded", stream);
+        return nullptr;
+    }
+    if (preview != nullptr) {
+        renderPreview(env, preview, engine->bgr);
+    }
+    // results in the coordinates of the full size image
+    return detectFrame(env, engine.get(), stream, algo, timestamp, (float) width / engine->bgr.cols,
+                       (float) height / engine->bgr.rows);
+}
+
+JNIEXPORT jobjectArray JNICALL
+jni_detect_image(JNIEnv *env, jclass obj, jint stream, jstring path, jlong timestamp, jobject preview) {
+    const char *imagePath = env->GetStringUTFChars(path, nullptr);
+    int fd = open(imagePath, O_RDONLY | O_CLOEXEC);
+    if (fd < 0) {
+        LOGE("can not open %s: %d", imagePath, errno);
+    }
+    env->ReleaseStringUTFChars(path, imagePath);
+    if (fd < 0) {
+        return nullptr;
+    }
+    struct stat st;
+    void *data = MAP_FAILED;
+    if (fstat(fd, &st) == 0 && st.st_size > 0) {
+        data = mmap(nullptr, st.st_size, PROT_READ, MAP_PRIVATE, fd, 0);
+    }
+    close(fd);
+    if (data == MAP_FAILED) {
+        LOGE("can not map the image: %d", errno);
+        return nullptr;
+    }
+    // the decoder reads the file once front to back
+    madvise(data, st.st_size, MADV_SEQUENTIAL);
+    jobjectArray results = detectEncoded(env, stream, (const unsigned char *) data, st.st_size, timestamp, preview);
+    munmap(data, st.st_size);
+    return results;
+}
+
+JNIEXPORT jobjectArray JNICALL
+jni_detect_image_buffer(JNIEnv *env, jclass obj, jint stream, jobject data, jint length, jlong timestamp,
+                        jobject preview) {
+    const unsigned char *imageData = (const unsigned char *) env->GetDirectBufferAddress(data);
+    if (imageData == nullptr || length <= 0 || length > env->GetDirectBufferCapacity(data)) {
+        LOGE("detect image needs a direct buffer holding length bytes");
+        return nullptr;
+    }
+    return detectEncoded(env, stream, imageData, (size_t) length, timestamp, preview);
+}
@@ -11,6 +11,42 @@
 
 void rgba2bgr(cv::Mat &frame, char *data, jint width, jint height);
 void yuv2bgr(cv::Mat &frame, char *data, jint width, jint height);
+bool convertToBgr(cv::Mat &frame, char *data, jint format, jint width, jint height);
+JNIEXPORT jfloat JNICALL jni_init(JNIEnv *env, jclass obj, jint warmupIterations);
+JNIEXPORT jfloat JNICALL jni_init_stream(JNIEnv *env, jclass obj, jint stream, jint warmupIterations);
+JNIEXPORT void JNICALL jni_release_stream(JNIEnv *env, jclass obj, jint stream);
+JNIEXPORT jint JNICALL jni_set_thread_affinity(JNIEnv *env, jclass obj, jlong cpuMask);
+JNIEXPORT void JNICALL jni_set_num_threads(JNIEnv *env, jclass obj, jint inferenceThreads, jint opencvThreads);
+JNIEXPORT void JNICALL jni_set_roi_mode(JNIEnv *env, jclass obj, jboolean enable, jint refreshInterval);
+JNIEXPORT void JNICALL jni_set_latency_budget(JNIEnv *env, jclass obj, jfloat budgetMs);
+JNIEXPORT jint JNICALL jni_get_input_size(JNIEnv *env, jclass obj, jint stream);
+JNIEXPORT void JNICALL jni_register_model(JNIEnv *env, jclass obj, jstring id, jstring path);
+JNIEXPORT jboolean JNICALL jni_select_model(JNIEnv *env, jclass obj, jint stream, jstring id);
+JNIEXPORT void JNICALL jni_set_model_memory_budget(JNIEnv *env, jclass obj, jlong bytes);
+JNIEXPORT jstring JNICALL jni_get_model_stats(JNIEnv *env, jclass obj);
+JNIEXPORT void JNICALL jni_set_intrinsics(JNIEnv *env, jclass obj, jint stream, jint width, jint height, jfloat fx, jfloat fy, jfloat cx, jfloat cy, jfloat distortion);
+JNIEXPORT jint JNICALL jni_create_engine(JNIEnv *env, jclass obj, jstring id, jint warmupIterations);
+JNIEXPORT jboolean JNICALL jni_configure_engine(JNIEnv *env, jclass obj, jint handle, jfloat confThresh, jfloat nmsThresh);
+JNIEXPORT jboolean JNICALL jni_swap_model(JNIEnv *env, jclass obj, jint handle, jstring id, jint warmupIterations);
+JNIEXPORT jstring JNICALL jni_get_engine_model(JNIEnv *env, jclass obj, jint handle);
+JNIEXPORT void JNICALL jni_release_engine(JNIEnv *env, jclass obj, jint handle);
+JNIEXPORT jboolean JNICALL jni_set_presence_gate(JNIEnv *env, jclass obj, jint handle, jstring path, jfloat threshold, jint auditInterval);
+JNIEXPORT jstring JNICALL jni_get_cascade_stats(JNIEnv *env, jclass obj, jint handle);
 JNIEXPORT jobjectArray JNICALL jni_detect(JNIEnv *env, jclass obj, jobject data, jint format, jint width, jint height);
+JNIEXPORT jobjectArray JNICALL jni_detect_stream(JNIEnv *env, jclass obj, jint stream, jobject data, jint format, jint width, jint height, jlong timestamp, jobject preview);
+JNIEXPORT jobjectArray JNICALL jni_detect_image(JNIEnv *env, jclass obj, jint stream, jstring path, jlong timestamp, jobject preview);
+JNIEXPORT jobjectArray JNICALL jni_detect_image_buffer(JNIEnv *env, jclass obj, jint stream, jobject data, jint length, jlong timestamp, jobject preview);
+JNIEXPORT jboolean JNICALL jni_render_preview(JNIEnv *env, jclass obj, jobject data, jint format, jint width, jint height, jobject preview);
+JNIEXPORT jboolean JNICALL jni_open_publisher(JNIEnv *env, jclass obj, jstring path, jint slotCount, jint maxBoxes);
+JNIEXPORT void JNICALL jni_close_publisher(JNIEnv *env, jclass obj);
+JNIEXPORT jboolean JNICALL jni_open_detection_log(JNIEnv *env, jclass obj, jstring dir, jint segmentRecords, jint maxSegments);
+JNIEXPORT void JNICALL jni_close_detection_log(JNIEnv *env, jclass obj);
+JNIEXPORT jboolean JNICALL jni_start_server(JNIEnv *env, jclass obj, jstring name, jint maxBatch);
+JNIEXPORT void JNICALL jni_stop_server(JNIEnv *env, jclass obj);
+JNIEXPORT jint JNICALL jni_trace_name(JNIEnv *env, jclass obj, jstring name);
+JNIEXPORT void JNICALL jni_trace_begin(JNIEnv *env, jclass obj, jint id, jlong arg);
+JNIEXPORT void JNICALL jni_trace_end(JNIEnv *env, jclass obj, jint id);
+JNIEXPORT void JNICALL jni_trace_enable(JNIEnv *env, jclass obj, jboolean enable);
+JNIEXPORT jint JNICALL jni_trace_dump(JNIEnv *env, jclass obj, jstring path);
 
 #endif //VISIONSERVICE_VISIONNATIVE_H
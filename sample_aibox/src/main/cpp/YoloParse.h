@@ -0,0 +1,152 @@
+//
+// YOLOv3 output decoding and per-class NMS on caller owned vectors. Once the vectors have grown
+// to the worst case (reserve with yolo_max_candidates) a frame does no heap allocation. Templated
+// on the box type and only depends on libc, so the host test can include it as is.
+//
+
+#ifndef YOLOPARSE_H
+#define YOLOPARSE_H
+
+#include <algorithm>
+#include <cmath>
+#include <cstddef>
+#include <vector>
+
+namespace ninebot_algo {
+    namespace cnn_ninebot {
+
+        struct YoloParams {
+            int grid_w;             // cells of the coarsest output, output s has grid * 2^s
+            int grid_h;
+            int num_object;         // anchors per cell
+            int classes;
+            const float *anchors;   // output * num_object * (w, h)
+            float anchor_norm_x;    // anchor units -> normalized box size
+            float anchor_norm_y;
+            float conf_thresh;
+        };
+
+        // The parameters for running a model trained at trained_w x trained_h, whose coarsest output
+        // was trained_grid_w x trained_grid_h, at an input of input_w x input_h. The grid follows the
+        // input at the trained stride. Anchors are pixels of the input being run, like darknet's
+        // get_yolo_box divides by net.w, so a box keeps its size relative to the frame at every input.
+        inline YoloParams yolo_params(int trained_grid_w, int trained_grid_h, int trained_w, int trained_h,
+                                      int input_w, int input_h, int num_object, int classes, const float *anchors,
+                                      float conf_thresh) {
+            YoloParams params;
+            params.grid_w = input_w / (trained_w / trained_grid_w);
+            params.grid_h = input_h / (trained_h / trained_grid_h);
+            params.num_object = num_object;
+            params.classes = classes;
+            params.anchors = anchors;
+            params.anchor_norm_x = 1.f / input_w;
+            params.anchor_norm_y = 1.f / input_h;
+            params.conf_thresh = conf_thresh;
+            return params;
+        }
+
+        // every anchor of every cell of the first outputs scales
+        inline size_t yolo_max_candidates(const YoloParams &params, int outputs) {
+            size_t cells = 0;
+            for (int s = 0; s < outputs; s++)
+                cells += (size_t) params.grid_w * params.grid_h << (2 * s);
+            return cells * params.num_object;
+        }
+
+        inline float yolo_sigmoid(float x) {
+            return 1 / (1 + std::exp(-x));
+        }
+
+        // Append the boxes over conf_thresh of every output, normalized to [0, 1]. Outputs holding
+        // fewer than bytes[s] for their grid are skipped; returns how many were.
+        template<typename Box>
+        inline int yolo_decode(const float *const *outs, const size_t *bytes, int outputs, const YoloParams &params,
+                               std::vector<Box> &boxes) {
+            int skipped = 0;
+            int stride = params.num_object * (params.classes + 5);
+            for (int s = 0; s < outputs; ++s) {
+                const float *resdata = outs[s];
+                int outputwidth = params.grid_w << s;
+                int outputheight = params.grid_h << s;
+                int map_pixel_size = outputheight * outputwidth;
+                if (bytes[s] < (size_t) map_pixel_size * stride * sizeof(float)) {
+                    skipped++;
+                    continue;
+                }
+                for (int i = 0; i < map_pixel_size; i++) {
+                    int j = i * stride;
+                    for (int k = 0; k < params.num_object; k++) {
+                        int obj = k * (params.classes + 5);
+                        // conf
+                        float conf = yolo_sigmoid(resdata[j + obj + 4]);
+                        if (conf < params.conf_thresh)
+                            continue;
+                        // class
+                        int max_class = 0;
+                        float class_conf = -10000.;
+                        for (int cls = 0; cls < params.classes; cls++) {
+                            float cls_score = yolo_sigmoid(resdata[j + obj + cls + 5]);
+                            if (cls_score > class_conf) {
+                                class_conf = cls_score;
+                                max_class = cls;
+                            }
+                        }
+                        // bbox
+                        float width = std::exp(resdata[j + obj + 2]) *
+                                      params.anchors[(s * params.num_object + k) * 2] * params.anchor_norm_x;
+                        float height = std::exp(resdata[j + obj + 3]) *
+                                       params.anchors[(s * params.num_object + k) * 2 + 1] * params.anchor_norm_y;
+                        float cx = (i % outputwidth + yolo_sigmoid(resdata[j + obj])) / outputwidth;
+                        float cy = (i / outputwidth + yolo_sigmoid(resdata[j + obj + 1])) / outputheight;
+                        Box box;
+                        box.x1 = std::max(cx - width / 2, 0.f);
+                        box.y1 = std::max(cy - height / 2, 0.f);
+                        box.x2 = std::min(cx + width / 2, 1.f);
+                        box.y2 = std::min(cy + height / 2, 1.f);
+                        box.score = class_conf * conf;
+                        box.classId = max_class;
+                        boxes.push_back(box);
+                    }
+                }
+            }
+            return skipped;
+        }
+
+        // Greedy NMS per class in place: a box is dropped when its intersection covers more than
+        // thresh of a higher scoring box of the same class. The result is grouped by class in
+        // ascending id and sorted by descending score within a class; ids outside [0, classes)
+        // are dropped. suppressed is scratch, reused between calls.
+        template<typename Box>
+        inline void nms_in_place(std::vector<Box> &boxes, int classes, float thresh,
+                                 std::vector<unsigned char> &suppressed) {
+            std::sort(boxes.begin(), boxes.end(), [](const Box &a, const Box &b) {
+                return a.classId != b.classId ? a.classId < b.classId : a.score > b.score;
+            });
+            size_t n = boxes.size();
+            suppressed.assign(n, 0);
+            for (size_t j = 0; j < n; j++) {
+                if (suppressed[j])
+                    continue;
+                const Box &a = boxes[j];
+                float area = (a.x2 - a.x1 + 0.0001f) * (a.y2 - a.y1 + 0.0001f);
+                for (size_t k = j + 1; k < n && boxes[k].classId == a.classId; k++) {
+                    if (suppressed[k])
+                        continue;
+                    const Box &b = boxes[k];
+                    float w = std::min(a.x2, b.x2) - std::max(a.x1, b.x1) + 0.0001f;
+                    float h = std::min(a.y2, b.y2) - std::max(a.y1, b.y1) + 0.0001f;
+                    if (w > 0 && h > 0 && w * h / area > thresh)
+                        suppressed[k] = 1;
+                }
+            }
+            size_t kept = 0;
+            for (size_t j = 0; j < n; j++) {
+                if (!suppressed[j] && boxes[j].classId >= 0 && boxes[j].classId < classes)
+                    boxes[kept++] = boxes[j];
+            }
+            boxes.resize(kept);
+        }
+    }
+}
+
+#endif //YOLOPARSE_H
@@ -3,9 +3,12 @@
 
 #include <thread>
 #include <mutex>
+#include <atomic>
 #include <tensorflow/lite/context.h>
 #include <opencv2/opencv.hpp>
 #include <unordered_map>
+#include "../InputSizeController.h"
+#include "../YoloParse.h"
 
 #define _FOV_DISTORTION_
 
@@ -23,11 +26,16 @@ namespace ninebot_algo { namespace cnn_ninebot {
 		float x2;
 		float y2;
 		float score;
+		float distance = -1;	// metres to the box's foot point on the ground, -1 when unknown
 	};
 	struct segmentor_config {
 		int input_width = 512;
 		int input_height = 512;
         int input_depth = 3;
+		// input widths the model may be resized to when inference is over the latency budget,
+		// multiples of input_w / grid_w, the height follows the aspect ratio
+		std::vector<int> input_sizes{320, 416, 512};
+		float latency_budget_ms = 0;	// 0 always runs at input_width
 		int num_classes = 3;
 		std::string frozen_net_path;
         bool enable_multi_thread = false;
@@ -102,19 +110,65 @@ namespace ninebot_algo { namespace cnn_ninebot {
 		ApplePerception(const segmentor_config &cfg);
 		~ApplePerception();
 		void operator() (const cv::Mat &src_img, std::vector<bbox> &pedestrian_boxes, int handLoc);
-
-        segmentor_config get_segmentor_config();
+		// detect on a region of the frame at input_width, one of the allowed input sizes. The
+		// interpreter of a size is built on first use.
+		void detect_region(const cv::Mat &region, std::vector<bbox> &boxes, int input_width);
+		// smallest allowed input width that samples a region side_px wide at least as densely as
+		// the current input samples a full crop full_px wide, at most the current input width
+		int region_input_size(int side_px, int full_px) const;
+
+		// run inference on a zeroed input so the first real frame does not pay for
+		// delegate compilation and lazy allocations, return the total cost in ms
+		float warmup(int iterations);
+		bool is_ready() const { return ready_; }
+		// number of cpu threads used by the interpreter, <= 0 lets tflite decide
+		void set_num_threads(int num_threads);
+		// <= 0 goes back to input_width
+		void set_latency_budget(float budget_ms);
+		// detection confidence and NMS overlap thresholds, negative values keep the current one
+		void set_thresholds(float conf_thresh, float nms_thresh);
+		// input width used for the next frame
+		int input_size() const { return input_size_; }
+		// bytes of the mapped flatbuffer
+		size_t model_bytes() const;
+		// bytes of the cpu side tensors of every interpreter, delegate buffers are not visible here
+		size_t tensor_bytes() const;
+
+        const segmentor_config &get_segmentor_config() const;
 	private:
-		std::unique_ptr<tflite::Interpreter> interpreter_;
-		std::unique_ptr<tflite::FlatBufferModel> model_;
-		TfLiteDelegate* delegate_;
+		// one interpreter per input size sharing the model, built when the size is first used
+		struct sized_interpreter {
+			int width;
+			int height;
+			std::unique_ptr<tflite::Interpreter> interpreter;
+			TfLiteDelegate* delegate = nullptr;
+			cv::Mat resized;	// network input before normalization
+		};
+		std::vector<std::unique_ptr<sized_interpreter>> interpreters_;
+		tflite::Interpreter* interpreter_ = nullptr;	// the one of input_size_
+		sized_interpreter* active_ = nullptr;
+		std::shared_ptr<tflite::FlatBufferModel> model_;
+		std::atomic<int> input_size_;
+		int input_height_;
+		int num_threads_ = 0;
+		InputSizeController size_controller_;
 		segmentor_config cfg_;
 		float* cam_paras_;
 		mutable std::mutex operator_mutex_;
+		bool ready_ = false;
 
 		bool is_large_fov_;
-		void pedestrian_yolo_parse(const std::vector<TfLiteTensor*> outs, std::vector<bbox> &pedestrian_boxes);
-		void run_quantization(const cv::Mat &src_img, std::vector<bbox> &pedestrian_boxes, int handLoc);
+		sized_interpreter *get_interpreter(int width);
+		bool select_input_size(int width);
+		// per-frame scratch, reserved for the worst case at construction
+		static const int MAX_YOLO_OUTPUTS = 3;
+		std::vector<bbox> candidates_;
+		std::vector<unsigned char> suppressed_;
+		void pedestrian_yolo_parse(TfLiteTensor* const *outs, int count, int input_width, int input_height,
+								   std::vector<bbox> &pedestrian_boxes);
+		// only the full frame feeds its latency to the size controller
+		void run_quantization(const cv::Mat &src_img, std::vector<bbox> &pedestrian_boxes, int handLoc,
+							  sized_interpreter *sized, bool control_size);
     	bool large_fov_decider();
 	};
 } }
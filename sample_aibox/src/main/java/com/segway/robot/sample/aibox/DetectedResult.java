@@ -2,12 +2,17 @@ package com.segway.robot.sample.aibox;
 
 public class DetectedResult {
     public DetectedResult(int id, float x1, float y1, float x2, float y2, float score) {
+        this(id, x1, y1, x2, y2, score, -1);
+    }
+
+    public DetectedResult(int id, float x1, float y1, float x2, float y2, float score, float distance) {
         this.id = id;
         this.x1 = x1;
         this.y1 = y1;
         this.x2 = x2;
         this.y2 = y2;
         this.score = score;
+        this.distance = distance;
     }
 
     public int id;
@@ -16,4 +21,8 @@ public class DetectedResult {
     public float x2;
     public float y2;
     public float score;
+    /**
+     * Distance on the ground to the bottom of the box in metres, -1 if unknown or out of range.
+     */
+    public float distance;
 }
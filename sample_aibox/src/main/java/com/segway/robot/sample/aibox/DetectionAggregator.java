@@ -0,0 +1,126 @@
+package com.segway.robot.sample.aibox;
+
+/**
+ * Live statistics over the detections of the last {@link #WINDOW_SECONDS} seconds: detections per
+ * minute, a score histogram per class and a coarse heatmap of box centres in the frame.
+ * The window is a ring of one second buckets kept in fixed primitive arrays next to running
+ * totals, so an update costs O(1) per box, memory does not grow however long the app runs, and a
+ * snapshot is a few array copies into a caller owned {@link Snapshot}.
+ */
+public class DetectionAggregator {
+
+    public static final int WINDOW_SECONDS = 60;
+    public static final int SCORE_BINS = 10;
+    public static final int GRID_COLUMNS = 16;
+    public static final int GRID_ROWS = 12;
+    private static final int CELLS = GRID_COLUMNS * GRID_ROWS;
+
+    private final int mClassCount;
+    // per bucket, and the sum over all buckets in the window
+    private final int[] mBucketCounts = new int[WINDOW_SECONDS];
+    private final int[] mBucketScores;
+    private final int[] mBucketCells = new int[WINDOW_SECONDS * CELLS];
+    private int mWindowCount;
+    private final int[] mWindowScores;
+    private final int[] mWindowCells = new int[CELLS];
+    private long mTotalCount;
+    private long mCurrentSecond = -1;
+    private long mStartSecond = -1;
+
+    public DetectionAggregator(int classCount) {
+        mClassCount = classCount;
+        mBucketScores = new int[WINDOW_SECONDS * classCount * SCORE_BINS];
+        mWindowScores = new int[classCount * SCORE_BINS];
+    }
+
+    /**
+     * Add the results of one frame. Boxes are in frame pixels, ids outside [0, classCount)
+     * only count towards the rate.
+     */
+    public synchronized void update(DetectedResult[] results, int frameWidth, int frameHeight, long nowMs) {
+        advance(nowMs / 1000);
+        if (results == null || frameWidth <= 0 || frameHeight <= 0) {
+            return;
+        }
+        int bucket = (int) (mCurrentSecond % WINDOW_SECONDS);
+        for (DetectedResult result : results) {
+            mBucketCounts[bucket]++;
+            mWindowCount++;
+            mTotalCount++;
+            if (result.id >= 0 && result.id < mClassCount) {
+                int bin = Math.min(SCORE_BINS - 1, Math.max(0, (int) (result.score * SCORE_BINS)));
+                int score = result.id * SCORE_BINS + bin;
+                mBucketScores[bucket * mClassCount * SCORE_BINS + score]++;
+                mWindowScores[score]++;
+            }
+            int column = clamp((int) ((result.x1 + result.x2) / 2 * GRID_COLUMNS / frameWidth), GRID_COLUMNS);
+            int row = clamp((int) ((result.y1 + result.y2) / 2 * GRID_ROWS / frameHeight), GRID_ROWS);
+            int cell = row * GRID_COLUMNS + column;
+            mBucketCells[bucket * CELLS + cell]++;
+            mWindowCells[cell]++;
+        }
+    }
+
+    public synchronized void snapshot(long nowMs, Snapshot out) {
+        advance(nowMs / 1000);
+        // until a full window has passed, extrapolate from the time covered so far
+        long coveredSeconds = Math.min(WINDOW_SECONDS, mCurrentSecond - mStartSecond + 1);
+        out.perMinute = coveredSeconds > 0 ? mWindowCount * 60f / coveredSeconds : 0;
+        out.windowCount = mWindowCount;
+        out.totalCount = mTotalCount;
+        if (out.scoreHistogram == null || out.scoreHistogram.length != mWindowScores.length) {
+            out.scoreHistogram = new int[mWindowScores.length];
+        }
+        System.arraycopy(mWindowScores, 0, out.scoreHistogram, 0, mWindowScores.length);
+        System.arraycopy(mWindowCells, 0, out.heatmap, 0, CELLS);
+    }
+
+    // expire the buckets that left the window since the last call
+    private void advance(long second) {
+        if (mCurrentSecond < 0) {
+            mCurrentSecond = second;
+            mStartSecond = second;
+            return;
+        }
+        if (second <= mCurrentSecond) {
+            return;
+        }
+        long expired = Math.min(second - mCurrentSecond, WINDOW_SECONDS);
+        int scoreStride = mClassCount * SCORE_BINS;
+        for (long s = second - expired + 1; s <= second; s++) {
+            int bucket = (int) (s % WINDOW_SECONDS);
+            mWindowCount -= mBucketCounts[bucket];
+            mBucketCounts[bucket] = 0;
+            for (int i = 0; i < scoreStride; i++) {
+                mWindowScores[i] -= mBucketScores[bucket * scoreStride + i];
+                mBucketScores[bucket * scoreStride + i] = 0;
+            }
+            for (int i = 0; i < CELLS; i++) {
+                mWindowCells[i] -= mBucketCells[bucket * CELLS + i];
+                mBucketCells[bucket * CELLS + i] = 0;
+            }
+        }
+        mCurrentSecond = second;
+    }
+
+    private static int clamp(int value, int size) {
+        return Math.min(size - 1, Math.max(0, value));
+    }
+
+    /**
+     * Reuse one instance per poller, {@link #snapshot} only allocates on the first call.
+     */
+    public static class Snapshot {
+        public float perMinute;
+        public int windowCount;
+        public long totalCount;
+        /**
+         * Detections per class and score bin, index id * SCORE_BINS + bin.
+         */
+        public int[] scoreHistogram;
+        /**
+         * Detections per grid cell, index row * GRID_COLUMNS + column.
+         */
+        public final int[] heatmap = new int[CELLS];
+    }
+}
@@ -0,0 +1,236 @@
+package com.segway.robot.sample.aibox;
+
+/**
+ * Uniform grid over the box centres of the latest frame's results, for targeting queries such as
+ * the k boxes nearest to a point or all boxes inside a region of interest without scanning every
+ * result. {@link #update} rebuilds it in O(n) with a counting sort into primitive arrays that are
+ * kept across frames and only grow, and the grid resolution follows the box count with some
+ * hysteresis so frames of similar size reuse the same layout. Queries write result indices into
+ * caller owned arrays and do not allocate.
+ */
+public class DetectionIndex {
+
+    // boxes per cell the grid is sized for, and how far the count may drift before it is resized
+    private static final int TARGET_PER_CELL = 2;
+    private static final int RESIZE_FACTOR = 2;
+    private static final int MAX_SIDE = 256;
+
+    private DetectedResult[] mResults;
+    private int mCount;
+    private float[] mCentreX = new float[0];
+    private float[] mCentreY = new float[0];
+    private int[] mCellOf = new int[0];
+    private int[] mCellItems = new int[0];
+    private float mMaxHalfWidth;
+    private float mMaxHalfHeight;
+    private int mFrameWidth;
+    private int mFrameHeight;
+    private int mColumns;
+    private int mRows;
+    private float mCellWidth;
+    private float mCellHeight;
+    // start of each cell in mCellItems, one past the last cell at [cells]
+    private int[] mCellStart = new int[0];
+    // squared distances of the candidates of a nearest query
+    private float[] mBestDistance = new float[0];
+
+    /**
+     * Index the results of a frame, replacing the previous ones. Boxes are in frame pixels and the
+     * indices the queries return are into this array.
+     */
+    public synchronized void update(DetectedResult[] results, int frameWidth, int frameHeight) {
+        int count = results != null && frameWidth > 0 && frameHeight > 0 ? results.length : 0;
+        mResults = results;
+        mCount = count;
+        ensureCapacity(count);
+        layout(count, frameWidth, frameHeight);
+        int cells = mColumns * mRows;
+        for (int c = 0; c <= cells; c++) {
+            mCellStart[c] = 0;
+        }
+        mMaxHalfWidth = 0;
+        mMaxHalfHeight = 0;
+        for (int i = 0; i < count; i++) {
+            DetectedResult result = results[i];
+            float x = (result.x1 + result.x2) / 2;
+            float y = (result.y1 + result.y2) / 2;
+            mCentreX[i] = x;
+            mCentreY[i] = y;
+            mMaxHalfWidth = Math.max(mMaxHalfWidth, Math.abs(result.x2 - result.x1) / 2);
+            mMaxHalfHeight = Math.max(mMaxHalfHeight, Math.abs(result.y2 - result.y1) / 2);
+            int cell = row(y) * mColumns + column(x);
+            mCellOf[i] = cell;
+            mCellStart[cell + 1]++;
+        }
+        for (int c = 0; c < cells; c++) {
+            mCellStart[c + 1] += mCellStart[c];
+        }
+        // scatter, advancing each start to the end of its cell, then shift the starts back
+        for (int i = 0; i < count; i++) {
+            mCellItems[mCellStart[mCellOf[i]]++] = i;
+        }
+        for (int c = cells; c > 0; c--) {
+            mCellStart[c] = mCellStart[c - 1];
+        }
+        mCellStart[0] = 0;
+    }
+
+    public synchronized int size() {
+        return mCount;
+    }
+
+    /**
+     * Result at an index returned by a query, from the frame indexed last.
+     */
+    public synchronized DetectedResult get(int index) {
+        return mResults[index];
+    }
+
+    /**
+     * Indices of the k boxes whose centres are nearest to (x, y), nearest first.
+     *
+     * @return the number of indices written to out, at most k and out.length
+     */
+    public synchronized int nearest(float x, float y, int k, int[] out) {
+        k = Math.min(Math.min(k, out.length), mCount);
+        if (k <= 0) {
+            return 0;
+        }
+        if (mBestDistance.length < k) {
+            mBestDistance = new float[k];
+        }
+        int column = column(x);
+        int row = row(y);
+        int found = 0;
+        for (int ring = 0; ; ring++) {
+            int left = column - ring, right = column + ring, top = row - ring, bottom = row + ring;
+            for (int r = Math.max(top, 0); r <= Math.min(bottom, mRows - 1); r++) {
+                boolean edgeRow = r == top || r == bottom;
+                // inner rows only have the two cells on the ring
+                int step = edgeRow ? 1 : Math.max(right - left, 1);
+                for (int c = left; c <= right; c += step) {
+                    if (c < 0 || c >= mColumns) {
+                        continue;
+                    }
+                    int cell = r * mColumns + c;
+                    for (int j = mCellStart[cell]; j < mCellStart[cell + 1]; j++) {
+                        int i = mCellItems[j];
+                        float dx = mCentreX[i] - x, dy = mCentreY[i] - y;
+                        found = insert(i, dx * dx + dy * dy, found, k, out);
+                    }
+                }
+            }
+            boolean covered = left <= 0 && top <= 0 && right >= mColumns - 1 && bottom >= mRows - 1;
+            if (covered) {
+                break;
+            }
+            if (found == k) {
+                // every box outside the cells searched so far is at least this far away
+                float gap = Float.MAX_VALUE;
+                if (left > 0) {
+                    gap = Math.min(gap, x - left * mCellWidth);
+                }
+                if (right < mColumns - 1) {
+                    gap = Math.min(gap, (right + 1) * mCellWidth - x);
+                }
+                if (top > 0) {
+                    gap = Math.min(gap, y - top * mCellHeight);
+                }
+                if (bottom < mRows - 1) {
+                    gap = Math.min(gap, (bottom + 1) * mCellHeight - y);
+                }
+                if (gap > 0 && gap * gap >= mBestDistance[k - 1]) {
+                    break;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Indices of the boxes that overlap the region, in no particular order.
+     *
+     * @return the number of indices written to out, at most out.length
+     */
+    public synchronized int query(float left, float top, float right, float bottom, int[] out) {
+        if (mCount == 0 || out.length == 0) {
+            return 0;
+        }
+        // a box overlapping the region has its centre within the largest half extent of it
+        int firstColumn = column(left - mMaxHalfWidth), lastColumn = column(right + mMaxHalfWidth);
+        int firstRow = row(top - mMaxHalfHeight), lastRow = row(bottom + mMaxHalfHeight);
+        int found = 0;
+        for (int r = firstRow; r <= lastRow; r++) {
+            for (int c = firstColumn; c <= lastColumn; c++) {
+                int cell = r * mColumns + c;
+                for (int j = mCellStart[cell]; j < mCellStart[cell + 1]; j++) {
+                    int i = mCellItems[j];
+                    DetectedResult result = mResults[i];
+                    if (Math.min(result.x1, result.x2) <= right && Math.max(result.x1, result.x2) >= left
+                            && Math.min(result.y1, result.y2) <= bottom && Math.max(result.y1, result.y2) >= top) {
+                        out[found++] = i;
+                        if (found == out.length) {
+                            return found;
+                        }
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    // keep the sorted candidates in out and mBestDistance
+    private int insert(int index, float distance, int found, int k, int[] out) {
+        if (found == k && distance >= mBestDistance[k - 1]) {
+            return found;
+        }
+        int j = found < k ? found++ : k - 1;
+        while (j > 0 && mBestDistance[j - 1] > distance) {
+            mBestDistance[j] = mBestDistance[j - 1];
+            out[j] = out[j - 1];
+            j--;
+        }
+        mBestDistance[j] = distance;
+        out[j] = index;
+        return found;
+    }
+
+    private void ensureCapacity(int count) {
+        if (mCentreX.length >= count) {
+            return;
+        }
+        int capacity = Math.max(count, mCentreX.length * 2);
+        mCentreX = new float[capacity];
+        mCentreY = new float[capacity];
+        mCellOf = new int[capacity];
+        mCellItems = new int[capacity];
+    }
+
+    private void layout(int count, int frameWidth, int frameHeight) {
+        int cells = Math.max(1, count / TARGET_PER_CELL);
+        int current = mColumns * mRows;
+        boolean sameFrame = frameWidth == mFrameWidth && frameHeight == mFrameHeight;
+        if (sameFrame && current > 0 && cells <= current * RESIZE_FACTOR && cells * RESIZE_FACTOR >= current) {
+            return;
+        }
+        mFrameWidth = Math.max(frameWidth, 1);
+        mFrameHeight = Math.max(frameHeight, 1);
+        float aspect = (float) mFrameWidth / mFrameHeight;
+        mColumns = Math.min(MAX_SIDE, Math.max(1, (int) Math.ceil(Math.sqrt(cells * aspect))));
+        mRows = Math.min(MAX_SIDE, Math.max(1, (cells + mColumns - 1) / mColumns));
+        mCellWidth = (float) mFrameWidth / mColumns;
+        mCellHeight = (float) mFrameHeight / mRows;
+        if (mCellStart.length < mColumns * mRows + 1) {
+            mCellStart = new int[mColumns * mRows + 1];
+        }
+    }
+
+    // cells of positions outside the frame are clamped to the border cells
+    private int column(float x) {
+        return Math.min(mColumns - 1, Math.max(0, (int) (x / mCellWidth)));
+    }
+
+    private int row(float y) {
+        return Math.min(mRows - 1, Math.max(0, (int) (y / mCellHeight)));
+    }
+}
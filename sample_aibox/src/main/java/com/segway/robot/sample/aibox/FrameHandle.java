@@ -0,0 +1,91 @@
+package com.segway.robot.sample.aibox;
+
+import com.segway.robot.sdk.vision.frame.Frame;
+import com.segway.robot.sdk.vision.stream.Resolution;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference counted view of one camera frame. Native code reads {@link #getBuffer()} in place
+ * through GetDirectBufferAddress, so nothing is copied on the way to the detector. Every consumer
+ * that keeps the frame past the call that handed it over calls {@link #retain()} and later
+ * {@link #release()}; the frame goes back to the vision service when the last reference is gone.
+ * The frame info is read up front, so it stays valid in copy-out mode where the frame itself is
+ * returned right away.
+ */
+public class FrameHandle {
+
+    private final FrameSource mSource;
+    private final Frame mFrame;
+    private final ByteBuffer mBuffer;
+    private final int mPixelFormat;
+    private final int mWidth;
+    private final int mHeight;
+    private final long mPlatformTimestamp;
+    private final boolean mIsCopy;
+    private final AtomicInteger mRefCount = new AtomicInteger(1);
+
+    FrameHandle(FrameSource source, Frame frame, ByteBuffer buffer, boolean isCopy) {
+        mSource = source;
+        mFrame = frame;
+        mBuffer = buffer;
+        mIsCopy = isCopy;
+        mPixelFormat = frame.getInfo().getPixelFormat();
+        int resolution = frame.getInfo().getResolution();
+        mWidth = Resolution.getWidth(resolution);
+        mHeight = Resolution.getHeight(resolution);
+        mPlatformTimestamp = frame.getInfo().getPlatformTimeStamp();
+    }
+
+    /**
+     * Direct buffer with the pixel data, either the service's own buffer or a private copy.
+     */
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    public int getPixelFormat() {
+        return mPixelFormat;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public long getPlatformTimestamp() {
+        return mPlatformTimestamp;
+    }
+
+    /**
+     * True when the pixels were copied out and the frame is already back in the service's pool.
+     */
+    public boolean isCopy() {
+        return mIsCopy;
+    }
+
+    public FrameHandle retain() {
+        if (mRefCount.getAndIncrement() <= 0) {
+            mRefCount.decrementAndGet();
+            throw new IllegalStateException("frame already released");
+        }
+        return this;
+    }
+
+    Frame getFrame() {
+        return mFrame;
+    }
+
+    public void release() {
+        int refCount = mRefCount.decrementAndGet();
+        if (refCount == 0) {
+            mSource.recycle(this);
+        } else if (refCount < 0) {
+            throw new IllegalStateException("frame released too often");
+        }
+    }
+}
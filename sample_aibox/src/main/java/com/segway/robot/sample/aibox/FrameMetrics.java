@@ -0,0 +1,127 @@
+package com.segway.robot.sample.aibox;
+
+import android.os.SystemClock;
+
+/**
+ * Per-stream pipeline metrics in the shared {@link MetricsRegistry}, named "&lt;prefix&gt;.&lt;metric&gt;".
+ * One capture thread calls the on* methods of an instance, except {@link #onPresented} and
+ * {@link #onDisplayed} which come from the UI thread and, in push mode, {@link #onCaptured}, {@link #onReturned} and
+ * {@link #onSuperseded} which come from the service's frame callback.
+ */
+public class FrameMetrics {
+
+    private final MetricsRegistry.Counter mCaptured;
+    private final MetricsRegistry.Counter mRepeated;
+    private final MetricsRegistry.Counter mDropped;
+    private final MetricsRegistry.Counter mSuperseded;
+    private final MetricsRegistry.Counter mDetected;
+    private final MetricsRegistry.Counter mPresented;
+    private final MetricsRegistry.Counter mCoalesced;
+    private final MetricsRegistry.Histogram mJniTimeUs;
+    private final MetricsRegistry.Histogram mDisplayAgeUs;
+    private final MetricsRegistry.Histogram mDetectAgeUs;
+    private final MetricsRegistry.Histogram mFrameCpuUs;
+    private final MetricsRegistry.Gauge mFramesHeld;
+    private final MetricsRegistry.Gauge mInputSize;
+    private long mLastTimestamp = -1;
+    private long mMinInterval = Long.MAX_VALUE;
+
+    public FrameMetrics(String prefix) {
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        mCaptured = registry.counter(prefix + ".capture.frames");
+        mRepeated = registry.counter(prefix + ".capture.repeated");
+        mDropped = registry.counter(prefix + ".capture.dropped");
+        mSuperseded = registry.counter(prefix + ".capture.superseded");
+        mDetected = registry.counter(prefix + ".inference.frames");
+        mPresented = registry.counter(prefix + ".display.presented");
+        mCoalesced = registry.counter(prefix + ".display.coalesced");
+        mJniTimeUs = registry.histogram(prefix + ".inference.jni_us");
+        mDisplayAgeUs = registry.histogram(prefix + ".display.frame_age_us");
+        mDetectAgeUs = registry.histogram(prefix + ".inference.frame_age_us");
+        mFrameCpuUs = registry.histogram(prefix + ".frame.cpu_us");
+        mFramesHeld = registry.gauge(prefix + ".pool.frames_held");
+        mInputSize = registry.gauge(prefix + ".inference.input_size");
+    }
+
+    /**
+     * A frame was taken from the vision service. Frames the service skipped are estimated from
+     * gaps in the platform timestamps against the shortest interval seen so far.
+     */
+    public void onCaptured(long platformTimestamp) {
+        mFramesHeld.inc();
+        if (platformTimestamp == mLastTimestamp) {
+            mRepeated.inc();
+            return;
+        }
+        mCaptured.inc();
+        if (mLastTimestamp >= 0 && platformTimestamp > mLastTimestamp) {
+            long interval = platformTimestamp - mLastTimestamp;
+            if (interval < mMinInterval) {
+                mMinInterval = interval;
+            }
+            long skipped = (interval + mMinInterval / 2) / mMinInterval - 1;
+            if (skipped > 0) {
+                mDropped.add(skipped);
+            }
+        }
+        mLastTimestamp = platformTimestamp;
+    }
+
+    public void onReturned() {
+        mFramesHeld.dec();
+    }
+
+    /**
+     * A pushed frame was replaced by a newer one before the consumer took it.
+     */
+    public void onSuperseded() {
+        mSuperseded.inc();
+    }
+
+    /**
+     * Detection of the frame captured at platformTimestamp returned after jniTimeNs in native
+     * code. The frame's age at that point is the frame-to-detection latency, comparable between
+     * polling and push ingestion.
+     */
+    public void onDetected(long jniTimeNs, long platformTimestamp) {
+        mDetected.inc();
+        mJniTimeUs.record(jniTimeNs / 1000);
+        mDetectAgeUs.record(SystemClock.elapsedRealtimeNanos() / 1000 - platformTimestamp);
+    }
+
+    /**
+     * Network input width the engine will use next, from {@link VisionNative#nativeGetInputSize}.
+     */
+    public void onInputSize(int inputSize) {
+        mInputSize.set(inputSize);
+    }
+
+    public long getInputSize() {
+        return mInputSize.get();
+    }
+
+    /**
+     * CPU time the capture thread spent on one frame, from {@link android.os.Debug#threadCpuTimeNanos()}.
+     */
+    public void onProcessed(long cpuTimeNs) {
+        mFrameCpuUs.record(cpuTimeNs / 1000);
+    }
+
+    /**
+     * A frame was shown on a vsync; coalesced frames were replaced by a newer one before any
+     * vsync and never shown.
+     */
+    public void onPresented(long coalesced) {
+        mPresented.inc();
+        if (coalesced > 0) {
+            mCoalesced.add(coalesced);
+        }
+    }
+
+    /**
+     * Platform timestamps count microseconds of {@link SystemClock#elapsedRealtimeNanos()}.
+     */
+    public void onDisplayed(long platformTimestamp) {
+        mDisplayAgeUs.record(SystemClock.elapsedRealtimeNanos() / 1000 - platformTimestamp);
+    }
+}
@@ -0,0 +1,74 @@
+package com.segway.robot.sample.aibox;
+
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shows the newest ready frame on the display's vsync. Workers call {@link #submit} from any
+ * thread once a frame and its overlay are ready; every submission between two vsyncs is coalesced
+ * into a single present, so the UI thread never queues up stale frames behind the worker. The
+ * renderer runs on the UI thread and reads whatever is newest at that vsync.
+ * Presented and coalesced frames and the frame age at present go to {@link FrameMetrics}.
+ */
+public class FramePresenter implements Choreographer.FrameCallback {
+
+    private final Choreographer mChoreographer;
+    private final Runnable mRenderer;
+    private final FrameMetrics mMetrics;
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final AtomicLong mSubmitted = new AtomicLong();
+    private volatile long mPlatformTimestamp;
+    private long mPresentedUpTo;
+
+    /**
+     * Create on the UI thread, the presenter uses its Choreographer.
+     */
+    public FramePresenter(Runnable renderer, FrameMetrics metrics) {
+        mChoreographer = Choreographer.getInstance();
+        mRenderer = renderer;
+        mMetrics = metrics;
+    }
+
+    /**
+     * A new frame is ready. Presented on the next vsync unless a newer one replaces it first.
+     *
+     * @param platformTimestamp capture time of the frame, 0 when it has none
+     */
+    public void submit(long platformTimestamp) {
+        mPlatformTimestamp = platformTimestamp;
+        mSubmitted.incrementAndGet();
+        if (mScheduled.compareAndSet(false, true)) {
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Drop a present that has not happened yet.
+     */
+    public void cancel() {
+        mChoreographer.removeFrameCallback(this);
+        mScheduled.set(false);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        // cleared before reading, so a frame submitted from here on schedules the next vsync
+        mScheduled.set(false);
+        long submitted = mSubmitted.get();
+        long frames = submitted - mPresentedUpTo;
+        if (frames <= 0) {
+            return;
+        }
+        mPresentedUpTo = submitted;
+        long platformTimestamp = mPlatformTimestamp;
+        VisionNative.nativeTraceBegin(PipelineTrace.DISPLAY, 0);
+        mRenderer.run();
+        VisionNative.nativeTraceEnd(PipelineTrace.DISPLAY);
+        mMetrics.onPresented(frames - 1);
+        if (platformTimestamp > 0) {
+            mMetrics.onDisplayed(platformTimestamp);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.segway.robot.sample.aibox;
+
+import com.segway.robot.sdk.vision.Vision;
+import com.segway.robot.sdk.vision.frame.Frame;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Hands out the latest frame of one camera stream as a {@link FrameHandle}, polled with
+ * {@link #acquireLatest()} or, when the source is the stream's {@link Vision.FrameListener},
+ * pushed by the service and waited for with {@link #awaitNext(long)}.
+ * By default the handle wraps the service's buffer and the frame is returned when the last
+ * consumer releases it. In copy-out mode, meant for when the service's buffer pool runs low, the
+ * pixels are copied into a recycled buffer and the frame is returned immediately. Frames whose
+ * buffer is not direct are always copied, native code can not read them in place.
+ */
+public class FrameSource implements Vision.FrameListener {
+
+    private final int mStreamType;
+    private final FrameMetrics mMetrics;
+    private volatile boolean mCopyOut;
+    private final ConcurrentLinkedQueue<ByteBuffer> mCopyBuffers = new ConcurrentLinkedQueue<>();
+    private final FrameSlot<FrameHandle> mPushed = new FrameSlot<>();
+    private volatile ThreadPolicy mThreadPolicy;
+    // callback thread last placed as a capture thread, only read and written in onNewFrame
+    private Thread mPlacedThread;
+
+    public FrameSource(int streamType, boolean copyOut, FrameMetrics metrics) {
+        mStreamType = streamType;
+        mCopyOut = copyOut;
+        mMetrics = metrics;
+    }
+
+    public void setCopyOut(boolean copyOut) {
+        mCopyOut = copyOut;
+    }
+
+    /**
+     * Place the service's callback thread with {@link ThreadPolicy#ROLE_CAPTURE} on its first
+     * {@link #onNewFrame} call, and again only if the service switches threads.
+     */
+    public void setThreadPolicy(ThreadPolicy threadPolicy) {
+        mThreadPolicy = threadPolicy;
+    }
+
+    /**
+     * @return the latest frame with one reference held by the caller, or null if there is none
+     */
+    public FrameHandle acquireLatest() {
+        Frame frame = Vision.getInstance().getLatestFrame(mStreamType);
+        if (frame == null) {
+            return null;
+        }
+        mMetrics.onCaptured(frame.getInfo().getPlatformTimeStamp());
+        ByteBuffer buffer = frame.getByteBuffer();
+        if (!mCopyOut && buffer.isDirect()) {
+            return new FrameHandle(this, frame, buffer, false);
+        }
+        FrameHandle handle;
+        try {
+            ByteBuffer copy = copyOut(buffer);
+            handle = new FrameHandle(this, frame, copy, true);
+        } finally {
+            returnFrame(frame);
+        }
+        return handle;
+    }
+
+    /**
+     * Push mode callback. The service only lends the frame for the callback, so its pixels are
+     * copied into a recycled buffer; there is no conversion and no lock, and a frame the consumer
+     * has not taken yet is released in favour of this one.
+     */
+    @Override
+    public void onNewFrame(int streamType, Frame frame) {
+        ThreadPolicy threadPolicy = mThreadPolicy;
+        Thread current = Thread.currentThread();
+        if (threadPolicy != null && mPlacedThread != current) {
+            threadPolicy.apply(ThreadPolicy.ROLE_CAPTURE);
+            mPlacedThread = current;
+        }
+        mMetrics.onCaptured(frame.getInfo().getPlatformTimeStamp());
+        FrameHandle handle = new FrameHandle(this, frame, copyOut(frame.getByteBuffer()), true);
+        mMetrics.onReturned();
+        FrameHandle replaced = mPushed.publish(handle);
+        if (replaced != null) {
+            mMetrics.onSuperseded();
+            replaced.release();
+        }
+    }
+
+    /**
+     * Push mode: the newest frame since the last call, waiting up to timeoutMs for one.
+     *
+     * @return the frame with one reference held by the caller, or null on timeout
+     */
+    public FrameHandle awaitNext(long timeoutMs) throws InterruptedException {
+        return mPushed.take(timeoutMs);
+    }
+
+    /**
+     * Release a pushed frame nobody took, once the stream is stopped.
+     */
+    public void drain() {
+        FrameHandle pending = mPushed.poll();
+        if (pending != null) {
+            pending.release();
+        }
+    }
+
+    private ByteBuffer copyOut(ByteBuffer buffer) {
+        int limit = buffer.limit();
+        ByteBuffer copy = mCopyBuffers.poll();
+        if (copy == null || copy.capacity() < limit) {
+            copy = ByteBuffer.allocateDirect(limit);
+        }
+        VisionNative.nativeTraceBegin(PipelineTrace.COPY, 0);
+        ByteBuffer source = buffer.duplicate();
+        source.position(0);
+        copy.clear();
+        copy.put(source);
+        copy.flip();
+        VisionNative.nativeTraceEnd(PipelineTrace.COPY);
+        return copy;
+    }
+
+    private void returnFrame(Frame frame) {
+        Vision.getInstance().returnFrame(frame);
+        mMetrics.onReturned();
+    }
+
+    void recycle(FrameHandle handle) {
+        if (handle.isCopy()) {
+            mCopyBuffers.offer(handle.getBuffer());
+        } else {
+            returnFrame(handle.getFrame());
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.segway.robot.sample.aibox;
+
+import android.util.Log;
+
+import java.util.Arrays;
+
+/**
+ * Collects per-frame latencies and logs mean, standard deviation and p99 every window,
+ * so thread placements can be compared by their jitter.
+ */
+public class JitterMeter {
+
+    private static final String TAG = JitterMeter.class.getSimpleName();
+
+    private final String mName;
+    private final float[] mSamples;
+    private final float[] mSorted;
+    private int mCount;
+
+    public JitterMeter(String name, int window) {
+        mName = name;
+        mSamples = new float[window];
+        mSorted = new float[window];
+    }
+
+    public void record(float ms) {
+        mSamples[mCount++] = ms;
+        if (mCount == mSamples.length) {
+            report();
+            mCount = 0;
+        }
+    }
+
+    private void report() {
+        int n = mSamples.length;
+        double sum = 0;
+        for (float sample : mSamples) {
+            sum += sample;
+        }
+        double mean = sum / n;
+        double variance = 0;
+        for (float sample : mSamples) {
+            variance += (sample - mean) * (sample - mean);
+        }
+        System.arraycopy(mSamples, 0, mSorted, 0, n);
+        Arrays.sort(mSorted);
+        float p99 = mSorted[Math.min(n - 1, (int) Math.ceil(n * 0.99) - 1)];
+        Log.d(TAG, mName + ": n=" + n + " mean=" + String.format("%.2f", mean)
+                + " std=" + String.format("%.2f", Math.sqrt(variance / n))
+                + " p99=" + p99 + " max=" + mSorted[n - 1]);
+    }
+}
@@ -6,25 +6,27 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.RectF;
 import android.os.Bundle;
+import android.os.Debug;
+import android.os.SystemClock;
 import android.support.v4.app.ActivityCompat;
 import android.support.v7.app.AppCompatActivity;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
+import android.widget.TextView;
 import android.widget.Toast;
 
 import com.segway.robot.sdk.vision.BindStateListener;
 import com.segway.robot.sdk.vision.Vision;
 import com.segway.robot.sdk.vision.calibration.RS2Intrinsic;
-import com.segway.robot.sdk.vision.frame.Frame;
 import com.segway.robot.sdk.vision.stream.PixelFormat;
-import com.segway.robot.sdk.vision.stream.Resolution;
 import com.segway.robot.sdk.vision.stream.VisionStreamType;
 
-import java.nio.ByteBuffer;
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Semaphore;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -34,14 +36,83 @@ public class MainActivity extends AppCompatActivity {
     private static String[] PERMISSIONS_STORAGE = {"android.permission.READ_EXTERNAL_STORAGE",
             "android.permission.WRITE_EXTERNAL_STORAGE"};
     private static final int BITMAP_SCALE = 4;
+    private static final int WARMUP_ITERATIONS = 3;
+    private static final int JITTER_WINDOW = 100;
+    private static final boolean ROI_MODE = false;
+    private static final int ROI_REFRESH_INTERVAL = 10;
+    // about 15 fps of inference, <= 0 always runs the full 512 input
+    private static final float LATENCY_BUDGET_MS = 66;
+    /**
+     * Presence classifier run before the detector while nothing is in view, the cascade is off
+     * when the file is missing. Tune the threshold per site with the skipped and missed counts of
+     * the "cascade" log line.
+     */
+    private static final String PRESENCE_MODEL_PATH = "/sdcard/apple_presence.tflite";
+    private static final float PRESENCE_THRESHOLD = 0.3f;
+    private static final int PRESENCE_AUDIT_INTERVAL = 30;
+    /**
+     * Camera streams detected without preview next to the fisheye stream, each one with its own engine.
+     */
+    private static final int[] EXTRA_STREAM_TYPES = {};
+    private static final String DETECTION_RING_PATH = "/sdcard/aibox_detections.ring";
+    private static final int DETECTION_RING_SLOTS = 64;
+    private static final int DETECTION_RING_MAX_BOXES = 32;
+    // 32 bytes per record, at most 256 MB on disk
+    private static final String DETECTION_LOG_DIR = "/sdcard/aibox_detections";
+    private static final int DETECTION_LOG_SEGMENT_RECORDS = 1 << 20;
+    private static final int DETECTION_LOG_MAX_SEGMENTS = 8;
+    private static final String INFERENCE_SOCKET_NAME = "@aibox_inference";
+    private static final int INFERENCE_MAX_BATCH = 4;
+    private static final int METRICS_REPORT_INTERVAL_MS = 5000;
+    private static final long MODEL_MEMORY_BUDGET_BYTES = 64L << 20;
+    private static final int MODEL_CLASSES = 1;
+    private static final boolean TRACE_ENABLED = true;
+    // written every time detection is stopped
+    private static final String TRACE_DUMP_PATH = "/sdcard/aibox_trace.json";
+    /**
+     * Copy every frame out of the vision service's buffer pool and return it right away, instead
+     * of detecting on the service's buffer in place. For when the pool runs low.
+     */
+    private static final boolean FRAME_COPY_OUT = false;
+    /**
+     * Frames are pushed by the vision service and detected as they arrive, instead of polled every
+     * 100 ms. Compare the ".inference.frame_age_us" metric of both modes.
+     */
+    private static final boolean PUSH_INGEST = true;
+    private static final int FRAME_WAIT_MS = 500;
     private VisionImageView mImageView;
+    private TextView mStatsView;
     private volatile boolean mIsBind;
     private volatile boolean mIsDetecting;
     private volatile boolean mIsImageStarted;
     private volatile boolean mIsCameraStarted;
+    // the newest finished frame; workers draw into a bitmap of their own and swap it in here
     private Bitmap mBitmap;
+    // the bitmap the image view was last given, and the one neither it nor a worker uses
+    private Bitmap mShownBitmap;
+    private Bitmap mSpareBitmap;
+    private int mFrameWidth;
+    private int mFrameHeight;
     private Thread mVisionWorkThread;
     private Thread mImageWorkThread;
+    private Thread mEngineInitThread;
+    private volatile boolean mIsEngineReady;
+    private volatile boolean mIsFirstDetectionPending;
+    private long mDetectStartTs;
+    private ThreadPolicy mThreadPolicy;
+    private JitterMeter mDetectJitter;
+    private final FrameMetrics mFrameMetrics = new FrameMetrics("fisheye");
+    private final FrameSource mFrameSource = new FrameSource(VisionStreamType.FISH_EYE, FRAME_COPY_OUT, mFrameMetrics);
+    private long mDisplayTimestamp;
+    private FramePresenter mPresenter;
+    private long mMetricsReportTs;
+    private final DetectionAggregator mDetectionAggregator = new DetectionAggregator(MODEL_CLASSES);
+    private final DetectionAggregator.Snapshot mDetectionStats = new DetectionAggregator.Snapshot();
+    // the latest camera results by position, for targeting queries of the arm controller
+    private final DetectionIndex mDetectionIndex = new DetectionIndex();
+    private final Semaphore mDetectPermits = new Semaphore(1, true);
+    private final List<StreamDetector> mStreamDetectors = new ArrayList<>();
+    // only held to swap the finished frame in or out, never across a native call
     private final Object mBitmapLock = new Object();
     private Button mBtnOpenImage;
     private Button mBtnCloseImage;
@@ -49,7 +120,6 @@ public class MainActivity extends AppCompatActivity {
     private Button mBtnCloseCamera;
     private Button mBtnStart;
     private Button mBtnStop;
-    private ByteBuffer mData;
     private DetectedResult[] mDetectedResults;
     private List<RectF> mRectList = new ArrayList<>();
     private int mImageViewWidth;
@@ -64,14 +134,31 @@ public class MainActivity extends AppCompatActivity {
         super.onCreate(savedInstanceState);
         setContentView(R.layout.activity_main);
         mImageView = findViewById(R.id.image);
+        mStatsView = findViewById(R.id.tv_stats);
         mBtnOpenImage = findViewById(R.id.btn_open_image);
         mBtnCloseImage = findViewById(R.id.btn_close_image);
         mBtnOpenCamera = findViewById(R.id.btn_open_camera);
         mBtnCloseCamera = findViewById(R.id.btn_close_camera);
         mBtnStart = findViewById(R.id.btn_start);
         mBtnStop = findViewById(R.id.btn_stop);
+        mThreadPolicy = ThreadPolicy.createBigLittle();
+        mDetectJitter = new JitterMeter("detect[" + mThreadPolicy.getName() + "]", JITTER_WINDOW);
+        Log.d(TAG, "thread policy: " + mThreadPolicy);
+        mThreadPolicy.apply(ThreadPolicy.ROLE_RENDER);
+        mFrameSource.setThreadPolicy(mThreadPolicy);
+        mPresenter = new FramePresenter(mRenderFrame, mFrameMetrics);
+        VisionNative.nativeTraceEnable(TRACE_ENABLED);
         checkPermission();
         resetUI();
+        initEngine();
+    }
+
+    @Override
+    public void onRequestPermissionsResult(int requestCode, String[] permissions, int[] grantResults) {
+        super.onRequestPermissionsResult(requestCode, permissions, grantResults);
+        if (requestCode == REQUEST_CODE) {
+            initEngine();
+        }
     }
 
     @Override
@@ -79,6 +166,10 @@ public class MainActivity extends AppCompatActivity {
         super.onDestroy();
         closeImage();
         closeCamera();
+        VisionNative.nativeClosePublisher();
+        VisionNative.nativeCloseDetectionLog();
+        VisionNative.nativeStopServer();
+        mPresenter.cancel();
     }
 
     private void resetUI() {
@@ -90,6 +181,60 @@ public class MainActivity extends AppCompatActivity {
         mBtnCloseImage.setEnabled(false);
     }
 
+    /**
+     * Load and warm up the detector in the background at app start instead of inside the first
+     * nativeDetect call. The model lives on external storage, so this is retried once the
+     * permission is granted.
+     */
+    private synchronized void initEngine() {
+        if (mIsEngineReady || mEngineInitThread != null) {
+            return;
+        }
+        if (ActivityCompat.checkSelfPermission(this, Manifest.permission.WRITE_EXTERNAL_STORAGE)
+                != PackageManager.PERMISSION_GRANTED) {
+            return;
+        }
+        mEngineInitThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mThreadPolicy.apply(ThreadPolicy.ROLE_INFERENCE);
+                mThreadPolicy.applyThreadCount();
+                VisionNative.nativeSetRoiMode(ROI_MODE, ROI_REFRESH_INTERVAL);
+                VisionNative.nativeSetLatencyBudget(LATENCY_BUDGET_MS);
+                VisionNative.nativeSetModelMemoryBudget(MODEL_MEMORY_BUDGET_BYTES);
+                if (!VisionNative.nativeOpenPublisher(DETECTION_RING_PATH, DETECTION_RING_SLOTS, DETECTION_RING_MAX_BOXES)) {
+                    Log.w(TAG, "detections are not published to " + DETECTION_RING_PATH);
+                }
+                if (!VisionNative.nativeOpenDetectionLog(DETECTION_LOG_DIR, DETECTION_LOG_SEGMENT_RECORDS,
+                        DETECTION_LOG_MAX_SEGMENTS)) {
+                    Log.w(TAG, "detections are not logged to " + DETECTION_LOG_DIR);
+                }
+                if (!VisionNative.nativeStartServer(INFERENCE_SOCKET_NAME, INFERENCE_MAX_BATCH)) {
+                    Log.w(TAG, "inference service is not available on " + INFERENCE_SOCKET_NAME);
+                }
+                float initTime = VisionNative.nativeInit(WARMUP_ITERATIONS);
+                Log.d(TAG, "engine init: " + initTime + " ms");
+                if (new File(PRESENCE_MODEL_PATH).exists() && !VisionNative.nativeSetPresenceGate(
+                        VisionNative.DEFAULT_STREAM, PRESENCE_MODEL_PATH, PRESENCE_THRESHOLD, PRESENCE_AUDIT_INTERVAL)) {
+                    Log.w(TAG, "presence model " + PRESENCE_MODEL_PATH + " not loaded, detecting every frame");
+                }
+                synchronized (MainActivity.this) {
+                    mIsEngineReady = initTime >= 0;
+                    mEngineInitThread = null;
+                }
+            }
+        }, "EngineInitThread");
+        mEngineInitThread.start();
+    }
+
+    private void reportFirstDetection() {
+        if (mIsFirstDetectionPending) {
+            mIsFirstDetectionPending = false;
+            Log.d(TAG, "time to first detection: " + (SystemClock.elapsedRealtime() - mDetectStartTs)
+                    + " ms, engine warmed up: " + mIsEngineReady);
+        }
+    }
+
     private void checkPermission() {
         if (ActivityCompat.checkSelfPermission(this, Manifest.permission.WRITE_EXTERNAL_STORAGE)
                 != PackageManager.PERMISSION_GRANTED) {
@@ -189,6 +334,8 @@ public class MainActivity extends AppCompatActivity {
         if (mIsDetecting) {
             return;
         }
+        mDetectStartTs = SystemClock.elapsedRealtime();
+        mIsFirstDetectionPending = true;
         mIsDetecting = true;
 
         mBtnStop.setEnabled(true);
@@ -201,6 +348,19 @@ public class MainActivity extends AppCompatActivity {
 
         mBtnStop.setEnabled(false);
         mBtnStart.setEnabled(true);
+        if (TRACE_ENABLED) {
+            dumpTrace();
+        }
+    }
+
+    private void dumpTrace() {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int count = VisionNative.nativeTraceDump(TRACE_DUMP_PATH);
+                Log.i(TAG, "trace: " + count + " events in " + TRACE_DUMP_PATH);
+            }
+        }, "TraceDump").start();
     }
 
     private void bindAndStartVision() {
@@ -214,10 +374,17 @@ public class MainActivity extends AppCompatActivity {
                     //Obtain internal calibration data
                     RS2Intrinsic intrinsics = Vision.getInstance().getIntrinsics(VisionStreamType.FISH_EYE);
                     Log.d(TAG, "intrinsics: " + intrinsics);
-                    Vision.getInstance().startVision(VisionStreamType.FISH_EYE);
+                    VisionNative.nativeSetIntrinsics(VisionNative.DEFAULT_STREAM, intrinsics.width, intrinsics.height,
+                            intrinsics.fx, intrinsics.fy, intrinsics.ppx, intrinsics.ppy, intrinsics.coeffs[0]);
+                    if (PUSH_INGEST) {
+                        Vision.getInstance().startVision(VisionStreamType.FISH_EYE, mFrameSource);
+                    } else {
+                        Vision.getInstance().startVision(VisionStreamType.FISH_EYE);
+                    }
 
                     mVisionWorkThread = new VisionWorkThread();
                     mVisionWorkThread.start();
+                    startStreamDetectors();
                     mBtnOpenCamera.setEnabled(false);
                     mBtnStart.setEnabled(true);
                     mBtnCloseCamera.setEnabled(true);
@@ -240,6 +407,7 @@ public class MainActivity extends AppCompatActivity {
     }
 
     private void unbindAndStopVision() {
+        stopStreamDetectors();
         try {
             Vision.getInstance().stopVision(VisionStreamType.FISH_EYE);
         } catch (Exception e) {
@@ -248,67 +416,152 @@ public class MainActivity extends AppCompatActivity {
         Vision.getInstance().unbindService();
     }
 
+    private void startStreamDetectors() {
+        synchronized (mStreamDetectors) {
+            for (int streamType : EXTRA_STREAM_TYPES) {
+                // results of extra streams are only published to the detection ring, box counts are in the trace
+                StreamDetector detector = new StreamDetector(streamType, PUSH_INGEST, mDetectPermits, mThreadPolicy,
+                        null);
+                if (PUSH_INGEST) {
+                    Vision.getInstance().startVision(streamType, detector.getFrameSource());
+                } else {
+                    Vision.getInstance().startVision(streamType);
+                }
+                detector.start();
+                mStreamDetectors.add(detector);
+            }
+        }
+    }
+
+    private void stopStreamDetectors() {
+        synchronized (mStreamDetectors) {
+            for (StreamDetector detector : mStreamDetectors) {
+                detector.stopDetect();
+                try {
+                    detector.join();
+                    Vision.getInstance().stopVision(detector.getStreamType());
+                } catch (Exception e) {
+                    Log.d(TAG, "error:", e);
+                }
+            }
+            mStreamDetectors.clear();
+        }
+    }
+
+    /**
+     * The frame is drawn on the display's vsync with the newest bitmap and results at that point,
+     * frames the worker finished in between are never handed to the UI thread.
+     */
     private void showImage() {
-        runOnUiThread(new Runnable() {
-            @Override
-            public void run() {
-                synchronized (mBitmapLock) {
-                    mRectList.clear();
-                    if (mDetectedResults != null) {
-                        for (DetectedResult result : mDetectedResults) {
-                            mRectList.add(new RectF(result.x1 / BITMAP_SCALE, result.y1 / BITMAP_SCALE,
-                                    result.x2 / BITMAP_SCALE, result.y2 / BITMAP_SCALE));
-                        }
-                    }
-                    if(mBitmap != null) {
-                        int width = mBitmap.getWidth() / BITMAP_SCALE;
-                        int height = mBitmap.getHeight() / BITMAP_SCALE;
-                        if (width != mImageViewWidth || height != mImageViewHeight) {
-                            mImageViewWidth = width;
-                            mImageViewHeight = height;
-                            ViewGroup.LayoutParams layoutParams = mImageView.getLayoutParams();
-                            layoutParams.width = mImageViewWidth;
-                            layoutParams.height = mImageViewHeight;
-                            mImageView.setLayoutParams(layoutParams);
+        mPresenter.submit(mDisplayTimestamp);
+    }
 
-                        }
-                    }
-                    mImageView.mark(mRectList);
-                    mImageView.setImageBitmap(mBitmap);
+    /**
+     * Run by {@link #mPresenter} on the UI thread.
+     */
+    private final Runnable mRenderFrame = new Runnable() {
+        @Override
+        public void run() {
+            Bitmap bitmap;
+            DetectedResult[] results;
+            int frameWidth;
+            int frameHeight;
+            synchronized (mBitmapLock) {
+                bitmap = mBitmap;
+                results = mDetectedResults;
+                frameWidth = mFrameWidth;
+                frameHeight = mFrameHeight;
+                mShownBitmap = bitmap;
+            }
+            mRectList.clear();
+            if (results != null) {
+                for (DetectedResult result : results) {
+                    mRectList.add(new RectF(result.x1 / BITMAP_SCALE, result.y1 / BITMAP_SCALE,
+                            result.x2 / BITMAP_SCALE, result.y2 / BITMAP_SCALE));
                 }
             }
-        });
+            if(bitmap != null) {
+                int width = frameWidth / BITMAP_SCALE;
+                int height = frameHeight / BITMAP_SCALE;
+                if (width != mImageViewWidth || height != mImageViewHeight) {
+                    mImageViewWidth = width;
+                    mImageViewHeight = height;
+                    ViewGroup.LayoutParams layoutParams = mImageView.getLayoutParams();
+                    layoutParams.width = mImageViewWidth;
+                    layoutParams.height = mImageViewHeight;
+                    mImageView.setLayoutParams(layoutParams);
+
+                }
+            }
+            mImageView.mark(mRectList);
+            mImageView.setImageBitmap(bitmap);
+            mDetectionAggregator.snapshot(SystemClock.elapsedRealtime(), mDetectionStats);
+            mStatsView.setText(String.format("%.1f apples/min, %d in the last minute, %d total, input %d",
+                    mDetectionStats.perMinute, mDetectionStats.windowCount, mDetectionStats.totalCount,
+                    mFrameMetrics.getInputSize()));
+        }
+    };
+
+    /**
+     * Make a worker's finished frame the newest one and return the bitmap it draws the next frame
+     * into: the previous frame or the spare, whichever the image view is not showing.
+     */
+    private Bitmap publishFrame(Bitmap bitmap, DetectedResult[] results, int frameWidth, int frameHeight,
+                                long timestamp) {
+        synchronized (mBitmapLock) {
+            Bitmap previous = mBitmap;
+            mBitmap = bitmap;
+            mDetectedResults = results;
+            mFrameWidth = frameWidth;
+            mFrameHeight = frameHeight;
+            mDisplayTimestamp = timestamp;
+            Bitmap back = previous != mShownBitmap && previous != bitmap ? previous : mSpareBitmap;
+            mSpareBitmap = back == previous ? mSpareBitmap : previous;
+            return back;
+        }
+    }
+
+    private static Bitmap reuseBitmap(Bitmap bitmap, int width, int height) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        return bitmap;
     }
 
     class ImageWorkThread extends Thread {
         @Override
         public void run() {
+            Bitmap back = null;
             while (mIsImageStarted) {
-                synchronized (mBitmapLock) {
-                    mBitmap = BitmapFactory.decodeFile(LOCAL_IMAGE_PATH);
-                    if (mBitmap == null) {
-                        runOnUiThread(new Runnable() {
-                            @Override
-                            public void run() {
-                                Toast.makeText(MainActivity.this, "The picture does not exist!", Toast.LENGTH_SHORT).show();
-                            }
-                        });
-                        break;
-                    }
-                    if (mIsDetecting) {
-                        int size = mBitmap.getByteCount();
-                        if (mData == null || mData.capacity() != size) {
-                            mData = ByteBuffer.allocateDirect(size);
+                // java only reads the header, the pixels are decoded at the size they are used at
+                BitmapFactory.Options options = new BitmapFactory.Options();
+                options.inJustDecodeBounds = true;
+                BitmapFactory.decodeFile(LOCAL_IMAGE_PATH, options);
+                if (options.outWidth <= 0 || options.outHeight <= 0) {
+                    runOnUiThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            Toast.makeText(MainActivity.this, "The picture does not exist!", Toast.LENGTH_SHORT).show();
                         }
-                        mData.rewind();
-                        Bitmap bitmap = mBitmap.copy(mBitmap.getConfig(), true);
-                        mBitmap.copyPixelsToBuffer(mData);
-                        mBitmap = bitmap;
-                        mDetectedResults = VisionNative.nativeDetect(mData, PixelFormat.RGBA8888, mBitmap.getWidth(), mBitmap.getHeight());
-                    } else {
-                        mDetectedResults = null;
-                    }
+                    });
+                    break;
+                }
+                int frameWidth = options.outWidth;
+                int frameHeight = options.outHeight;
+                DetectedResult[] results = null;
+                if (mIsDetecting) {
+                    back = reuseBitmap(back, frameWidth / BITMAP_SCALE, frameHeight / BITMAP_SCALE);
+                    // decoded natively at the reduced scale the network needs, the preview is
+                    // drawn from the same decode and the results are in full image coordinates
+                    results = VisionNative.nativeDetectImage(VisionNative.DEFAULT_STREAM, LOCAL_IMAGE_PATH, 0, back);
+                    reportFirstDetection();
+                } else {
+                    options.inJustDecodeBounds = false;
+                    options.inSampleSize = BITMAP_SCALE;
+                    options.inMutable = true;
+                    back = BitmapFactory.decodeFile(LOCAL_IMAGE_PATH, options);
                 }
+                back = publishFrame(back, results, frameWidth, frameHeight, 0);
                 showImage();
                 try {
                     Thread.sleep(100);
@@ -320,10 +573,22 @@ public class MainActivity extends AppCompatActivity {
         }
     }
 
+    private void reportMetrics() {
+        long now = SystemClock.elapsedRealtime();
+        if (now - mMetricsReportTs >= METRICS_REPORT_INTERVAL_MS) {
+            mMetricsReportTs = now;
+            Log.i(TAG, "metrics: " + MetricsRegistry.getInstance().snapshot(now));
+            Log.i(TAG, "models: " + VisionNative.nativeGetModelStats());
+            Log.i(TAG, "cascade: " + VisionNative.nativeGetCascadeStats(VisionNative.DEFAULT_STREAM));
+        }
+    }
+
     private void clearBitmap() {
         synchronized (mBitmapLock) {
             mBitmap = null;
+            mSpareBitmap = null;
             mDetectedResults = null;
+            mDisplayTimestamp = 0;
         }
         showImage();
     }
@@ -331,58 +596,33 @@ public class MainActivity extends AppCompatActivity {
     class VisionWorkThread extends Thread {
         @Override
         public void run() {
+            // the sdk copies frames out on its own callback thread, this loop runs the detector
+            // and is placed once as an inference thread, not switched around every detect
+            mThreadPolicy.apply(ThreadPolicy.ROLE_INFERENCE);
+            Bitmap back = null;
             while (mIsCameraStarted && mIsBind) {
                 long startTs = System.currentTimeMillis();
                 try {
-                    Frame frame = Vision.getInstance().getLatestFrame(VisionStreamType.FISH_EYE);
-                    Log.d(TAG, "ts: " + frame.getInfo().getPlatformTimeStamp() + "  " + frame.getInfo().getIMUTimeStamp());
-                    int resolution = frame.getInfo().getResolution();
-                    int width = Resolution.getWidth(resolution);
-                    int height = Resolution.getHeight(resolution);
-                    synchronized (mBitmapLock) {
-                        if (mBitmap == null) {
-                            mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-                        }
-                    }
-                    int pixelFormat = frame.getInfo().getPixelFormat();
-                    if (pixelFormat == PixelFormat.YUV420 || pixelFormat == PixelFormat.YV12) {
-                        int limit = frame.getByteBuffer().limit();
-
-                        if (mIsDetecting) {
-                            if (mData == null || mData.capacity() != limit) {
-                                mData = ByteBuffer.allocateDirect(limit);
-                            }
-                            frame.getByteBuffer().position(0);
-                            mData.rewind();
-                            mData.put(frame.getByteBuffer());
-                            synchronized (mBitmapLock) {
-                                mDetectedResults = VisionNative.nativeDetect(mData, pixelFormat, width, height);
-                            }
-                        } else {
-                            synchronized (mBitmapLock) {
-                                mDetectedResults = null;
-                            }
+                    FrameHandle frame = PUSH_INGEST ? mFrameSource.awaitNext(FRAME_WAIT_MS)
+                            : mFrameSource.acquireLatest();
+                    if (frame != null) {
+                        VisionNative.nativeTraceBegin(PipelineTrace.FRAME, frame.getPlatformTimestamp());
+                        long cpuStartTs = Debug.threadCpuTimeNanos();
+                        try {
+                            back = processFrame(frame, back);
+                            mFrameMetrics.onProcessed(Debug.threadCpuTimeNanos() - cpuStartTs);
+                        } finally {
+                            frame.release();
+                            VisionNative.nativeTraceEnd(PipelineTrace.FRAME);
                         }
-                        byte[] buff = new byte[limit];
-                        frame.getByteBuffer().position(0);
-                        frame.getByteBuffer().get(buff);
-                        synchronized (mBitmapLock) {
-                            yuv2RGBBitmap(buff, mBitmap, width, height);
-                        }
-
-                    } else {
-                        Log.d(TAG, "An unsupported format");
                     }
-                    if (mBitmap != null) {
-                        showImage();
-                    }
-                    Vision.getInstance().returnFrame(frame);
                 } catch (Exception e) {
                     e.printStackTrace();
                 }
+                reportMetrics();
                 long endTs = System.currentTimeMillis();
                 long interval = 100 - (endTs - startTs);
-                if (interval > 0) {
+                if (!PUSH_INGEST && interval > 0) {
                     try {
                         Thread.sleep(interval);
                     } catch (InterruptedException e) {
@@ -391,30 +631,55 @@ public class MainActivity extends AppCompatActivity {
                 }
             }
 
+            mFrameSource.drain();
             clearBitmap();
         }
-    }
 
-    private void yuv2RGBBitmap(byte[] data, Bitmap bitmap, int width, int height) {
-        int frameSize = width * height;
-        int[] rgba = new int[frameSize];
-        for (int i = 0; i < height; i++) {
-            for (int j = 0; j < width; j++) {
-                int y = (0xff & ((int) data[i * width + j]));
-                int v = (0xff & ((int) data[frameSize + (i >> 1) * width + (j & ~1) + 0]));
-
-                int u = (0xff & ((int) data[frameSize + (i >> 1) * width + (j & ~1) + 1]));
-
-                y = y < 16 ? 16 : y;
-                int r = Math.round(1.164f * (y - 16) + 1.596f * (v - 128));
-                int g = Math.round(1.164f * (y - 16) - 0.813f * (v - 128) - 0.391f * (u - 128));
-                int b = Math.round(1.164f * (y - 16) + 2.018f * (u - 128));
-                r = r < 0 ? 0 : (r > 255 ? 255 : r);
-                g = g < 0 ? 0 : (g > 255 ? 255 : g);
-                b = b < 0 ? 0 : (b > 255 ? 255 : b);
-                rgba[i * width + j] = 0xff000000 + (b << 16) + (g << 8) + r;
+        /**
+         * Draw the frame into the back bitmap, publish it and return the back bitmap for the next
+         * frame.
+         */
+        private Bitmap processFrame(FrameHandle frame, Bitmap back) throws InterruptedException {
+            long platformTs = frame.getPlatformTimestamp();
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+            int pixelFormat = frame.getPixelFormat();
+            if (pixelFormat == PixelFormat.YUV420 || pixelFormat == PixelFormat.YV12) {
+                // the preview is converted straight to display size
+                back = reuseBitmap(back, width / BITMAP_SCALE, height / BITMAP_SCALE);
+                DetectedResult[] results = null;
+                if (mIsDetecting) {
+                    // native code reads the frame's buffer in place
+                    long detectStartTs = SystemClock.elapsedRealtimeNanos();
+                    mDetectPermits.acquire();
+                    try {
+                        VisionNative.nativeTraceBegin(PipelineTrace.DETECT, 0);
+                        // the preview comes out of the same colour conversion as the network input
+                        results = VisionNative.nativeDetectStream(VisionNative.DEFAULT_STREAM,
+                                frame.getBuffer(), pixelFormat, width, height, platformTs, back);
+                        reportFirstDetection();
+                    } finally {
+                        VisionNative.nativeTraceEnd(PipelineTrace.DETECT);
+                        mDetectPermits.release();
+                    }
+                    long detectTime = SystemClock.elapsedRealtimeNanos() - detectStartTs;
+                    mDetectJitter.record(detectTime / 1e6f);
+                    mFrameMetrics.onDetected(detectTime, platformTs);
+                    mFrameMetrics.onInputSize(VisionNative.nativeGetInputSize(VisionNative.DEFAULT_STREAM));
+                    mDetectionAggregator.update(results, width, height, SystemClock.elapsedRealtime());
+                    mDetectionIndex.update(results, width, height);
+                } else {
+                    VisionNative.nativeTraceBegin(PipelineTrace.PREVIEW, 0);
+                    VisionNative.nativeRenderPreview(frame.getBuffer(), pixelFormat, width, height, back);
+                    VisionNative.nativeTraceEnd(PipelineTrace.PREVIEW);
+                }
+                back = publishFrame(back, results, width, height, platformTs);
+                showImage();
+            } else {
+                Log.d(TAG, "An unsupported format");
             }
+            return back;
         }
-        bitmap.setPixels(rgba, 0, width, 0, 0, width, height);
     }
 }
+
@@ -0,0 +1,205 @@
+package com.segway.robot.sample.aibox;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * In-process pipeline metrics. Metrics are looked up by name once and then updated through the
+ * returned object with plain atomics, so the per-frame path never locks or allocates.
+ * A snapshot walks every metric once and is cheap enough to take every few seconds in production.
+ */
+public class MetricsRegistry {
+
+    private static final MetricsRegistry sInstance = new MetricsRegistry();
+
+    private final ConcurrentHashMap<String, Counter> mCounters = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Gauge> mGauges = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> mHistograms = new ConcurrentHashMap<>();
+
+    public static MetricsRegistry getInstance() {
+        return sInstance;
+    }
+
+    public Counter counter(String name) {
+        Counter counter = mCounters.get(name);
+        if (counter == null) {
+            mCounters.putIfAbsent(name, new Counter());
+            counter = mCounters.get(name);
+        }
+        return counter;
+    }
+
+    public Gauge gauge(String name) {
+        Gauge gauge = mGauges.get(name);
+        if (gauge == null) {
+            mGauges.putIfAbsent(name, new Gauge());
+            gauge = mGauges.get(name);
+        }
+        return gauge;
+    }
+
+    public Histogram histogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if (histogram == null) {
+            mHistograms.putIfAbsent(name, new Histogram());
+            histogram = mHistograms.get(name);
+        }
+        return histogram;
+    }
+
+    /**
+     * Counters with their rate per second since the previous snapshot, gauges, and histogram
+     * count/mean/p50/p99 since the previous snapshot, sorted by name.
+     */
+    public synchronized Snapshot snapshot(long nowMs) {
+        Snapshot snapshot = new Snapshot();
+        for (Map.Entry<String, Counter> entry : mCounters.entrySet()) {
+            Counter counter = entry.getValue();
+            long value = counter.get();
+            long elapsedMs = nowMs - counter.mSnapshotMs;
+            float rate = counter.mSnapshotMs == 0 || elapsedMs <= 0 ? 0 : (value - counter.mSnapshotValue) * 1000f / elapsedMs;
+            counter.mSnapshotValue = value;
+            counter.mSnapshotMs = nowMs;
+            snapshot.mValues.put(entry.getKey(), value + " (" + String.format("%.1f", rate) + "/s)");
+        }
+        for (Map.Entry<String, Gauge> entry : mGauges.entrySet()) {
+            snapshot.mValues.put(entry.getKey(), String.valueOf(entry.getValue().get()));
+        }
+        for (Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+            snapshot.mValues.put(entry.getKey(), entry.getValue().drain());
+        }
+        return snapshot;
+    }
+
+    public static class Snapshot {
+        private final TreeMap<String, String> mValues = new TreeMap<>();
+
+        public String get(String name) {
+            return mValues.get(name);
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            for (Map.Entry<String, String> entry : mValues.entrySet()) {
+                if (builder.length() > 0) {
+                    builder.append(", ");
+                }
+                builder.append(entry.getKey()).append('=').append(entry.getValue());
+            }
+            return builder.toString();
+        }
+    }
+
+    public static class Counter {
+        private final AtomicLong mValue = new AtomicLong();
+        // only touched by snapshot()
+        private long mSnapshotValue;
+        private long mSnapshotMs;
+
+        public void inc() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    public static class Gauge {
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void set(long value) {
+            mValue.set(value);
+        }
+
+        public void inc() {
+            mValue.incrementAndGet();
+        }
+
+        public void dec() {
+            mValue.decrementAndGet();
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+    }
+
+    /**
+     * Power-of-two buckets: bucket n holds values in [2^(n-1), 2^n), so percentiles are exact
+     * to within a factor of two, which is enough to see where latency goes.
+     */
+    public static class Histogram {
+        private static final int BUCKETS = 40;
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong mCount = new AtomicLong();
+        private final AtomicLong mSum = new AtomicLong();
+        private final long[] mDrained = new long[BUCKETS];
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+            mBuckets.incrementAndGet(bucket);
+            mCount.incrementAndGet();
+            mSum.addAndGet(value);
+        }
+
+        /**
+         * Upper bound of the bucket holding the given percentile of the recorded values, 0 when empty.
+         */
+        public long percentile(float p) {
+            long count = 0;
+            long[] buckets = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = mBuckets.get(i);
+                count += buckets[i];
+            }
+            return percentile(buckets, count, p);
+        }
+
+        public long count() {
+            return mCount.get();
+        }
+
+        // reset and summarize the values recorded since the last call, only called by snapshot()
+        private String drain() {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                mDrained[i] = mBuckets.getAndSet(i, 0);
+                count += mDrained[i];
+            }
+            mCount.addAndGet(-count);
+            long sum = mSum.getAndSet(0);
+            if (count == 0) {
+                return "n=0";
+            }
+            return "n=" + count + " mean=" + sum / count + " p50<" + percentile(mDrained, count, 0.5f)
+                    + " p99<" + percentile(mDrained, count, 0.99f);
+        }
+
+        private static long percentile(long[] buckets, long count, float p) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(count * p);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (BUCKETS - 1);
+        }
+    }
+}
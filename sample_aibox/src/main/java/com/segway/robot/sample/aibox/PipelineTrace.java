@@ -0,0 +1,20 @@
+package com.segway.robot.sample.aibox;
+
+/**
+ * Stage ids of the java side of the pipeline in the native trace ring, see
+ * {@link VisionNative#nativeTraceBegin}. Ids are registered when the class is first used, which is
+ * after the native library was loaded.
+ */
+public final class PipelineTrace {
+    /**
+     * One capture loop iteration, the argument is the frame's platform timestamp.
+     */
+    public static final int FRAME = VisionNative.nativeTraceName("frame");
+    public static final int COPY = VisionNative.nativeTraceName("copy");
+    public static final int DETECT = VisionNative.nativeTraceName("detect");
+    public static final int PREVIEW = VisionNative.nativeTraceName("preview");
+    public static final int DISPLAY = VisionNative.nativeTraceName("display");
+
+    private PipelineTrace() {
+    }
+}
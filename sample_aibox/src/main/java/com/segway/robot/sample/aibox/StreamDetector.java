@@ -0,0 +1,144 @@
+package com.segway.robot.sample.aibox;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.segway.robot.sdk.vision.stream.PixelFormat;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Capture and detect loop for one extra camera stream in multi-stream mode.
+ * Every stream has its own native engine and frame source. In push mode the stream is started
+ * with {@link #getFrameSource()} as its listener and the loop wakes when a frame arrives,
+ * otherwise it polls every PERIOD_MS. Detections of all streams go through
+ * one fair semaphore, so a fast stream can not starve the others on the accelerator.
+ */
+public class StreamDetector extends Thread {
+
+    private static final String TAG = StreamDetector.class.getSimpleName();
+    private static final int PERIOD_MS = 100;
+    private static final int FRAME_WAIT_MS = 500;
+    private static final int REPORT_INTERVAL_MS = 5000;
+    private static final int LATENCY_WINDOW = 100;
+
+    public interface Listener {
+        void onDetected(int streamType, DetectedResult[] results);
+    }
+
+    private final int mStreamType;
+    private final Semaphore mDetectPermits;
+    private final ThreadPolicy mThreadPolicy;
+    private final Listener mListener;
+    private final JitterMeter mLatency;
+    private final FrameMetrics mMetrics;
+    private final FrameSource mFrameSource;
+    private final boolean mPush;
+    private volatile boolean mIsRunning = true;
+    private int mFrameCount;
+    private long mReportStartTs;
+
+    public StreamDetector(int streamType, boolean push, Semaphore detectPermits, ThreadPolicy threadPolicy,
+                          Listener listener) {
+        super("StreamDetector-" + streamType);
+        mStreamType = streamType;
+        mDetectPermits = detectPermits;
+        mThreadPolicy = threadPolicy;
+        mListener = listener;
+        mLatency = new JitterMeter("stream " + streamType + " latency", LATENCY_WINDOW);
+        mMetrics = new FrameMetrics("stream" + streamType);
+        mFrameSource = new FrameSource(streamType, false, mMetrics);
+        mFrameSource.setThreadPolicy(threadPolicy);
+        mPush = push;
+    }
+
+    public int getStreamType() {
+        return mStreamType;
+    }
+
+    public FrameSource getFrameSource() {
+        return mFrameSource;
+    }
+
+    public void stopDetect() {
+        mIsRunning = false;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        // frames are copied out on the sdk's callback thread, this loop runs the detector, so it
+        // is placed once as an inference thread instead of switching roles around every detect
+        mThreadPolicy.apply(ThreadPolicy.ROLE_INFERENCE);
+        mReportStartTs = SystemClock.elapsedRealtime();
+        while (mIsRunning) {
+            long startTs = System.currentTimeMillis();
+            try {
+                detectOnce();
+            } catch (InterruptedException e) {
+                break;
+            } catch (Exception e) {
+                Log.e(TAG, "stream " + mStreamType + " error", e);
+            }
+            reportFps();
+            long interval = PERIOD_MS - (System.currentTimeMillis() - startTs);
+            if (!mPush && interval > 0) {
+                try {
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+        }
+        mFrameSource.drain();
+        VisionNative.nativeReleaseStream(mStreamType);
+    }
+
+    private void detectOnce() throws InterruptedException {
+        FrameHandle frame = mPush ? mFrameSource.awaitNext(FRAME_WAIT_MS) : mFrameSource.acquireLatest();
+        if (frame == null) {
+            return;
+        }
+        VisionNative.nativeTraceBegin(PipelineTrace.FRAME, frame.getPlatformTimestamp());
+        try {
+            int pixelFormat = frame.getPixelFormat();
+            if (pixelFormat != PixelFormat.YUV420 && pixelFormat != PixelFormat.YV12) {
+                Log.d(TAG, "stream " + mStreamType + ": an unsupported format");
+                return;
+            }
+
+            long detectStartTs = SystemClock.elapsedRealtimeNanos();
+            DetectedResult[] results;
+            mDetectPermits.acquire();
+            try {
+                VisionNative.nativeTraceBegin(PipelineTrace.DETECT, 0);
+                results = VisionNative.nativeDetectStream(mStreamType, frame.getBuffer(), pixelFormat,
+                        frame.getWidth(), frame.getHeight(), frame.getPlatformTimestamp(), null);
+            } finally {
+                VisionNative.nativeTraceEnd(PipelineTrace.DETECT);
+                mDetectPermits.release();
+            }
+            long detectTime = SystemClock.elapsedRealtimeNanos() - detectStartTs;
+            mLatency.record(detectTime / 1e6f);
+            mMetrics.onDetected(detectTime, frame.getPlatformTimestamp());
+            mMetrics.onInputSize(VisionNative.nativeGetInputSize(mStreamType));
+            mFrameCount++;
+            if (mListener != null) {
+                mListener.onDetected(mStreamType, results);
+            }
+        } finally {
+            frame.release();
+            VisionNative.nativeTraceEnd(PipelineTrace.FRAME);
+        }
+    }
+
+    private void reportFps() {
+        long now = SystemClock.elapsedRealtime();
+        long elapsed = now - mReportStartTs;
+        if (elapsed >= REPORT_INTERVAL_MS) {
+            Log.d(TAG, "stream " + mStreamType + ": " + String.format("%.1f", mFrameCount * 1000f / elapsed) + " fps");
+            mFrameCount = 0;
+            mReportStartTs = now;
+        }
+    }
+}
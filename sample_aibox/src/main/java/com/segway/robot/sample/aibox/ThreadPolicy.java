@@ -0,0 +1,209 @@
+package com.segway.robot.sample.aibox;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+/**
+ * Thread placement for the detection pipeline: a cpu mask and a priority per role, plus the
+ * thread counts of the tflite interpreter and OpenCV.
+ * On big.LITTLE boards the big cores are the ones with the highest cpuinfo_max_freq.
+ */
+public class ThreadPolicy {
+
+    private static final String TAG = ThreadPolicy.class.getSimpleName();
+    private static final String CPU_DIR = "/sys/devices/system/cpu/";
+
+    public static final int ROLE_CAPTURE = 0;
+    public static final int ROLE_INFERENCE = 1;
+    public static final int ROLE_RENDER = 2;
+    private static final int ROLE_COUNT = 3;
+
+    /**
+     * A zero mask leaves the affinity untouched.
+     */
+    public static final long ANY_CPU = 0;
+
+    private final String mName;
+    private final long[] mCpuMasks = new long[ROLE_COUNT];
+    private final int[] mPriorities = new int[ROLE_COUNT];
+    private int mInferenceThreads;
+    private int mOpenCVThreads;
+
+    public ThreadPolicy(String name) {
+        mName = name;
+        for (int i = 0; i < ROLE_COUNT; i++) {
+            mCpuMasks[i] = ANY_CPU;
+            mPriorities[i] = Process.THREAD_PRIORITY_DEFAULT;
+        }
+    }
+
+    /**
+     * No pinning, default priorities, library default thread counts.
+     */
+    public static ThreadPolicy createUnpinned() {
+        return new ThreadPolicy("unpinned");
+    }
+
+    /**
+     * Inference on the big cores, capture and conversion on the little ones, render raised to
+     * display priority. Falls back to unpinned on symmetric cpus.
+     */
+    public static ThreadPolicy createBigLittle() {
+        long[] masks = detectCoreMasks();
+        long bigMask = masks[0];
+        long littleMask = masks[1];
+        if (bigMask == 0 || littleMask == 0) {
+            return createUnpinned();
+        }
+        return new ThreadPolicy("big.LITTLE")
+                .setRole(ROLE_CAPTURE, littleMask, Process.THREAD_PRIORITY_DEFAULT)
+                .setRole(ROLE_INFERENCE, bigMask, Process.THREAD_PRIORITY_FOREGROUND)
+                .setRole(ROLE_RENDER, ANY_CPU, Process.THREAD_PRIORITY_DISPLAY)
+                .setThreadCount(Long.bitCount(bigMask), Long.bitCount(littleMask));
+    }
+
+    public ThreadPolicy setRole(int role, long cpuMask, int priority) {
+        mCpuMasks[role] = cpuMask;
+        mPriorities[role] = priority;
+        return this;
+    }
+
+    /**
+     * Values <= 0 keep the library default.
+     */
+    public ThreadPolicy setThreadCount(int inferenceThreads, int opencvThreads) {
+        mInferenceThreads = inferenceThreads;
+        mOpenCVThreads = opencvThreads;
+        return this;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Apply the placement of the given role to the calling thread. Call it once when the thread
+     * starts, it costs an affinity and a priority syscall.
+     */
+    public void apply(int role) {
+        Process.setThreadPriority(mPriorities[role]);
+        if (mCpuMasks[role] != ANY_CPU) {
+            int ret = VisionNative.nativeSetThreadAffinity(mCpuMasks[role]);
+            if (ret != 0) {
+                Log.w(TAG, "pin role " + role + " to 0x" + Long.toHexString(mCpuMasks[role]) + " failed: " + ret);
+            }
+        }
+    }
+
+    /**
+     * Push the thread counts to native code. tflite workers inherit the affinity of the thread
+     * that first invokes the interpreter, so call this from an inference thread.
+     */
+    public void applyThreadCount() {
+        VisionNative.nativeSetNumThreads(mInferenceThreads, mOpenCVThreads);
+    }
+
+    @Override
+    public String toString() {
+        return mName + " capture=0x" + Long.toHexString(mCpuMasks[ROLE_CAPTURE])
+                + " inference=0x" + Long.toHexString(mCpuMasks[ROLE_INFERENCE])
+                + " render=0x" + Long.toHexString(mCpuMasks[ROLE_RENDER])
+                + " threads=" + mInferenceThreads + "/" + mOpenCVThreads;
+    }
+
+    /**
+     * @return {bigMask, littleMask}, littleMask is 0 when all cores run at the same max frequency
+     */
+    static long[] detectCoreMasks() {
+        long possible = readPossibleCpus();
+        long[] maxFreqs = new long[64];
+        long highest = 0;
+        for (int cpu = 0; cpu < 64; cpu++) {
+            if ((possible & 1L << cpu) != 0) {
+                maxFreqs[cpu] = readMaxFreq(cpu);
+                highest = Math.max(highest, maxFreqs[cpu]);
+            }
+        }
+        long bigMask = 0;
+        long littleMask = 0;
+        for (int cpu = 0; cpu < 64; cpu++) {
+            if (maxFreqs[cpu] <= 0) {
+                continue;
+            }
+            if (maxFreqs[cpu] == highest) {
+                bigMask |= 1L << cpu;
+            } else {
+                littleMask |= 1L << cpu;
+            }
+        }
+        return new long[]{bigMask, littleMask};
+    }
+
+    /**
+     * availableProcessors() only counts the cpus online right now, a big core parked by hotplug
+     * would be left out of the masks for good. "possible" lists every cpu the kernel can bring up.
+     */
+    private static long readPossibleCpus() {
+        long mask = parseCpuList(readLine(new File(CPU_DIR + "possible")));
+        if (mask == 0) {
+            int cpuCount = Math.min(Runtime.getRuntime().availableProcessors(), 64);
+            mask = cpuCount == 64 ? -1L : (1L << cpuCount) - 1;
+        }
+        return mask;
+    }
+
+    /**
+     * @param list a kernel cpu list like "0-3,6,8-9"
+     * @return the cpus below 64 as a mask, 0 when the list is null or malformed
+     */
+    static long parseCpuList(String list) {
+        if (list == null) {
+            return 0;
+        }
+        long mask = 0;
+        try {
+            for (String range : list.trim().split(",")) {
+                int dash = range.indexOf('-');
+                int first = Integer.parseInt(dash < 0 ? range : range.substring(0, dash));
+                int last = dash < 0 ? first : Integer.parseInt(range.substring(dash + 1));
+                for (int cpu = first; cpu <= Math.min(last, 63); cpu++) {
+                    mask |= 1L << cpu;
+                }
+            }
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        return mask;
+    }
+
+    private static long readMaxFreq(int cpu) {
+        String line = readLine(new File(CPU_DIR + "cpu" + cpu + "/cpufreq/cpuinfo_max_freq"));
+        try {
+            return line != null ? Long.parseLong(line.trim()) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static String readLine(File file) {
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new FileReader(file));
+            return reader.readLine();
+        } catch (IOException e) {
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+}
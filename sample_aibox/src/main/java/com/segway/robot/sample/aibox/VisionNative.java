@@ -1,7 +1,229 @@
 package com.segway.robot.sample.aibox;
 
+import android.graphics.Bitmap;
+
 import java.nio.ByteBuffer;
 
 public class VisionNative {
+    /**
+     * Stream id of the engine used by {@link #nativeDetect}.
+     */
+    public static final int DEFAULT_STREAM = -1;
+    /**
+     * Model every stream starts with, /sdcard/apple_model.tflite.
+     */
+    public static final String DEFAULT_MODEL = "apple";
+
+    /**
+     * Load the model and run warmup inferences so the first detection does not pay for it.
+     *
+     * @return load + warmup time in ms, or a negative value if the model could not be loaded
+     */
+    public static native float nativeInit(int warmupIterations);
+
+    /**
+     * Pin the calling thread to the cpus set in cpuMask (bit n = cpu n).
+     *
+     * @return 0 on success, a negative errno otherwise
+     */
+    public static native int nativeSetThreadAffinity(long cpuMask);
+
+    /**
+     * Set the cpu thread count of the tflite interpreter and of OpenCV's pool, values <= 0 are ignored.
+     */
+    public static native void nativeSetNumThreads(int inferenceThreads, int opencvThreads);
+
+    /**
+     * Detect only in padded regions around the previous frame's results, each at a smaller network
+     * input, falling back to the full frame every refreshInterval frames, when nothing was found or
+     * when the regions would cost more than one full frame.
+     */
+    public static native void nativeSetRoiMode(boolean enable, int refreshInterval);
+
+    /**
+     * Inference latency budget in ms. While the engines run over it their network input steps
+     * down (512, 416, 320) and comes back once there is headroom, <= 0 keeps the full input.
+     */
+    public static native void nativeSetLatencyBudget(float budgetMs);
+
+    /**
+     * Network input width the engine of a stream uses next, 0 before the engine is ready.
+     */
+    public static native int nativeGetInputSize(int stream);
+
+    /**
+     * Make a model file available under an id. Engines are loaded on first use with the weights
+     * memory-mapped.
+     */
+    public static native void nativeRegisterModel(String id, String path);
+
+    /**
+     * Detect with a registered model on a stream from the next frame on, false for an unknown id.
+     */
+    public static native boolean nativeSelectModel(int stream, String id);
+
+    /**
+     * Unload the least recently used idle engines while mapped weights and tensors of all
+     * resident engines exceed bytes, 0 never unloads.
+     */
+    public static native void nativeSetModelMemoryBudget(long bytes);
+
+    /**
+     * One line per model: resident engines and memory, load and eviction counts and latency.
+     */
+    public static native String nativeGetModelStats();
+
+    /**
+     * Fisheye intrinsics of a stream at width x height, used to report the ground distance of
+     * each result. fx, fy, cx, cy in pixels, distortion is the FOV model parameter.
+     */
+    public static native void nativeSetIntrinsics(int stream, int width, int height, float fx, float fy, float cx,
+                                                  float cy, float distortion);
+
+    /**
+     * Load a registered model into an engine of its own and warm it up, off the UI thread. The
+     * handle is used as the stream of {@link #nativeDetectStream} and by the engine calls below.
+     *
+     * @return the engine's handle, 0 if the model is unknown or could not be loaded
+     */
+    public static native int nativeCreateEngine(String modelId, int warmupIterations);
+
+    /**
+     * Detection confidence and NMS overlap thresholds of an engine or camera stream, negative
+     * values keep the model's defaults. Applies from the next frame and to models swapped in later.
+     *
+     * @return false for an unknown or released handle
+     */
+    public static native boolean nativeConfigureEngine(int handle, float confThresh, float nmsThresh);
+
+    /**
+     * Replace the model of an engine or camera stream without pausing it: the new model is loaded
+     * and warmed up on a background thread while detections continue on the current one, then
+     * taken between two frames. Poll {@link #nativeGetEngineModel} to see when it switched.
+     *
+     * @return false for an unknown model or handle, or while another swap of the handle runs
+     */
+    public static native boolean nativeSwapModel(int handle, String modelId, int warmupIterations);
+
+    /**
+     * Id of the model an engine detects with now, null for an unknown or released handle.
+     */
+    public static native String nativeGetEngineModel(int handle);
+
+    /**
+     * Unload the models of an engine created by {@link #nativeCreateEngine}. The handle is not
+     * reused and detecting with it returns null.
+     */
+    public static native void nativeReleaseEngine(int handle);
+
+    /**
+     * Gate the detector of an engine or camera stream with a small presence classifier: on frames
+     * without detections in the last few frames the classifier scores a downsampled frame first and
+     * the detector only runs from threshold. Every auditInterval-th rejected frame is detected
+     * anyway to measure misses, 0 never audits. A null or empty path turns the gate off.
+     *
+     * @return false for an unknown or released handle or a model that can not be loaded
+     */
+    public static native boolean nativeSetPresenceGate(int handle, String modelPath, float threshold, int auditInterval);
+
+    /**
+     * Frames gated and skipped, time of both stages, time saved and audited misses of an engine
+     * or camera stream, null for an unknown handle.
+     */
+    public static native String nativeGetCascadeStats(int handle);
+
+    /**
+     * Same as {@link #nativeInit(int)} for the engine of one camera stream.
+     */
+    public static native float nativeInitStream(int stream, int warmupIterations);
+
+    /**
+     * Free the engine of a camera stream, it is created again on the next detection.
+     */
+    public static native void nativeReleaseStream(int stream);
+
+    /**
+     * Detect with the engine dedicated to the given stream, engines of different streams can run
+     * concurrently and share the model weights. When preview is not null the frame is also drawn
+     * into it from the same colour conversion, scaled to the bitmap's size.
+     *
+     * @param preview an ARGB_8888 bitmap or null
+     */
+    public static native DetectedResult[] nativeDetectStream(int stream, ByteBuffer data, int format, int width, int height,
+                                                             long timestamp, Bitmap preview);
+
+    /**
+     * Detect on an encoded image file (JPEG, or anything else BitmapFactory reads) on a stream.
+     * The file is memory-mapped and a JPEG is decoded at the reduced scale (1/2, 1/4, 1/8) that
+     * still covers the network input; results are in the coordinates of the full size image.
+     *
+     * @param preview an ARGB_8888 bitmap drawn from the same decode, or null
+     * @return null if the file can not be read or decoded
+     */
+    public static native DetectedResult[] nativeDetectImage(int stream, String path, long timestamp, Bitmap preview);
+
+    /**
+     * Same as {@link #nativeDetectImage} for the first length bytes of an encoded image in a direct
+     * buffer, e.g. a MappedByteBuffer of the file.
+     */
+    public static native DetectedResult[] nativeDetectImageBuffer(int stream, ByteBuffer data, int length, long timestamp,
+                                                                  Bitmap preview);
+
+    /**
+     * Draw a frame into an ARGB_8888 bitmap scaled to the bitmap's size, for frames that are not detected.
+     *
+     * @return false if the buffer is not direct or the bitmap can not be locked
+     */
+    public static native boolean nativeRenderPreview(ByteBuffer data, int format, int width, int height, Bitmap preview);
+
+    /**
+     * Publish every detection into a memory-mapped ring file that other processes can read
+     * without locks, see DetectionRing.h for the record layout.
+     */
+    public static native boolean nativeOpenPublisher(String path, int slotCount, int maxBoxes);
+
+    public static native void nativeClosePublisher();
+
+    /**
+     * Append every detection to a persistent log in dir (created if missing): memory-mapped
+     * segments of segmentRecords records each, the oldest deleted beyond maxSegments segments.
+     * Read it with DetectionLogReader from DetectionLog.h.
+     */
+    public static native boolean nativeOpenDetectionLog(String dir, int segmentRecords, int maxSegments);
+
+    public static native void nativeCloseDetectionLog();
+
+    /**
+     * Serve detections to other apps over a unix domain socket ("@name" for the abstract
+     * namespace), see InferenceProtocol.h for the wire format. Frames pending at the same time
+     * are processed as one batch of up to maxBatch on a shared engine.
+     */
+    public static native boolean nativeStartServer(String socketName, int maxBatch);
+
+    public static native void nativeStopServer();
+
     public static native DetectedResult[] nativeDetect(ByteBuffer data, int format, int width, int height);
+
+    /**
+     * Id of a pipeline stage name in the trace ring, registered on first use. Keep the id, this
+     * is not meant for the per-frame path.
+     */
+    public static native int nativeTraceName(String name);
+
+    /**
+     * Record the start of stage id on the calling thread, arg is shown with the event when not 0.
+     * A no-op while tracing is disabled.
+     */
+    public static native void nativeTraceBegin(int id, long arg);
+
+    public static native void nativeTraceEnd(int id);
+
+    public static native void nativeTraceEnable(boolean enable);
+
+    /**
+     * Write the events in the trace ring to path as Chrome trace-event JSON.
+     *
+     * @return the number of events written, -1 if the file could not be written
+     */
+    public static native int nativeTraceDump(String path);
 }
@@ -0,0 +1,126 @@
+//
+// Host test for CascadeGate.h.
+//
+//   g++ -std=c++11 -O2 -I../../main/cpp CascadeGateTest.cpp -o cascade_test && ./cascade_test
+//
+// Drives the gate with a simulated run: stretches of transit without apples between stretches
+// along a tree row, a noisy presence classifier and a detector that finds the apples whenever it
+// runs. Prints skipped frames, time saved and miss rate over a range of thresholds, and checks
+// that frames after a detection skip the classifier, that the audits estimate the miss rate of the
+// classifier, and that the cascade saves time at the default threshold. Exit status is non-zero
+// when a check fails.
+//
+
+#include "CascadeGate.h"
+
+#include <algorithm>
+#include <cmath>
+#include <cstdio>
+#include <cstdlib>
+#include <vector>
+
+using namespace ninebot_algo::cnn_ninebot;
+
+static const int FRAMES = 100000;
+static const float GATE_MS = 2;
+static const float DETECTOR_MS = 45;
+
+static float uniform(float low, float high) {
+    return low + (high - low) * (rand() % 10000) / 10000.f;
+}
+
+// 300 frames of transit then 60 frames at a tree, apples in view at the tree
+static std::vector<bool> scene() {
+    std::vector<bool> present(FRAMES);
+    for (int f = 0; f < FRAMES; f++)
+        present[f] = f % 360 >= 300;
+    return present;
+}
+
+// overlapping score ranges, so some frames with apples score low and some without score high
+static float classifier_score(bool present) {
+    return present ? uniform(0.3f, 1.f) : uniform(0.f, 0.6f);
+}
+
+struct Run {
+    CascadeGate::Stats stats;
+    int gated_present = 0;      // frames with apples the classifier ran on
+    int rejected_present = 0;   // of those, the ones under the threshold
+    int held = 0;               // frames that skipped the classifier after a detection
+};
+
+static Run run(const std::vector<bool> &present, const CascadeGate::Options &options) {
+    srand(1);
+    CascadeGate gate;
+    gate.configure(options);
+    Run result;
+    for (int f = 0; f < FRAMES; f++) {
+        if (gate.wants_gate()) {
+            float score = classifier_score(present[f]);
+            bool admitted = gate.admit(score, GATE_MS);
+            if (present[f]) {
+                result.gated_present++;
+                result.rejected_present += score < options.presence_thresh;
+            }
+            if (!admitted)
+                continue;
+        } else {
+            gate.bypass();
+            result.held++;
+        }
+        gate.detected(present[f] ? 3 : 0, DETECTOR_MS);
+    }
+    result.stats = gate.stats();
+    return result;
+}
+
+static bool check(bool ok, const char *what) {
+    printf("%s: %s\n", ok ? "ok" : "FAIL", what);
+    return ok;
+}
+
+int main() {
+    std::vector<bool> present = scene();
+    bool ok = true;
+
+    // the audits estimate the share of rejected frames that had apples, the last column is the
+    // share of the frames with apples the classifier was asked about and rejected
+    printf("threshold  skipped  detector  saved ms/frame  rejected with apples  audit estimate  apples rejected\n");
+    for (float threshold = 0.2f; threshold < 0.75f; threshold += 0.1f) {
+        CascadeGate::Options options;
+        options.presence_thresh = threshold;
+        Run r = run(present, options);
+        const CascadeGate::Stats &s = r.stats;
+        printf("%9.1f  %6.1f%%  %7.1f%%  %14.2f  %19.1f%%  %13.1f%%  %14.1f%%\n", threshold,
+               100.0 * s.skipped / s.frames, 100.0 * s.detected / s.frames, s.saved_ms() / s.frames,
+               100.0 * r.rejected_present / std::max<uint64_t>(1, s.rejected), s.miss_rate() * 100,
+               100.0 * r.rejected_present / std::max(1, r.gated_present));
+    }
+
+    CascadeGate::Options options;
+    Run r = run(present, options);
+    const CascadeGate::Stats &s = r.stats;
+    ok &= check(s.frames == FRAMES && s.gated + (uint64_t) r.held == FRAMES, "every frame is gated or held");
+    ok &= check(s.detected + s.skipped == FRAMES, "every frame is detected or skipped");
+    // transit frames are 5/6 of the run, about half of them score under 0.5
+    ok &= check(s.skipped > FRAMES / 3, "skips most transit frames");
+    ok &= check(s.saved_ms() > 0.3 * FRAMES * DETECTOR_MS, "saves detector time at the default threshold");
+    // once a tree is found the classifier is skipped for the rest of it
+    ok &= check(r.held > FRAMES / 8, "frames after a detection skip the classifier");
+    ok &= check(s.audits > 0 && s.audits == s.rejected / options.audit_interval, "audits every audit_interval rejections");
+    // audits sample the rejected frames, so misses / audits estimates the share of rejected frames with apples
+    float rejected_with_apples = (float) r.rejected_present / s.rejected;
+    ok &= check(std::fabs(s.miss_rate() - rejected_with_apples) < 0.01f, "audits estimate the miss rate");
+
+    options.audit_interval = 0;
+    Run unaudited = run(present, options);
+    ok &= check(unaudited.stats.audits == 0 && unaudited.stats.skipped == unaudited.stats.rejected,
+                "audit_interval 0 never audits");
+
+    options.presence_thresh = 0;
+    Run open = run(present, options);
+    ok &= check(open.stats.skipped == 0 && open.stats.saved_ms() < 0, "threshold 0 only costs the classifier");
+
+    printf(ok ? "OK\n" : "FAILED\n");
+    return ok ? 0 : 1;
+}
@@ -0,0 +1,109 @@
+//
+// Host test and benchmark for DetectionLog.h.
+//
+//   g++ -std=c++11 -O2 -I../../main/cpp DetectionLogBench.cpp -o log_bench && ./log_bench [records]
+//
+// Appends records the way the detector does (a few boxes per frame, 10 ms apart), then checks
+// rotation kept the disk bound and reports append cost, the latency of narrow time-range queries
+// and full scan throughput. Exit status is non-zero when a check fails.
+//
+
+#include "DetectionLog.h"
+
+#include <cmath>
+#include <cstdlib>
+#include <sys/stat.h>
+
+using namespace ninebot_algo::cnn_ninebot;
+
+static const char *LOG_DIR = "/tmp/aibox_detection_log_bench";
+static const int BOXES_PER_FRAME = 4;
+static const int64_t FRAME_INTERVAL_US = 10000;
+// camera streams and an engine handle, which starts at 0x10000
+static const int STREAMS[] = {-1, 1, 0x10000};
+
+struct Box {
+    int classId;
+    float x1, y1, x2, y2, score;
+};
+
+static int64_t now_ns() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+int main(int argc, char **argv) {
+    uint64_t records = argc > 1 ? strtoull(argv[1], nullptr, 10) : 4000000;
+    mkdir(LOG_DIR, 0755);
+    for (uint64_t number : detection_log_segments(LOG_DIR))
+        unlink(detection_log_segment_path(LOG_DIR, number).c_str());
+
+    DetectionLogWriter::Options options;
+    options.segment_records = 1 << 18;
+    options.max_segments = 8;
+    DetectionLogWriter writer;
+    if (!writer.open(LOG_DIR, options)) {
+        printf("FAIL: open %s\n", LOG_DIR);
+        return 1;
+    }
+    Box boxes[BOXES_PER_FRAME];
+    uint64_t frames = records / BOXES_PER_FRAME;
+    int64_t start = now_ns();
+    for (uint64_t f = 0; f < frames; f++) {
+        for (int b = 0; b < BOXES_PER_FRAME; b++)
+            boxes[b] = {b % 2, (float) f, (float) b, (float) f + 10, (float) b + 10, 0.5f};
+        writer.append((int64_t) f * FRAME_INTERVAL_US, STREAMS[f % 3], boxes, BOXES_PER_FRAME);
+    }
+    writer.commit();
+    double append_ns = (double) (now_ns() - start) / (frames * BOXES_PER_FRAME);
+    printf("append: %llu records, %.1f ns/record\n", (unsigned long long) (frames * BOXES_PER_FRAME), append_ns);
+
+    std::vector<uint64_t> segments = detection_log_segments(LOG_DIR);
+    uint64_t retained_records = segments.size() * options.segment_records;
+    if ((int) segments.size() > options.max_segments) {
+        printf("FAIL: %zu segments on disk, bound is %d\n", segments.size(), options.max_segments);
+        return 1;
+    }
+
+    DetectionLogReader reader(LOG_DIR);
+    int64_t last_ts = (int64_t) (frames - 1) * FRAME_INTERVAL_US;
+    // everything still on disk, in order
+    int64_t previous = INT64_MIN;
+    bool ordered = true, intact = true;
+    start = now_ns();
+    uint64_t all = reader.scan(INT64_MIN, INT64_MAX, [&](const DetectionLogRecord &r) {
+        ordered = ordered && r.timestamp >= previous;
+        previous = r.timestamp;
+        intact = intact && r.stream == STREAMS[r.timestamp / FRAME_INTERVAL_US % 3] && std::fabs(r.score() - 0.5f) < 1e-4f;
+    });
+    double scan_ms = (now_ns() - start) / 1e6;
+    printf("full scan: %llu records in %.1f ms, %.1f M records/s\n", (unsigned long long) all, scan_ms,
+           all / scan_ms / 1000);
+    if (!ordered || !intact || all == 0 || all > retained_records || previous != last_ts) {
+        printf("FAIL: full scan returned %llu records, last timestamp %lld, streams and scores %s\n",
+               (unsigned long long) all, (long long) previous, intact ? "intact" : "corrupted");
+        return 1;
+    }
+
+    // one second windows spread over the retained history
+    int64_t first_ts = last_ts - (int64_t) (all / BOXES_PER_FRAME - 1) * FRAME_INTERVAL_US;
+    const int queries = 200;
+    uint64_t found = 0;
+    start = now_ns();
+    for (int q = 0; q < queries; q++) {
+        int64_t from = first_ts + (last_ts - first_ts - 1000000) / queries * q;
+        found += reader.count(from, from + 1000000 - 1);
+    }
+    double query_us = (now_ns() - start) / 1e3 / queries;
+    uint64_t expected = (uint64_t) queries * (1000000 / FRAME_INTERVAL_US) * BOXES_PER_FRAME;
+    printf("1 s range query: %.1f us, %llu records\n", query_us, (unsigned long long) found);
+    if (found != expected) {
+        printf("FAIL: range queries found %llu records, expected %llu\n", (unsigned long long) found,
+               (unsigned long long) expected);
+        return 1;
+    }
+    writer.close();
+    printf("OK, %zu segments kept\n", segments.size());
+    return 0;
+}
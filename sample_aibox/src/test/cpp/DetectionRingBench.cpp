@@ -0,0 +1,165 @@
+//
+// Host test and benchmark for DetectionRing.h, runs a writer and a reader in two processes.
+//
+//   g++ -std=c++11 -O2 -I../../main/cpp DetectionRingBench.cpp -o ring_bench && ./ring_bench [records]
+//
+// The reader checks every record it sees for torn writes and reports publish cost and
+// publish -> read latency. Then the writer is restarted under a reader that stays mapped: with the
+// same layout the sequence continues, with another layout the reader sees a new generation.
+// Exit status is non-zero when a check fails.
+//
+
+#include "DetectionRing.h"
+
+#include <algorithm>
+#include <cstdio>
+#include <cstdlib>
+#include <sys/wait.h>
+#include <vector>
+
+using namespace ninebot_algo::cnn_ninebot;
+
+static const char *RING_PATH = "/tmp/aibox_detection_ring_bench";
+static const uint32_t SLOTS = 64;
+static const uint32_t MAX_BOXES = 32;
+
+static int64_t now_ns() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+static void fill_boxes(uint64_t seq, std::vector<DetectionRingBox> &boxes) {
+    boxes.resize(seq % MAX_BOXES + 1);
+    for (size_t i = 0; i < boxes.size(); i++) {
+        boxes[i].classId = (int32_t) (seq % 3);
+        boxes[i].x1 = seq + i;
+        boxes[i].y1 = seq + i + 1;
+        boxes[i].x2 = seq + i + 2;
+        boxes[i].y2 = seq + i + 3;
+        boxes[i].score = (float) i;
+    }
+}
+
+static double percentile(std::vector<double> &values, double p) {
+    if (values.empty())
+        return 0;
+    std::sort(values.begin(), values.end());
+    return values[std::min(values.size() - 1, (size_t) (values.size() * p))];
+}
+
+static int run_reader(uint64_t records) {
+    DetectionRingReader reader;
+    for (int i = 0; i < 1000 && !reader.open(RING_PATH); i++)
+        usleep(1000);
+    if (!reader.is_open()) {
+        fprintf(stderr, "reader: can not open ring\n");
+        return 1;
+    }
+    std::vector<DetectionRingBox> boxes(reader.max_boxes());
+    std::vector<DetectionRingBox> expected;
+    DetectionRecord record;
+    record.boxes = boxes.data();
+    std::vector<double> latencies;
+    uint64_t seen = 0, missed = 0, torn = 0;
+    uint64_t next = 0;
+    while (next < records) {
+        if (!reader.wait(next, 2000)) {
+            fprintf(stderr, "reader: timed out at %llu\n", (unsigned long long) next);
+            return 1;
+        }
+        uint64_t published = reader.published_count();
+        if (published - next > reader.slot_count()) {
+            missed += published - next - 1;
+            next = published - 1;
+        }
+        for (; next < published; next++) {
+            if (!reader.read(next, record)) {
+                missed++;
+                continue;
+            }
+            latencies.push_back((now_ns() - record.timestamp) / 1000.0);
+            fill_boxes(next, expected);
+            if (record.count != (int32_t) expected.size() ||
+                memcmp(record.boxes, expected.data(), expected.size() * sizeof(DetectionRingBox)) != 0)
+                torn++;
+            seen++;
+        }
+    }
+    printf("reader: %llu records read, %llu overwritten before read, %llu torn\n",
+           (unsigned long long) seen, (unsigned long long) missed, (unsigned long long) torn);
+    printf("reader: publish->read latency p50 %.1f us, p99 %.1f us\n",
+           percentile(latencies, 0.5), percentile(latencies, 0.99));
+    return torn == 0 && seen > 0 ? 0 : 1;
+}
+
+static bool check(bool ok, const char *what) {
+    printf("%s: %s\n", ok ? "ok" : "FAIL", what);
+    return ok;
+}
+
+// the ring of the run above is still on disk with records published
+static bool check_restart(uint64_t records) {
+    bool ok = true;
+    DetectionRingReader reader;
+    ok &= check(reader.open(RING_PATH) && reader.published_count() == records, "reader opens the previous ring");
+    std::vector<DetectionRingBox> boxes, read_boxes(MAX_BOXES);
+    DetectionRecord record;
+    record.boxes = read_boxes.data();
+
+    DetectionRingWriter writer;
+    ok &= check(writer.open(RING_PATH, SLOTS, MAX_BOXES), "writer restarts on the same layout");
+    fill_boxes(records, boxes);
+    uint64_t seq = writer.publish(now_ns(), 0, boxes.data(), (int) boxes.size());
+    ok &= check(seq == records && reader.is_current() && reader.read(seq, record)
+                && record.count == (int32_t) boxes.size(), "same layout continues the sequence");
+
+    uint32_t generation = writer.generation();
+    ok &= check(writer.open(RING_PATH, SLOTS * 2, MAX_BOXES), "writer restarts on another layout");
+    ok &= check(writer.generation() == generation + 1 && !reader.is_current() && !reader.read(seq, record)
+                && !reader.wait(reader.published_count(), 10), "another layout starts a new generation");
+    DetectionRingReader reopened;
+    ok &= check(reopened.open(RING_PATH) && reopened.slot_count() == SLOTS * 2 && reopened.published_count() == 0,
+                "a reopened reader follows the new layout");
+    return ok;
+}
+
+int main(int argc, char **argv) {
+    uint64_t records = argc > 1 ? strtoull(argv[1], nullptr, 10) : 100000;
+    unlink(RING_PATH);
+
+    DetectionRingWriter writer;
+    if (!writer.open(RING_PATH, SLOTS, MAX_BOXES)) {
+        fprintf(stderr, "writer: can not create ring\n");
+        return 1;
+    }
+
+    pid_t pid = fork();
+    if (pid == 0)
+        return run_reader(records);
+
+    // give the reader time to map the ring
+    usleep(50000);
+    std::vector<DetectionRingBox> boxes;
+    std::vector<double> costs;
+    costs.reserve(records);
+    for (uint64_t seq = 0; seq < records; seq++) {
+        fill_boxes(seq, boxes);
+        int64_t start = now_ns();
+        writer.publish(start, 0, boxes.data(), (int) boxes.size());
+        costs.push_back((now_ns() - start) / 1000.0);
+        // roughly camera pace for a tenth of the records, flat out for the rest
+        if (seq % 10 == 0)
+            usleep(100);
+    }
+    printf("writer: %llu records, publish p50 %.2f us, p99 %.2f us\n", (unsigned long long) records,
+           percentile(costs, 0.5), percentile(costs, 0.99));
+
+    int status = 0;
+    waitpid(pid, &status, 0);
+    writer.close();
+    bool ok = WIFEXITED(status) && WEXITSTATUS(status) == 0;
+    ok &= check_restart(records);
+    unlink(RING_PATH);
+    return ok ? 0 : 1;
+}
@@ -0,0 +1,116 @@
+//
+// Host test and benchmark for FisheyeGeometry.h.
+//
+//   g++ -std=c++11 -O2 -I../../main/cpp FisheyeGeometryBench.cpp -o fisheye_bench && ./fisheye_bench
+//
+// Checks the lookup table against the exact FOV undistortion over the whole frame, then reports
+// the cost of turning the foot points of N boxes into ground distances, exact and through the
+// table, for the box counts a frame usually has. Exit status is non-zero when a check fails.
+//
+
+#include "FisheyeGeometry.h"
+
+#include <cstdio>
+#include <cstdlib>
+#include <ctime>
+
+using namespace ninebot_algo::cnn_ninebot;
+
+// the reference fisheye camera of AlgoApplePerception, at 1440x1080
+static const FovIntrinsics REFERENCE = {568.7f, 566.2f, 712.2f, 537.0f, 0.9938f};
+static const int REFERENCE_W = 1440;
+static const int REFERENCE_H = 1080;
+static const int WIDTH = 640;
+static const int HEIGHT = 480;
+static const int LUT_STEP = 4;
+// pixels of the undistorted reference image, checked up to 65 degrees off axis. Further out the
+// pinhole image stretches towards infinity and those points are beyond the distance range anyway.
+static const float MAX_ERROR_PX = 0.6f;
+static const float CHECKED_RADIUS = 2.14f;
+
+static int64_t now_ns() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+int main() {
+    FovIntrinsics frame = REFERENCE.scaled((float) WIDTH / REFERENCE_W, (float) HEIGHT / REFERENCE_H);
+    int64_t start = now_ns();
+    UndistortLut lut;
+    lut.build(WIDTH, HEIGHT, frame, LUT_STEP);
+    printf("lut: %dx%d step %d, %zu bytes, built in %.2f ms\n", lut.width(), lut.height(), LUT_STEP, lut.bytes(),
+           (now_ns() - start) / 1e6);
+
+    // every pixel of the frame, exact against the table
+    std::vector<float> ex, ey, lx, ly;
+    for (int y = 0; y < HEIGHT; y++) {
+        for (int x = 0; x < WIDTH; x++) {
+            ex.push_back(x + 0.5f);
+            ey.push_back(y + 0.5f);
+        }
+    }
+    lx = ex;
+    ly = ey;
+    int n = ex.size();
+    undistort_fov_normalized(frame, ex.data(), ey.data(), n);
+    lut.lookup(lx.data(), ly.data(), n);
+    project_pinhole(REFERENCE, ex.data(), ey.data(), n);
+    project_pinhole(REFERENCE, lx.data(), ly.data(), n);
+    float max_error = 0;
+    double sum_error = 0;
+    int checked = 0;
+    for (int i = 0; i < n; i++) {
+        float rx = (ex[i] - REFERENCE.cx) / REFERENCE.fx;
+        float ry = (ey[i] - REFERENCE.cy) / REFERENCE.fy;
+        if (!(rx * rx + ry * ry < CHECKED_RADIUS * CHECKED_RADIUS))
+            continue;
+        checked++;
+        float dx = ex[i] - lx[i];
+        float dy = ey[i] - ly[i];
+        float error = std::sqrt(dx * dx + dy * dy);
+        max_error = std::max(max_error, error);
+        sum_error += error;
+    }
+    printf("lut error: mean %.4f px, max %.4f px over %.1f%% of the frame\n", sum_error / checked, max_error,
+           100.0 * checked / n);
+    if (!(max_error < MAX_ERROR_PX)) {
+        printf("FAIL: lut error above %.2f px\n", MAX_ERROR_PX);
+        return 1;
+    }
+
+    // a plain top view homography, the cost does not depend on the values
+    const float h[9] = {1, 0, 0, 0, 1, 0, 0, 0.001f, 1};
+    std::vector<float> x, y, distance;
+    srand(1);
+    const int counts[] = {1, 4, 16, 64, 256};
+    for (int count : counts) {
+        x.resize(count);
+        y.resize(count);
+        distance.resize(count);
+        int iterations = 2000000 / count;
+        double exact_ns = 0, lut_ns = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            int64_t begin = now_ns();
+            for (int it = 0; it < iterations; it++) {
+                for (int i = 0; i < count; i++) {
+                    x[i] = (float) ((it * 37 + i * 101) % WIDTH);
+                    y[i] = (float) (HEIGHT / 2 + (it * 13 + i * 7) % (HEIGHT / 2));
+                }
+                if (pass == 0)
+                    undistort_fov_normalized(frame, x.data(), y.data(), count);
+                else
+                    lut.lookup(x.data(), y.data(), count);
+                project_pinhole(REFERENCE, x.data(), y.data(), count);
+                apply_homography(h, x.data(), y.data(), count);
+                ground_distance(x.data(), y.data(), distance.data(), count, REFERENCE.cx, REFERENCE_H, 0.01f, 10);
+            }
+            double per_box = (double) (now_ns() - begin) / iterations / count;
+            (pass == 0 ? exact_ns : lut_ns) = per_box;
+        }
+        printf("%3d boxes: exact %.1f ns/box, lut %.1f ns/box, %.2f us/frame\n", count, exact_ns, lut_ns,
+               lut_ns * count / 1000);
+    }
+    printf("OK\n");
+    return 0;
+}
@@ -0,0 +1,134 @@
+//
+// Stand-in clients for the local inference service.
+//
+//   g++ -std=c++11 -O2 -I../../main/cpp InferenceServerLoadTest.cpp ../../main/cpp/InferenceServer.cpp -lpthread -o server_load
+//   ./server_load [clients] [frames] [@socket]
+//
+// Without a socket name an in-process server with a fake detector (fixed cost per batch plus a
+// smaller cost per frame, like an accelerator) is started, so the batching can be checked on
+// the host. With a socket name the clients load the service running on the device instead
+// (adb forward does not carry abstract sockets, run it on the device with adb shell).
+//
+
+#include "InferenceServer.h"
+
+#include <algorithm>
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <thread>
+#include <vector>
+
+using namespace ninebot_algo::cnn_ninebot;
+
+static const int WIDTH = 640;
+static const int HEIGHT = 480;
+static const int YUV420 = 5;
+static const int PIPELINE_DEPTH = 2;
+
+static int64_t now_us() {
+    return std::chrono::duration_cast<std::chrono::microseconds>(
+            std::chrono::steady_clock::now().time_since_epoch()).count();
+}
+
+static void fake_detect(std::vector<InferenceServer::Request *> &batch) {
+    std::this_thread::sleep_for(std::chrono::microseconds(8000 + 1000 * batch.size()));
+    for (InferenceServer::Request *request : batch) {
+        request->status = INFERENCE_OK;
+        request->boxes.resize(1);
+        DetectionRingBox &box = request->boxes[0];
+        box.classId = 0;
+        box.x1 = request->header.request_id;
+        box.y1 = box.x2 = box.y2 = 0;
+        box.score = 1;
+    }
+}
+
+struct ClientResult {
+    std::vector<double> latencies_ms;
+    int errors = 0;
+};
+
+static void run_client(const std::string &name, int client, int frames, ClientResult &result) {
+    InferenceClient connection;
+    if (!connection.connect(name)) {
+        result.errors = frames;
+        return;
+    }
+    std::vector<uint8_t> frame(WIDTH * HEIGHT * 3 / 2, (uint8_t) client);
+    std::vector<DetectionRingBox> boxes;
+    InferenceResponseHeader header;
+    int sent = 0;
+    int received = 0;
+    while (received < frames) {
+        // keep a couple of frames in flight like a camera loop would
+        while (sent < frames && sent - received < PIPELINE_DEPTH) {
+            if (!connection.send_frame(sent, YUV420, WIDTH, HEIGHT, now_us(), frame.data(), frame.size())) {
+                result.errors += frames - received;
+                return;
+            }
+            sent++;
+        }
+        if (!connection.receive_result(header, boxes) || header.request_id != (uint32_t) received) {
+            result.errors += frames - received;
+            return;
+        }
+        if (header.status != INFERENCE_OK)
+            result.errors++;
+        result.latencies_ms.push_back((now_us() - header.timestamp) / 1000.0);
+        received++;
+    }
+}
+
+int main(int argc, char **argv) {
+    int clients = argc > 1 ? atoi(argv[1]) : 4;
+    int frames = argc > 2 ? atoi(argv[2]) : 200;
+    std::string name = argc > 3 ? argv[3] : "@aibox_inference_load_test";
+
+    std::unique_ptr<InferenceServer> server;
+    if (argc <= 3) {
+        server.reset(new InferenceServer(fake_detect, 8, 16));
+        if (!server->start(name)) {
+            fprintf(stderr, "can not start server on %s\n", name.c_str());
+            return 1;
+        }
+    }
+
+    std::vector<ClientResult> results(clients);
+    std::vector<std::thread> threads;
+    int64_t start = now_us();
+    for (int i = 0; i < clients; i++)
+        threads.push_back(std::thread(run_client, name, i, frames, std::ref(results[i])));
+    for (std::thread &thread : threads)
+        thread.join();
+    double seconds = (now_us() - start) / 1e6;
+
+    std::vector<double> latencies;
+    int errors = 0;
+    for (ClientResult &result : results) {
+        latencies.insert(latencies.end(), result.latencies_ms.begin(), result.latencies_ms.end());
+        errors += result.errors;
+    }
+    std::sort(latencies.begin(), latencies.end());
+    printf("%d clients x %d frames: %.1f frames/s, %d errors\n", clients, frames, latencies.size() / seconds, errors);
+    if (!latencies.empty())
+        printf("latency p50 %.1f ms, p99 %.1f ms\n", latencies[latencies.size() / 2],
+               latencies[std::min(latencies.size() - 1, latencies.size() * 99 / 100)]);
+    if (server) {
+        printf("server: %llu requests in %llu batches (%.2f per batch)\n",
+               (unsigned long long) server->request_count(), (unsigned long long) server->batch_count(),
+               server->batch_count() ? (double) server->request_count() / server->batch_count() : 0.0);
+        // the threads of the clients that left are joined when the next one connects
+        // a client that just hung up may not have noticed yet, so probe again until it has
+        InferenceClient probe;
+        bool reaped = false;
+        for (int i = 0; i < 100 && !reaped && probe.connect(name); i++) {
+            std::this_thread::sleep_for(std::chrono::milliseconds(10));
+            reaped = server->client_count() == 1;
+        }
+        printf("%s: finished clients are reaped, %d left\n", reaped ? "ok" : "FAIL", server->client_count());
+        errors += !reaped;
+        server->stop();
+    }
+    return errors == 0 ? 0 : 1;
+}
@@ -0,0 +1,113 @@
+//
+// Host test for InputSizeController.h.
+//
+//   g++ -std=c++11 -O2 -I../../main/cpp InputSizeControllerTest.cpp -o size_test && ./size_test
+//
+// Runs the controller against a simulated board whose inference cost grows with the input pixel
+// count plus a fixed overhead the controller does not know about, through a cool / throttled /
+// cool cycle and a load that sits right at the budget. Checks the size reacts to throttling
+// within a second, returns to full size after it and does not flap. Exit status is non-zero
+// when a check fails.
+//
+
+#include "InputSizeController.h"
+
+#include <cstdio>
+#include <cstdlib>
+
+using namespace ninebot_algo::cnn_ninebot;
+
+static const float BUDGET_MS = 66;
+static const int FPS = 15;
+
+// ms per frame at 512 plus 8 ms the input size does not change, with +-10% noise
+static float simulated_ms(int size, float ms_at_512) {
+    float ratio = size / 512.f;
+    float noise = 0.9f + 0.2f * (rand() % 1000) / 1000.f;
+    return (8 + (ms_at_512 - 8) * ratio * ratio) * noise;
+}
+
+struct Run {
+    int switches = 0;
+    int last_size = 0;
+    int first_change = -1;
+};
+
+static Run run(InputSizeController &controller, float ms_at_512, int frames) {
+    Run result;
+    int size = controller.size();
+    for (int f = 0; f < frames; f++) {
+        int next = controller.update(simulated_ms(size, ms_at_512));
+        if (next != size) {
+            result.switches++;
+            if (result.first_change < 0)
+                result.first_change = f;
+        }
+        size = next;
+    }
+    result.last_size = size;
+    return result;
+}
+
+static bool check(bool ok, const char *what) {
+    printf("%s: %s\n", ok ? "ok" : "FAIL", what);
+    return ok;
+}
+
+int main() {
+    srand(1);
+    bool ok = true;
+    InputSizeController::Options options;
+    options.budget_ms = BUDGET_MS;
+    InputSizeController controller;
+    controller.configure({512, 320, 416}, options);
+    ok &= check(controller.size() == 512, "starts at the largest size");
+
+    Run cool = run(controller, 45, FPS * 30);
+    printf("  cool: %d switches, at %d\n", cool.switches, cool.last_size);
+    ok &= check(cool.switches == 0 && cool.last_size == 512, "stays at 512 under the budget");
+
+    // throttled, 512 takes twice as long
+    Run throttled = run(controller, 110, FPS * 60);
+    printf("  throttled: first switch after %d frames, %d switches, at %d, %.1f ms\n", throttled.first_change,
+           throttled.switches, throttled.last_size, controller.average_ms());
+    ok &= check(throttled.first_change >= 0 && throttled.first_change < FPS, "steps down within a second");
+    ok &= check(controller.average_ms() < BUDGET_MS, "settles under the budget");
+    ok &= check(throttled.switches <= 6, "does not flap while throttled");
+
+    Run recovered = run(controller, 45, FPS * 120);
+    printf("  recovered: %d switches, at %d\n", recovered.switches, recovered.last_size);
+    ok &= check(recovered.last_size == 512, "returns to 512 once there is headroom");
+
+    // 512 just over the budget and 416 comfortably under it
+    Run edge = run(controller, 70, FPS * 600);
+    printf("  at the edge: %d switches in 10 minutes, at %d\n", edge.switches, edge.last_size);
+    ok &= check(edge.switches <= 20, "holds one size at the edge of the budget");
+
+    controller.set_budget(0);
+    ok &= check(controller.size() == 512, "no budget goes back to 512");
+    Run unbounded = run(controller, 200, FPS * 10);
+    ok &= check(unbounded.switches == 0, "no budget never switches");
+
+    // a cost that grows faster than the pixel count, every upgrade fails once it runs
+    controller.configure({512, 416, 320}, options);
+    int size = controller.size();
+    int upgrades = 0;
+    for (int f = 0; f < FPS * 600; f++) {
+        float ms = size == 512 ? 90.f : size == 416 ? 30.f : 22.f;
+        int next = controller.update(ms);
+        upgrades += next > size;
+        size = next;
+    }
+    printf("  mispredicted: %d upgrades in 10 minutes\n", upgrades);
+    // without the backoff this would be an upgrade every upgrade_dwell frames, about 130
+    ok &= check(upgrades <= 16, "backs off upgrades that keep failing");
+
+    controller.configure({512, 416, 320}, options);
+    controller.reject(416, 512);
+    Run rejected = run(controller, 110, FPS * 10);
+    ok &= check(rejected.last_size == 320, "skips a rejected size");
+
+    printf(ok ? "OK\n" : "FAILED\n");
+    return ok ? 0 : 1;
+}
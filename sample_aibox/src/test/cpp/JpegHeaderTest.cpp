@@ -0,0 +1,87 @@
+//
+// Host test for JpegHeader.h.
+//
+//   g++ -std=c++11 -O2 -I../../main/cpp JpegHeaderTest.cpp -o jpeg_test && ./jpeg_test
+//
+// Builds JPEG headers the way cameras and editors write them (APPn segments, fill bytes,
+// baseline and progressive frames) and checks the size read from them, that truncated or
+// non-JPEG data is rejected instead of read past its end, and the reduced scale picked for the
+// network input. Exit status is non-zero when a check fails.
+//
+
+#include "JpegHeader.h"
+
+#include <cstdio>
+#include <vector>
+
+using namespace ninebot_algo::cnn_ninebot;
+
+typedef std::vector<unsigned char> Bytes;
+
+static void segment(Bytes &out, unsigned char marker, size_t payload) {
+    out.push_back(0xFF);
+    out.push_back(marker);
+    out.push_back((unsigned char) ((payload + 2) >> 8));
+    out.push_back((unsigned char) ((payload + 2) & 0xFF));
+    for (size_t i = 0; i < payload; i++)
+        out.push_back((unsigned char) i);
+}
+
+static void frame(Bytes &out, unsigned char marker, int width, int height) {
+    const unsigned char sof[] = {0xFF, marker, 0, 17, 8, (unsigned char) (height >> 8), (unsigned char) height,
+                                 (unsigned char) (width >> 8), (unsigned char) width, 3,
+                                 1, 0x22, 0, 2, 0x11, 1, 3, 0x11, 1};
+    out.insert(out.end(), sof, sof + sizeof(sof));
+}
+
+static Bytes jpeg(unsigned char sof, int width, int height) {
+    Bytes out = {0xFF, 0xD8};
+    segment(out, 0xE0, 14);      // JFIF
+    segment(out, 0xE1, 3000);    // Exif with a thumbnail
+    out.push_back(0xFF);         // fill byte
+    segment(out, 0xDB, 67);      // quantization table
+    segment(out, 0xC4, 31);      // huffman table, shares the SOF range
+    frame(out, sof, width, height);
+    segment(out, 0xDA, 10);
+    return out;
+}
+
+static bool check(bool ok, const char *what) {
+    printf("%s: %s\n", ok ? "ok" : "FAIL", what);
+    return ok;
+}
+
+int main() {
+    bool ok = true;
+    int width = 0, height = 0;
+
+    Bytes baseline = jpeg(0xC0, 4032, 3024);
+    ok &= check(jpeg_dimensions(baseline.data(), baseline.size(), &width, &height) && width == 4032
+                && height == 3024, "baseline size behind APPn, fill byte and DHT");
+    Bytes progressive = jpeg(0xC2, 1920, 1080);
+    ok &= check(jpeg_dimensions(progressive.data(), progressive.size(), &width, &height) && width == 1920
+                && height == 1080, "progressive size");
+
+    // everything up to the end of the frame header is needed, the scan that follows is not
+    size_t frame_end = baseline.size() - 14;
+    bool rejected = true;
+    for (size_t size = 0; size < frame_end; size++)
+        rejected &= !jpeg_dimensions(baseline.data(), size, &width, &height);
+    ok &= check(rejected, "truncated before the end of the frame header");
+    ok &= check(jpeg_dimensions(baseline.data(), frame_end, &width, &height), "frame header is enough");
+    Bytes png = {0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A};
+    ok &= check(!jpeg_dimensions(png.data(), png.size(), &width, &height), "not a JPEG");
+    Bytes scan_first = {0xFF, 0xD8};
+    segment(scan_first, 0xDA, 10);
+    ok &= check(!jpeg_dimensions(scan_first.data(), scan_first.size(), &width, &height), "scan before frame");
+
+    ok &= check(jpeg_reduction(4032, 3024, 512) == 4, "12 MP photo decodes at 1/4 for 512");
+    ok &= check(jpeg_reduction(1920, 1080, 512) == 2, "1080p decodes at 1/2 for 512");
+    ok &= check(jpeg_reduction(1920, 1080, 320) == 2, "1080p decodes at 1/2 for 320, 1/4 would be 270 high");
+    ok &= check(jpeg_reduction(640, 480, 512) == 1, "smaller than the input decodes at full scale");
+    ok &= check(jpeg_reduction(8000, 6000, 320) == 8, "never below 1/8");
+    ok &= check(jpeg_reduction(1025, 1025, 512) == 2, "rounds the scaled size up like libjpeg");
+
+    printf(ok ? "OK\n" : "FAILED\n");
+    return ok ? 0 : 1;
+}
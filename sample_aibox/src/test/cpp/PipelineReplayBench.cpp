@@ -0,0 +1,425 @@
+//
+// End-to-end replay benchmark of the native frame path on the host.
+//
+//   g++ -std=c++11 -O2 -I../../main/cpp PipelineReplayBench.cpp -lpthread -o replay_bench
+//   ./replay_bench [--frames N] [--inference-us N] [--baseline FILE] [--tolerance F] [--record]
+//
+// Replays a fixed, seeded set of NV12 frames and matching network outputs through capture (the
+// copy-out of FrameSource), preprocessing to the network input, decode and NMS, mapping to the
+// frame, ground distance, publishing to the detection ring, the detection log, the input size
+// controller and the render prep of the preview overlay. The tflite interpreter and OpenCV only
+// exist for the device, so inference replays the recorded output tensors (plus --inference-us of
+// busy time to model the accelerator) and preprocessing is a plain nearest neighbour resize with
+// the same memory traffic as cv::resize + convertTo. The replay runs blocks of frames at each
+// input size the controller can pick (320, 416 and 512, the grid at the trained stride of 32) in
+// turn, with outputs recorded for that grid, so the decode and the anchors follow the input size.
+//
+// Reports fps, p50/p99 frame latency, p50 per input size, per-stage p50, heap allocations per
+// frame after warmup and peak RSS, then compares them against the baseline file
+// (ReplayBenchBaseline.txt next to this file by default): a metric worse than its baseline by more than its tolerance fails the run.
+// --record writes the measured values as the new baseline, keeping the tolerances. Exit status is
+// non-zero on a regression.
+//
+
+#include "DetectionLog.h"
+#include "DetectionRing.h"
+#include "FisheyeGeometry.h"
+#include "InputSizeController.h"
+#include "YoloParse.h"
+
+#include <algorithm>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <map>
+#include <new>
+#include <string>
+#include <sys/resource.h>
+#include <time.h>
+#include <unistd.h>
+
+using namespace ninebot_algo::cnn_ninebot;
+
+static size_t g_allocations = 0;
+
+void *operator new(size_t size) {
+    g_allocations++;
+    void *p = malloc(size ? size : 1);
+    if (p == nullptr)
+        throw std::bad_alloc();
+    return p;
+}
+
+void operator delete(void *p) noexcept {
+    free(p);
+}
+
+// the fisheye stream and the detector of ApplePerception
+static const int WIDTH = 640;
+static const int HEIGHT = 480;
+static const int INPUT_SIZE = 512;     // trained input and its coarsest grid
+static const int GRID = 16;
+static const int SIZES[] = {320, 416, 512};
+static const int SIZE_COUNT = 3;
+static const int SIZE_BLOCK = 100;      // frames in a row at one input size
+static const int OUTPUTS = 3;
+static const int CLASSES = 1;
+static const int NUM_OBJECT = 3;
+static const float CONF_THRESH = 0.45f;
+static const float NMS_THRESH = 0.3f;
+static const float ANCHORS[] = {169.54, 131.54, 228.0, 289.38, 545.15, 476.46, 43.85, 89.15, 90.62, 65.77,
+                                86.23, 173.92, 14.62, 19.0, 23.38, 43.85, 48.23, 33.62};
+static const FovIntrinsics INTRINSICS = {284.4f, 283.1f, 320.0f, 240.0f, 0.9938f};
+static const int RECORDED_FRAMES = 16;
+static const int WARMUP_FRAMES = 50;
+static const int BITMAP_SCALE = 4;
+
+struct Box {
+    int classId;
+    float x1, y1, x2, y2, score;
+    float distance;
+};
+
+struct Rect {
+    float left, top, right, bottom;
+};
+
+enum Stage { CAPTURE, PREPROCESS, INFERENCE, DECODE, MAP, DISTANCE, PUBLISH, LOG, CONTROL, RENDER_PREP, STAGES };
+static const char *STAGE_NAMES[STAGES] = {"capture", "preprocess", "inference", "decode", "map", "distance",
+                                          "publish", "log", "control", "render_prep"};
+
+static int64_t now_ns() {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000000000LL + ts.tv_nsec;
+}
+
+// a few objects per frame over background noise, like YoloParseTest
+static void record_outputs(std::vector<std::vector<float>> &outs, int coarsest_grid, int objects) {
+    int stride = NUM_OBJECT * (CLASSES + 5);
+    for (int s = 0; s < OUTPUTS; s++) {
+        int grid = coarsest_grid << s;
+        std::vector<float> &out = outs[s];
+        out.assign((size_t) grid * grid * stride, 0);
+        for (size_t i = 0; i < out.size(); i++)
+            out[i] = (rand() % 2000 - 1000) / 1000.f;
+        for (int cell = 0; cell < grid * grid; cell++)
+            for (int k = 0; k < NUM_OBJECT; k++)
+                out[cell * stride + k * (CLASSES + 5) + 4] = -4;
+        for (int o = 0; o < objects; o++) {
+            int cx = rand() % grid, cy = grid / 2 + rand() % (grid / 2);
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    int x = std::min(std::max(cx + dx, 0), grid - 1), y = std::min(std::max(cy + dy, 0), grid - 1);
+                    out[(y * grid + x) * stride + (rand() % NUM_OBJECT) * (CLASSES + 5) + 4] = (rand() % 3000) / 1000.f;
+                }
+            }
+        }
+    }
+}
+
+static void record_frame(std::vector<unsigned char> &nv12, int seed) {
+    nv12.resize(WIDTH * HEIGHT * 3 / 2);
+    for (size_t i = 0; i < nv12.size(); i++)
+        nv12[i] = (unsigned char) ((i * 31 + seed * 97 + (i >> 9)) & 0xFF);
+}
+
+// NV12 to a normalized RGB float input, one source sample per input pixel
+static void preprocess(const unsigned char *nv12, float *input, int size) {
+    const unsigned char *uv = nv12 + WIDTH * HEIGHT;
+    for (int y = 0; y < size; y++) {
+        int sy = y * HEIGHT / size;
+        for (int x = 0; x < size; x++) {
+            int sx = x * WIDTH / size;
+            int luma = nv12[sy * WIDTH + sx] - 16;
+            int u = uv[(sy / 2) * WIDTH + (sx & ~1)] - 128;
+            int v = uv[(sy / 2) * WIDTH + (sx & ~1) + 1] - 128;
+            float *px = input + (y * size + x) * 3;
+            px[0] = std::min(std::max(1.164f * luma + 1.596f * v, 0.f), 255.f) / 255;
+            px[1] = std::min(std::max(1.164f * luma - 0.392f * u - 0.813f * v, 0.f), 255.f) / 255;
+            px[2] = std::min(std::max(1.164f * luma + 2.017f * u, 0.f), 255.f) / 255;
+        }
+    }
+}
+
+static void spin_us(int us) {
+    int64_t end = now_ns() + us * 1000LL;
+    while (now_ns() < end) {
+    }
+}
+
+static int64_t percentile(std::vector<int64_t> &values, double p) {
+    if (values.empty())
+        return 0;
+    size_t k = std::min(values.size() - 1, (size_t) (p * values.size()));
+    std::nth_element(values.begin(), values.begin() + k, values.end());
+    return values[k];
+}
+
+struct Metric {
+    double value;
+    double tolerance;
+};
+
+// lower is better for every metric except fps
+static bool higher_is_better(const std::string &name) {
+    return name == "fps";
+}
+
+static std::map<std::string, Metric> read_baseline(const std::string &path) {
+    std::map<std::string, Metric> baseline;
+    FILE *f = fopen(path.c_str(), "r");
+    if (f == nullptr)
+        return baseline;
+    char line[256], name[64];
+    Metric metric;
+    while (fgets(line, sizeof(line), f)) {
+        if (line[0] != '#' && sscanf(line, "%63s %lf %lf", name, &metric.value, &metric.tolerance) == 3)
+            baseline[name] = metric;
+    }
+    fclose(f);
+    return baseline;
+}
+
+static bool write_baseline(const std::string &path, const std::map<std::string, Metric> &metrics) {
+    FILE *f = fopen(path.c_str(), "w");
+    if (f == nullptr)
+        return false;
+    fprintf(f, "# PipelineReplayBench baseline: metric, value, tolerated regression as a fraction of the value.\n");
+    fprintf(f, "# Timings are from the machine that recorded them, re-record with --record on a new machine\n");
+    fprintf(f, "# or after an intended change. Allocations have no tolerance, the steady state allocates nothing.\n");
+    for (auto &it : metrics)
+        fprintf(f, "%s %.1f %.2f\n", it.first.c_str(), it.second.value, it.second.tolerance);
+    fclose(f);
+    return true;
+}
+
+int main(int argc, char **argv) {
+    int frames = 2000;
+    int inference_us = 0;
+    double tolerance_override = -1;
+    bool record = false;
+    std::string baseline_path = "ReplayBenchBaseline.txt";
+    for (int i = 1; i < argc; i++) {
+        std::string arg = argv[i];
+        if (arg == "--frames" && i + 1 < argc)
+            frames = atoi(argv[++i]);
+        else if (arg == "--inference-us" && i + 1 < argc)
+            inference_us = atoi(argv[++i]);
+        else if (arg == "--baseline" && i + 1 < argc)
+            baseline_path = argv[++i];
+        else if (arg == "--tolerance" && i + 1 < argc)
+            tolerance_override = atof(argv[++i]);
+        else if (arg == "--record")
+            record = true;
+        else {
+            fprintf(stderr, "unknown argument %s\n", arg.c_str());
+            return 2;
+        }
+    }
+
+    // the parameters ApplePerception decodes with at each input size
+    YoloParams params[SIZE_COUNT];
+    for (int z = 0; z < SIZE_COUNT; z++)
+        params[z] = yolo_params(GRID, GRID, INPUT_SIZE, INPUT_SIZE, SIZES[z], SIZES[z], NUM_OBJECT, CLASSES, ANCHORS,
+                                CONF_THRESH);
+
+    // the recorded set, frames and the outputs at every input size are replayed in a loop
+    srand(1);
+    std::vector<std::vector<unsigned char>> recorded_frames(RECORDED_FRAMES);
+    std::vector<std::vector<std::vector<std::vector<float>>>> recorded_outputs(
+            SIZE_COUNT, std::vector<std::vector<std::vector<float>>>(RECORDED_FRAMES,
+                                                                     std::vector<std::vector<float>>(OUTPUTS)));
+    for (int i = 0; i < RECORDED_FRAMES; i++) {
+        record_frame(recorded_frames[i], i);
+        for (int z = 0; z < SIZE_COUNT; z++)
+            record_outputs(recorded_outputs[z][i], params[z].grid_w, 1 + i % 8);
+    }
+
+    char dir_template[] = "/tmp/replay_benchXXXXXX";
+    if (mkdtemp(dir_template) == nullptr) {
+        perror("mkdtemp");
+        return 2;
+    }
+    std::string dir = dir_template;
+    DetectionRingWriter ring;
+    DetectionLogWriter log;
+    DetectionLogWriter::Options log_options;
+    log_options.segment_records = 1 << 16;
+    log_options.max_segments = 2;
+    if (!ring.open((dir + "/ring").c_str(), 64, 32) || !log.open(dir, log_options)) {
+        fprintf(stderr, "can not open the ring or log in %s\n", dir.c_str());
+        return 2;
+    }
+
+    // state the pipeline keeps between frames, sized for the largest input like the engine does up front
+    size_t max_candidates = yolo_max_candidates(params[SIZE_COUNT - 1], OUTPUTS);
+    std::vector<Box> boxes;
+    std::vector<unsigned char> suppressed;
+    boxes.reserve(max_candidates);
+    suppressed.reserve(max_candidates);
+    std::vector<unsigned char> frame(WIDTH * HEIGHT * 3 / 2);
+    std::vector<float> input(INPUT_SIZE * INPUT_SIZE * 3);
+    std::vector<float> foot_x(max_candidates), foot_y(max_candidates), distance(max_candidates);
+    std::vector<Rect> rects;
+    rects.reserve(max_candidates);
+    UndistortLut lut;
+    lut.build(WIDTH, HEIGHT, INTRINSICS, 4);
+    const float homography[9] = {1, 0, 0, 0, 1, 0, 0, 0.001f, 1};
+    // the controller is fed every frame for its cost, the replay follows the fixed size schedule
+    // instead of its choice so every size is measured on any machine
+    InputSizeController controller;
+    InputSizeController::Options controller_options;
+    controller_options.budget_ms = 66;
+    controller.configure(std::vector<int>(SIZES, SIZES + SIZE_COUNT), controller_options);
+
+    std::vector<int64_t> latencies;
+    std::vector<std::vector<int64_t>> size_latencies(SIZE_COUNT);
+    std::vector<std::vector<int64_t>> stage_ns(STAGES);
+    latencies.reserve(frames);
+    for (auto &size : size_latencies)
+        size.reserve(frames);
+    for (auto &stage : stage_ns)
+        stage.reserve(frames);
+    const float *outs[OUTPUTS];
+    size_t bytes[OUTPUTS];
+    size_t total_boxes = 0, allocations = 0;
+    int64_t measured_start = 0;
+
+    for (int f = 0; f < WARMUP_FRAMES + frames; f++) {
+        bool measured = f >= WARMUP_FRAMES;
+        if (f == WARMUP_FRAMES) {
+            allocations = g_allocations;
+            measured_start = now_ns();
+        }
+        int r = f % RECORDED_FRAMES;
+        int z = f / SIZE_BLOCK % SIZE_COUNT;
+        int64_t t[STAGES + 1];
+        t[CAPTURE] = now_ns();
+        memcpy(frame.data(), recorded_frames[r].data(), frame.size());
+
+        t[PREPROCESS] = now_ns();
+        preprocess(frame.data(), input.data(), SIZES[z]);
+
+        t[INFERENCE] = now_ns();
+        for (int s = 0; s < OUTPUTS; s++) {
+            outs[s] = recorded_outputs[z][r][s].data();
+            bytes[s] = recorded_outputs[z][r][s].size() * sizeof(float);
+        }
+        if (inference_us > 0)
+            spin_us(inference_us);
+
+        t[DECODE] = now_ns();
+        boxes.clear();
+        yolo_decode(outs, bytes, OUTPUTS, params[z], boxes);
+        nms_in_place(boxes, CLASSES, NMS_THRESH, suppressed);
+
+        t[MAP] = now_ns();
+        for (Box &box : boxes) {
+            box.x1 *= WIDTH;
+            box.x2 *= WIDTH;
+            box.y1 *= HEIGHT;
+            box.y2 *= HEIGHT;
+        }
+
+        t[DISTANCE] = now_ns();
+        int n = boxes.size();
+        for (int i = 0; i < n; i++) {
+            foot_x[i] = (boxes[i].x1 + boxes[i].x2) / 2;
+            foot_y[i] = boxes[i].y2;
+        }
+        lut.lookup(foot_x.data(), foot_y.data(), n);
+        project_pinhole(INTRINSICS, foot_x.data(), foot_y.data(), n);
+        apply_homography(homography, foot_x.data(), foot_y.data(), n);
+        ground_distance(foot_x.data(), foot_y.data(), distance.data(), n, INTRINSICS.cx, HEIGHT, 0.01f, 10);
+        for (int i = 0; i < n; i++)
+            boxes[i].distance = distance[i];
+
+        t[PUBLISH] = now_ns();
+        ring.publish(f, 0, boxes.data(), n);
+
+        t[LOG] = now_ns();
+        log.append(f, 0, boxes.data(), n);
+
+        t[CONTROL] = now_ns();
+        controller.update((t[CONTROL] - t[CAPTURE]) / 1e6f);
+
+        t[RENDER_PREP] = now_ns();
+        rects.clear();
+        for (const Box &box : boxes)
+            rects.push_back({box.x1 / BITMAP_SCALE, box.y1 / BITMAP_SCALE, box.x2 / BITMAP_SCALE,
+                             box.y2 / BITMAP_SCALE});
+        t[STAGES] = now_ns();
+
+        if (measured) {
+            latencies.push_back(t[STAGES] - t[CAPTURE]);
+            size_latencies[z].push_back(t[STAGES] - t[CAPTURE]);
+            for (int s = 0; s < STAGES; s++)
+                stage_ns[s].push_back(t[s + 1] - t[s]);
+            total_boxes += n;
+        }
+    }
+    int64_t elapsed = now_ns() - measured_start;
+    allocations = g_allocations - allocations;
+    log.close();
+    ring.close();
+
+    struct rusage usage;
+    getrusage(RUSAGE_SELF, &usage);
+    std::map<std::string, Metric> measured;
+    measured["fps"] = {frames * 1e9 / elapsed, 0};
+    measured["p50_us"] = {percentile(latencies, 0.5) / 1000.0, 0};
+    measured["p99_us"] = {percentile(latencies, 0.99) / 1000.0, 0};
+    for (int z = 0; z < SIZE_COUNT; z++)
+        measured["p50_us_" + std::to_string(SIZES[z])] = {percentile(size_latencies[z], 0.5) / 1000.0, 0};
+    measured["allocations_per_frame"] = {(double) allocations / frames, 0};
+    // ru_maxrss is in KB on Linux
+    measured["peak_rss_kb"] = {(double) usage.ru_maxrss, 0};
+
+    printf("%d frames (%d recorded, %zu boxes), %d us inference stand-in\n", frames, RECORDED_FRAMES, total_boxes,
+           inference_us);
+    for (int s = 0; s < STAGES; s++)
+        printf("  %-12s p50 %8.1f us\n", STAGE_NAMES[s], percentile(stage_ns[s], 0.5) / 1000.0);
+    for (auto &it : measured)
+        printf("%-22s %12.1f\n", it.first.c_str(), it.second.value);
+
+    std::string cleanup = "rm -rf " + dir;
+    if (system(cleanup.c_str()) != 0)
+        fprintf(stderr, "could not remove %s\n", dir.c_str());
+
+    std::map<std::string, Metric> baseline = read_baseline(baseline_path);
+    if (record) {
+        for (auto &it : measured) {
+            auto old = baseline.find(it.first);
+            it.second.tolerance = old != baseline.end() ? old->second.tolerance
+                                                        : it.first == "allocations_per_frame" ? 0 : 0.25;
+        }
+        if (!write_baseline(baseline_path, measured)) {
+            fprintf(stderr, "can not write %s\n", baseline_path.c_str());
+            return 2;
+        }
+        printf("baseline recorded in %s\n", baseline_path.c_str());
+        return 0;
+    }
+    if (baseline.empty()) {
+        printf("no baseline in %s, run with --record to create one\n", baseline_path.c_str());
+        return 0;
+    }
+
+    bool ok = true;
+    for (auto &it : baseline) {
+        auto m = measured.find(it.first);
+        if (m == measured.end())
+            continue;
+        double tolerance = tolerance_override >= 0 && it.first != "allocations_per_frame" ? tolerance_override
+                                                                                          : it.second.tolerance;
+        double base = it.second.value;
+        double value = m->second.value;
+        bool regressed = higher_is_better(it.first) ? value < base * (1 - tolerance) : value > base * (1 + tolerance);
+        printf("%s: %s %.1f, baseline %.1f, tolerance %.0f%%\n", regressed ? "FAIL" : "ok", it.first.c_str(), value,
+               base, tolerance * 100);
+        ok &= !regressed;
+    }
+    printf(ok ? "OK\n" : "FAILED\n");
+    return ok ? 0 : 1;
+}
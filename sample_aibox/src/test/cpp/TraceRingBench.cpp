@@ -0,0 +1,94 @@
+//
+// Host test and benchmark for TraceRing.h, records from several threads while the ring is dumped.
+//
+//   g++ -std=c++11 -O2 -pthread -I../../main/cpp TraceRingBench.cpp -o trace_bench && ./trace_bench [events per thread]
+//
+// Reports the cost of a begin/end pair with tracing on and off and checks that a dump taken
+// while writers are running only holds complete events with known names, at most CAPACITY of them.
+// Exit status is non-zero when a check fails.
+//
+
+#include "TraceRing.h"
+
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <thread>
+#include <vector>
+
+using namespace ninebot_algo::cnn_ninebot;
+
+static const char *TRACE_PATH = "/tmp/aibox_trace_bench.json";
+static const int THREADS = 4;
+
+static double pair_cost_ns(int id, int pairs) {
+    TraceRing &trace = TraceRing::instance();
+    int64_t start = TraceRing::now_ns();
+    for (int i = 0; i < pairs; i++) {
+        trace.begin(id, i);
+        trace.end(id);
+    }
+    return (double) (TraceRing::now_ns() - start) / pairs;
+}
+
+int main(int argc, char **argv) {
+    int events = argc > 1 ? atoi(argv[1]) : 200000;
+    TraceRing &trace = TraceRing::instance();
+    int stage = trace.name_id("stage");
+    if (stage < 0 || trace.name_id("stage") != stage) {
+        printf("FAIL: name ids are not stable\n");
+        return 1;
+    }
+
+    trace.set_enabled(false);
+    double off_ns = pair_cost_ns(stage, events);
+    trace.set_enabled(true);
+    double on_ns = pair_cost_ns(stage, events);
+    printf("begin+end: %.1f ns enabled, %.1f ns disabled\n", on_ns, off_ns);
+
+    std::vector<std::thread> writers;
+    for (int t = 0; t < THREADS; t++) {
+        writers.emplace_back([t, events]() {
+            char name[16];
+            snprintf(name, sizeof(name), "worker%d", t);
+            int id = TraceRing::instance().name_id(name);
+            for (int i = 0; i < events / 2; i++) {
+                TraceScope scope(id, i + 1);
+            }
+        });
+    }
+    int dumped = trace.dump(TRACE_PATH);
+    for (std::thread &writer : writers)
+        writer.join();
+    int final_count = trace.dump(TRACE_PATH);
+    printf("dump during writes: %d events, after: %d events\n", dumped, final_count);
+    if (dumped < 0 || final_count != (int) TraceRing::CAPACITY) {
+        printf("FAIL: expected a full ring of %u events\n", TraceRing::CAPACITY);
+        return 1;
+    }
+
+    // every line of the final dump is one event with a registered name
+    FILE *file = fopen(TRACE_PATH, "r");
+    char line[512];
+    int lines = 0;
+    while (file != nullptr && fgets(line, sizeof(line), file) != nullptr) {
+        if (line[0] != '{' && line[0] != ',')
+            continue;
+        const char *name = strstr(line, "\"name\":\"");
+        if (name == nullptr)
+            continue;
+        if (strncmp(name + 8, "worker", 6) != 0 && strncmp(name + 8, "stage", 5) != 0) {
+            printf("FAIL: unexpected event %s", line);
+            return 1;
+        }
+        lines++;
+    }
+    if (file != nullptr)
+        fclose(file);
+    if (lines != final_count) {
+        printf("FAIL: %d event lines, expected %d\n", lines, final_count);
+        return 1;
+    }
+    printf("OK, trace written to %s\n", TRACE_PATH);
+    return 0;
+}
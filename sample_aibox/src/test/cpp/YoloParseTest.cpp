@@ -0,0 +1,243 @@
+//
+// Host test for YoloParse.h.
+//
+//   g++ -std=c++11 -O2 -I../../main/cpp YoloParseTest.cpp -o yolo_test && ./yolo_test
+//
+// Decodes synthetic YOLOv3 outputs of the 512 input and checks the boxes against the vector
+// based parser and NMS the detector used before, then counts heap allocations over many frames
+// with operator new replaced: once the scratch is reserved the steady state must do none, and
+// the old implementation is measured for comparison. Also decodes the same object at the smaller
+// inputs the latency controller switches to and checks its normalized size does not change.
+// Exit status is non-zero when a check fails.
+//
+
+#include "YoloParse.h"
+
+#include <cstdio>
+#include <cstdlib>
+#include <new>
+
+using namespace ninebot_algo::cnn_ninebot;
+
+static size_t g_allocations = 0;
+
+void *operator new(size_t size) {
+    g_allocations++;
+    void *p = malloc(size ? size : 1);
+    if (p == nullptr)
+        throw std::bad_alloc();
+    return p;
+}
+
+void operator delete(void *p) noexcept {
+    free(p);
+}
+
+struct Box {
+    int classId;
+    float x1, y1, x2, y2, score;
+};
+
+static const int OUTPUTS = 3;
+static const int CLASSES = 2;
+static const int NUM_OBJECT = 3;
+static const int GRID = 16;
+static const float ANCHORS[] = {169.54, 131.54, 228.0, 289.38, 545.15, 476.46, 43.85, 89.15, 90.62, 65.77,
+                                86.23, 173.92, 14.62, 19.0, 23.38, 43.85, 48.23, 33.62};
+static const float CONF_THRESH = 0.45f;
+static const float NMS_THRESH = 0.3f;
+
+// the parser and NMS of ApplePerception before the scratch arena, kept as the reference
+static float reference_sigmoid(float x) {
+    return 1 / (1 + std::exp(-x));
+}
+
+static std::vector<Box> reference_nms(std::vector<Box> boxes, int classes, float thresh) {
+    std::vector<Box> res;
+    for (int i = 0; i < classes; i++) {
+        std::vector<Box> one;
+        for (size_t j = 0; j < boxes.size(); j++)
+            if (boxes[j].classId == i)
+                one.push_back(boxes[j]);
+        std::sort(one.begin(), one.end(), [](const Box &a, const Box &b) { return a.score > b.score; });
+        for (int j = 0; j < (int) one.size(); j++) {
+            float area = (one[j].x2 - one[j].x1 + 0.0001f) * (one[j].y2 - one[j].y1 + 0.0001f);
+            for (int k = (int) one.size() - 1; k > j; k--) {
+                float w = std::min(one[j].x2, one[k].x2) - std::max(one[j].x1, one[k].x1) + 0.0001f;
+                float h = std::min(one[j].y2, one[k].y2) - std::max(one[j].y1, one[k].y1) + 0.0001f;
+                if (w > 0 && h > 0 && w * h / area > thresh)
+                    one.erase(one.begin() + k);
+            }
+        }
+        res.insert(res.end(), one.begin(), one.end());
+    }
+    return res;
+}
+
+static std::vector<Box> reference_parse(const std::vector<std::vector<float>> &outs) {
+    std::vector<Box> boxes;
+    for (int s = 0; s < (int) outs.size(); ++s) {
+        const float *resdata = outs[s].data();
+        int outputwidth = GRID << s;
+        int outputheight = GRID << s;
+        for (int i = 0; i < outputwidth * outputheight; i++) {
+            int j = i * (NUM_OBJECT * (CLASSES + 5));
+            for (int k = 0; k < NUM_OBJECT; k++) {
+                int obj = k * (CLASSES + 5);
+                float conf = reference_sigmoid(resdata[j + obj + 4]);
+                if (conf < CONF_THRESH)
+                    continue;
+                int max_class = 0;
+                float class_conf = -10000.;
+                for (int cls = 0; cls < CLASSES; cls++) {
+                    float cls_score = reference_sigmoid(resdata[j + obj + cls + 5]);
+                    if (cls_score > class_conf) {
+                        class_conf = cls_score;
+                        max_class = cls;
+                    }
+                }
+                float width = std::exp(resdata[j + obj + 2]) * (ANCHORS[s * NUM_OBJECT * 2 + k * 2] / 512);
+                float height = std::exp(resdata[j + obj + 3]) * (ANCHORS[s * NUM_OBJECT * 2 + k * 2 + 1] / 512);
+                float offset_x = reference_sigmoid(resdata[j + obj]);
+                float offset_y = reference_sigmoid(resdata[j + obj + 1]);
+                Box box;
+                box.x1 = std::max((i % outputwidth + offset_x) / outputwidth - width / 2, 0.f);
+                box.y1 = std::max((i / outputwidth + offset_y) / outputheight - height / 2, 0.f);
+                box.x2 = std::min((i % outputwidth + offset_x) / outputwidth + width / 2, 1.f);
+                box.y2 = std::min((i / outputwidth + offset_y) / outputheight + height / 2, 1.f);
+                box.score = class_conf * conf;
+                box.classId = max_class;
+                boxes.push_back(box);
+            }
+        }
+    }
+    return reference_nms(boxes, CLASSES, NMS_THRESH);
+}
+
+// mostly background, with clusters of confident cells around a few objects
+static void synthesize(std::vector<std::vector<float>> &outs, int objects) {
+    for (int s = 0; s < OUTPUTS; s++) {
+        int grid = GRID << s;
+        std::vector<float> &out = outs[s];
+        out.assign((size_t) grid * grid * NUM_OBJECT * (CLASSES + 5), 0);
+        for (size_t i = 0; i < out.size(); i++)
+            out[i] = (rand() % 2000 - 1000) / 1000.f;
+        for (int cell = 0; cell < grid * grid; cell++)
+            for (int k = 0; k < NUM_OBJECT; k++)
+                out[(cell * NUM_OBJECT + k) * (CLASSES + 5) + 4] = -4;
+        for (int o = 0; o < objects; o++) {
+            int cx = rand() % grid, cy = rand() % grid;
+            for (int dy = -1; dy <= 1; dy++) {
+                for (int dx = -1; dx <= 1; dx++) {
+                    int x = std::min(std::max(cx + dx, 0), grid - 1), y = std::min(std::max(cy + dy, 0), grid - 1);
+                    int k = rand() % NUM_OBJECT;
+                    out[((y * grid + x) * NUM_OBJECT + k) * (CLASSES + 5) + 4] = (rand() % 3000) / 1000.f;
+                }
+            }
+        }
+    }
+}
+
+// One confident cell of the coarsest output holding an object of width x height, normalized to the
+// frame, as a network run at input x input predicts it: anchors are pixels of that input.
+static Box decode_object_at(int input, float width, float height) {
+    YoloParams params = yolo_params(GRID, GRID, 512, 512, input, input, NUM_OBJECT, CLASSES, ANCHORS, CONF_THRESH);
+    int grid = params.grid_w;
+    int stride = NUM_OBJECT * (CLASSES + 5);
+    std::vector<std::vector<float>> outs(OUTPUTS);
+    const float *data[OUTPUTS];
+    size_t bytes[OUTPUTS];
+    for (int s = 0; s < OUTPUTS; s++) {
+        int cells = (grid << s) * (grid << s);
+        outs[s].assign((size_t) cells * stride, 0);
+        for (int cell = 0; cell < cells; cell++)
+            for (int k = 0; k < NUM_OBJECT; k++)
+                outs[s][cell * stride + k * (CLASSES + 5) + 4] = -10;
+        data[s] = outs[s].data();
+        bytes[s] = outs[s].size() * sizeof(float);
+    }
+    float *obj = &outs[0][(grid / 2 * grid + grid / 2) * stride];
+    obj[2] = std::log(width * input / ANCHORS[0]);
+    obj[3] = std::log(height * input / ANCHORS[1]);
+    obj[4] = 10;
+    obj[5] = 10;
+
+    std::vector<Box> boxes;
+    yolo_decode(data, bytes, OUTPUTS, params, boxes);
+    return boxes.size() == 1 ? boxes[0] : Box();
+}
+
+static bool check(bool ok, const char *what) {
+    printf("%s: %s\n", ok ? "ok" : "FAIL", what);
+    return ok;
+}
+
+int main() {
+    srand(1);
+    bool ok = true;
+    YoloParams params = yolo_params(GRID, GRID, 512, 512, 512, 512, NUM_OBJECT, CLASSES, ANCHORS, CONF_THRESH);
+
+    std::vector<std::vector<float>> outs(OUTPUTS);
+    const float *data[OUTPUTS];
+    size_t bytes[OUTPUTS];
+    std::vector<Box> boxes, result;
+    std::vector<unsigned char> suppressed;
+    size_t max_candidates = yolo_max_candidates(params, OUTPUTS);
+    boxes.reserve(max_candidates);
+    suppressed.reserve(max_candidates);
+    result.reserve(max_candidates);
+
+    const int frames = 200;
+    size_t steady_allocations = 0, reference_allocations = 0;
+    int mismatches = 0, total_boxes = 0;
+    for (int f = 0; f < frames; f++) {
+        synthesize(outs, 1 + f % 12);
+        for (int s = 0; s < OUTPUTS; s++) {
+            data[s] = outs[s].data();
+            bytes[s] = outs[s].size() * sizeof(float);
+        }
+
+        size_t before = g_allocations;
+        boxes.clear();
+        yolo_decode(data, bytes, OUTPUTS, params, boxes);
+        nms_in_place(boxes, CLASSES, NMS_THRESH, suppressed);
+        result.assign(boxes.begin(), boxes.end());
+        steady_allocations += g_allocations - before;
+
+        before = g_allocations;
+        std::vector<Box> expected = reference_parse(outs);
+        reference_allocations += g_allocations - before;
+
+        total_boxes += result.size();
+        bool same = expected.size() == result.size();
+        for (size_t i = 0; same && i < result.size(); i++) {
+            same = expected[i].classId == result[i].classId && std::fabs(expected[i].x1 - result[i].x1) < 1e-5f
+                   && std::fabs(expected[i].y2 - result[i].y2) < 1e-5f
+                   && std::fabs(expected[i].score - result[i].score) < 1e-6f;
+        }
+        mismatches += !same;
+    }
+    printf("  %d frames, %d boxes kept, worst case %zu candidates\n", frames, total_boxes, max_candidates);
+    printf("  allocations: %zu with the scratch, %zu with the old parser\n", steady_allocations,
+           reference_allocations);
+    ok &= check(mismatches == 0, "same boxes as the old parser and NMS");
+    ok &= check(total_boxes > frames, "synthetic outputs produce detections");
+    ok &= check(steady_allocations == 0, "decode and NMS allocate nothing with the scratch reserved");
+
+    // an output smaller than its grid is skipped instead of read past its end
+    bytes[2] = bytes[2] / 2;
+    boxes.clear();
+    ok &= check(yolo_decode(data, bytes, OUTPUTS, params, boxes) == 1, "short output is skipped");
+
+    // the same apple, a fifth of the frame wide and a quarter high, at every input size
+    bool same_size = true;
+    for (int input : {320, 416, 512}) {
+        Box box = decode_object_at(input, 0.2f, 0.25f);
+        printf("  input %d: box %.4f x %.4f\n", input, box.x2 - box.x1, box.y2 - box.y1);
+        same_size &= std::fabs(box.x2 - box.x1 - 0.2f) < 1e-4f && std::fabs(box.y2 - box.y1 - 0.25f) < 1e-4f;
+    }
+    ok &= check(same_size, "normalized box size does not depend on the input size");
+
+    printf(ok ? "OK\n" : "FAILED\n");
+    return ok ? 0 : 1;
+}
@@ -0,0 +1,54 @@
+package com.segway.robot.sample.aibox;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DetectionAggregatorTest {
+    private static final int WIDTH = 1600;
+    private static final int HEIGHT = 1200;
+
+    private static DetectedResult[] boxes(int count, int classId, float score) {
+        DetectedResult[] results = new DetectedResult[count];
+        for (int i = 0; i < count; i++) {
+            results[i] = new DetectedResult(classId, 0, 0, 100, 100, score);
+        }
+        return results;
+    }
+
+    @Test
+    public void countsAndHistograms() {
+        DetectionAggregator aggregator = new DetectionAggregator(2);
+        DetectionAggregator.Snapshot snapshot = new DetectionAggregator.Snapshot();
+        aggregator.update(boxes(3, 1, 0.95f), WIDTH, HEIGHT, 0);
+        aggregator.update(boxes(2, 0, 0.31f), WIDTH, HEIGHT, 500);
+        aggregator.snapshot(900, snapshot);
+        assertEquals(5, snapshot.windowCount);
+        assertEquals(3, snapshot.scoreHistogram[DetectionAggregator.SCORE_BINS + 9]);
+        assertEquals(2, snapshot.scoreHistogram[3]);
+        // all centres at (50, 50), the top left cell
+        assertEquals(5, snapshot.heatmap[0]);
+        // one second covered so far
+        assertEquals(300f, snapshot.perMinute, 0.01f);
+    }
+
+    @Test
+    public void oldBucketsLeaveTheWindow() {
+        DetectionAggregator aggregator = new DetectionAggregator(1);
+        DetectionAggregator.Snapshot snapshot = new DetectionAggregator.Snapshot();
+        for (int second = 0; second < 90; second++) {
+            aggregator.update(boxes(2, 0, 0.5f), WIDTH, HEIGHT, second * 1000L);
+        }
+        aggregator.snapshot(89000, snapshot);
+        assertEquals(120, snapshot.windowCount);
+        assertEquals(180, snapshot.totalCount);
+        assertEquals(120f, snapshot.perMinute, 0.01f);
+        assertEquals(120, snapshot.heatmap[0]);
+
+        // nothing for longer than the window
+        aggregator.snapshot(200000, snapshot);
+        assertEquals(0, snapshot.windowCount);
+        assertEquals(0, snapshot.scoreHistogram[5]);
+        assertEquals(0, snapshot.heatmap[0]);
+    }
+}
@@ -0,0 +1,165 @@
+package com.segway.robot.sample.aibox;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DetectionIndexTest {
+    private static final int WIDTH = 640;
+    private static final int HEIGHT = 480;
+    private static final int QUERIES = 20000;
+
+    private static DetectedResult[] boxes(int count, Random random) {
+        DetectedResult[] results = new DetectedResult[count];
+        for (int i = 0; i < count; i++) {
+            float x = random.nextFloat() * WIDTH, y = random.nextFloat() * HEIGHT;
+            float w = 4 + random.nextFloat() * 60, h = 4 + random.nextFloat() * 60;
+            results[i] = new DetectedResult(0, x - w / 2, y - h / 2, x + w / 2, y + h / 2, 0.9f);
+        }
+        return results;
+    }
+
+    private static float distance(DetectedResult result, float x, float y) {
+        float dx = (result.x1 + result.x2) / 2 - x, dy = (result.y1 + result.y2) / 2 - y;
+        return dx * dx + dy * dy;
+    }
+
+    // the scan the index replaces
+    private static int linearNearest(DetectedResult[] results, float x, float y) {
+        int best = -1;
+        float bestDistance = Float.MAX_VALUE;
+        for (int i = 0; i < results.length; i++) {
+            float d = distance(results[i], x, y);
+            if (d < bestDistance) {
+                bestDistance = d;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private static int linearQuery(DetectedResult[] results, float left, float top, float right, float bottom,
+                                   int[] out) {
+        int found = 0;
+        for (int i = 0; i < results.length; i++) {
+            DetectedResult result = results[i];
+            if (result.x1 <= right && result.x2 >= left && result.y1 <= bottom && result.y2 >= top) {
+                out[found++] = i;
+            }
+        }
+        return found;
+    }
+
+    @Test
+    public void matchesLinearScan() {
+        Random random = new Random(1);
+        DetectionIndex index = new DetectionIndex();
+        int[] out = new int[5];
+        int[] expected = new int[2000];
+        int[] actual = new int[2000];
+        for (int count : new int[]{0, 1, 7, 100, 2000}) {
+            DetectedResult[] results = boxes(count, random);
+            index.update(results, WIDTH, HEIGHT);
+            assertEquals(count, index.size());
+            for (int q = 0; q < 200; q++) {
+                // include points outside the frame
+                float x = random.nextFloat() * WIDTH * 1.4f - WIDTH * 0.2f;
+                float y = random.nextFloat() * HEIGHT * 1.4f - HEIGHT * 0.2f;
+                int found = index.nearest(x, y, out.length, out);
+                assertEquals(Math.min(count, out.length), found);
+                if (count == 0) {
+                    continue;
+                }
+                assertEquals(distance(results[linearNearest(results, x, y)], x, y),
+                        distance(index.get(out[0]), x, y), 0);
+                for (int i = 1; i < found; i++) {
+                    assertTrue(distance(results[out[i - 1]], x, y) <= distance(results[out[i]], x, y));
+                }
+
+                float w = random.nextFloat() * 200, h = random.nextFloat() * 200;
+                int expectedCount = linearQuery(results, x, y, x + w, y + h, expected);
+                int actualCount = index.query(x, y, x + w, y + h, actual);
+                assertEquals(expectedCount, actualCount);
+                Arrays.sort(actual, 0, actualCount);
+                assertArrayEquals(Arrays.copyOf(expected, expectedCount), Arrays.copyOf(actual, actualCount));
+            }
+        }
+    }
+
+    @Test
+    public void queriesDoNotAllocate() {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Random random = new Random(2);
+        DetectionIndex index = new DetectionIndex();
+        int[] out = new int[64];
+        DetectedResult[][] frames = {boxes(500, random), boxes(520, random), boxes(480, random)};
+        for (DetectedResult[] frame : frames) {
+            index.update(frame, WIDTH, HEIGHT);
+            index.nearest(100, 100, 8, out);
+        }
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int i = 0; i < 1000; i++) {
+            index.update(frames[i % frames.length], WIDTH, HEIGHT);
+            index.nearest(i % WIDTH, i % HEIGHT, 8, out);
+            index.query(i % WIDTH, i % HEIGHT, i % WIDTH + 50, i % HEIGHT + 50, out);
+        }
+        assertEquals(0, threads.getThreadAllocatedBytes(id) - before);
+    }
+
+    /**
+     * Nearest and region queries against a scan of every box, from tens to thousands of boxes.
+     */
+    @Test
+    public void benchmark() {
+        Random random = new Random(3);
+        DetectionIndex index = new DetectionIndex();
+        int[] out = new int[8];
+        int[] all = new int[5000];
+        float[] points = new float[QUERIES * 2];
+        for (int i = 0; i < points.length; i += 2) {
+            points[i] = random.nextFloat() * WIDTH;
+            points[i + 1] = random.nextFloat() * HEIGHT;
+        }
+        long sink = 0;
+        for (int count : new int[]{10, 100, 1000, 5000}) {
+            DetectedResult[] results = boxes(count, random);
+            for (int round = 0; round < 3; round++) {
+                long start = System.nanoTime();
+                for (int i = 0; i < 100; i++) {
+                    index.update(results, WIDTH, HEIGHT);
+                }
+                long update = (System.nanoTime() - start) / 100;
+                start = System.nanoTime();
+                for (int i = 0; i < points.length; i += 2) {
+                    sink += index.nearest(points[i], points[i + 1], 1, out) + out[0];
+                }
+                long nearest = (System.nanoTime() - start) / QUERIES;
+                start = System.nanoTime();
+                for (int i = 0; i < points.length; i += 2) {
+                    sink += linearNearest(results, points[i], points[i + 1]);
+                }
+                long linearNearest = (System.nanoTime() - start) / QUERIES;
+                start = System.nanoTime();
+                for (int i = 0; i < points.length; i += 2) {
+                    sink += index.query(points[i], points[i + 1], points[i] + 64, points[i + 1] + 64, all);
+                }
+                long query = (System.nanoTime() - start) / QUERIES;
+                start = System.nanoTime();
+                for (int i = 0; i < points.length; i += 2) {
+                    sink += linearQuery(results, points[i], points[i + 1], points[i] + 64, points[i + 1] + 64, all);
+                }
+                long linearQuery = (System.nanoTime() - start) / QUERIES;
+                if (round == 2) {
+                    System.out.println(count + " boxes: update " + update + " ns, nearest " + nearest + " ns (scan "
+                            + linearNearest + " ns), 64x64 region " + query + " ns (scan " + linearQuery + " ns)");
+                }
+            }
+        }
+        assertTrue(sink != 0);
+    }
+}
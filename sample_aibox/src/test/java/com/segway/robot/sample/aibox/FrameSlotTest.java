@@ -0,0 +1,78 @@
+package com.segway.robot.sample.aibox;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class FrameSlotTest {
+    private static final int FRAMES = 100;
+    private static final long FRAME_INTERVAL_MS = 7;
+    // the sleep loop of the polling capture threads
+    private static final long POLL_INTERVAL_MS = 20;
+
+    @Test
+    public void keepsOnlyTheLatest() throws InterruptedException {
+        FrameSlot<Integer> slot = new FrameSlot<>();
+        assertNull(slot.publish(1));
+        assertEquals(Integer.valueOf(1), slot.publish(2));
+        assertEquals(Integer.valueOf(2), slot.take(0));
+        assertNull(slot.poll());
+        assertNull(slot.take(10));
+    }
+
+    @Test(expected = InterruptedException.class)
+    public void takeIsInterruptible() throws InterruptedException {
+        Thread.currentThread().interrupt();
+        new FrameSlot<Integer>().take(1000);
+    }
+
+    /**
+     * Frames arrive every FRAME_INTERVAL_MS carrying their publish time; the consumer either waits
+     * on the slot or samples it on a sleep loop, the way the capture threads used to.
+     */
+    private static long medianAgeUs(final boolean push) throws InterruptedException {
+        final FrameSlot<Long> slot = new FrameSlot<>();
+        final long[] ages = new long[FRAMES];
+        final int[] taken = new int[1];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (taken[0] < FRAMES) {
+                        Long published = push ? slot.take(1000) : slot.poll();
+                        if (published != null) {
+                            ages[taken[0]++] = (System.nanoTime() - published) / 1000;
+                        }
+                        if (!push) {
+                            Thread.sleep(POLL_INTERVAL_MS);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // done
+                }
+            }
+        });
+        consumer.start();
+        long deadline = System.currentTimeMillis() + 30000;
+        while (consumer.isAlive() && System.currentTimeMillis() < deadline) {
+            slot.publish(System.nanoTime());
+            Thread.sleep(FRAME_INTERVAL_MS);
+        }
+        consumer.interrupt();
+        consumer.join();
+        assertEquals(FRAMES, taken[0]);
+        Arrays.sort(ages);
+        return ages[FRAMES / 2];
+    }
+
+    @Test
+    public void pushHandsOverFasterThanPolling() throws InterruptedException {
+        long push = medianAgeUs(true);
+        long poll = medianAgeUs(false);
+        System.out.println("frame age p50: push " + push + " us, poll every " + POLL_INTERVAL_MS + " ms " + poll + " us");
+        // polling waits half a frame interval on average, a woken consumer only the wakeup
+        assertTrue(push * 2 < poll);
+    }
+}
@@ -0,0 +1,37 @@
+package com.segway.robot.sample.aibox;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+    @Test
+    public void sameNameSameMetric() {
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        assertSame(registry.counter("test.same"), registry.counter("test.same"));
+        assertSame(registry.histogram("test.same"), registry.histogram("test.same"));
+    }
+
+    @Test
+    public void counterRate() {
+        MetricsRegistry registry = MetricsRegistry.getInstance();
+        MetricsRegistry.Counter counter = registry.counter("test.rate");
+        registry.snapshot(1000);
+        counter.add(50);
+        assertEquals("50 (25.0/s)", registry.snapshot(3000).get("test.rate"));
+    }
+
+    @Test
+    public void histogramPercentiles() {
+        MetricsRegistry.Histogram histogram = MetricsRegistry.getInstance().histogram("test.latency");
+        for (int i = 0; i < 99; i++) {
+            histogram.record(10);
+        }
+        histogram.record(1000);
+        assertEquals(16, histogram.percentile(0.5f));
+        assertEquals(16, histogram.percentile(0.99f));
+        assertEquals(1024, histogram.percentile(1f));
+        assertEquals("n=100 mean=19 p50<16 p99<16", MetricsRegistry.getInstance().snapshot(1).get("test.latency"));
+        assertEquals(0, histogram.count());
+    }
+}
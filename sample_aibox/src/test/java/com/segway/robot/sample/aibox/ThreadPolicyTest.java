@@ -0,0 +1,27 @@
+package com.segway.robot.sample.aibox;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ThreadPolicyTest {
+
+    @Test
+    public void parsesRangesAndSingleCpus() {
+        assertEquals(0xffL, ThreadPolicy.parseCpuList("0-7\n"));
+        assertEquals(0x1L, ThreadPolicy.parseCpuList("0"));
+        assertEquals(0x34fL, ThreadPolicy.parseCpuList("0-3,6,8-9"));
+    }
+
+    @Test
+    public void keepsCpusBelow64() {
+        assertEquals(-1L, ThreadPolicy.parseCpuList("0-127"));
+    }
+
+    @Test
+    public void malformedListIsEmpty() {
+        assertEquals(0, ThreadPolicy.parseCpuList(null));
+        assertEquals(0, ThreadPolicy.parseCpuList(""));
+        assertEquals(0, ThreadPolicy.parseCpuList("cpu0"));
+    }
+}
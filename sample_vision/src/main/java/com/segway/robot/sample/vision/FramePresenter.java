@@ -0,0 +1,86 @@
+package com.segway.robot.sample.vision;
+
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shows the newest converted frame on the display's vsync. The converting thread calls
+ * {@link #submit} from any thread; every submission between two vsyncs is coalesced into a single
+ * present, so the UI thread never queues up stale frames behind the converter. Presented and
+ * coalesced frames and the mean frame age at present are logged every REPORT_FRAMES presents.
+ */
+public class FramePresenter implements Choreographer.FrameCallback {
+
+    private static final String TAG = "FramePresenter";
+    private static final int REPORT_FRAMES = 100;
+
+    private final Choreographer mChoreographer;
+    private final Runnable mRenderer;
+    private final AtomicBoolean mScheduled = new AtomicBoolean();
+    private final AtomicLong mSubmitted = new AtomicLong();
+    private volatile long mPlatformTimestamp;
+    private long mPresentedUpTo;
+    private long mPresented;
+    private long mCoalesced;
+    private long mFrameAgeSumUs;
+    private int mFrameAgeCount;
+
+    /**
+     * Create on the UI thread, the presenter uses its Choreographer.
+     */
+    public FramePresenter(Runnable renderer) {
+        mChoreographer = Choreographer.getInstance();
+        mRenderer = renderer;
+    }
+
+    /**
+     * A new frame is ready. Presented on the next vsync unless a newer one replaces it first.
+     *
+     * @param platformTimestamp capture time of the frame, microseconds of elapsedRealtimeNanos
+     */
+    public void submit(long platformTimestamp) {
+        mPlatformTimestamp = platformTimestamp;
+        mSubmitted.incrementAndGet();
+        if (mScheduled.compareAndSet(false, true)) {
+            mChoreographer.postFrameCallback(this);
+        }
+    }
+
+    /**
+     * Drop a present that has not happened yet.
+     */
+    public void cancel() {
+        mChoreographer.removeFrameCallback(this);
+        mScheduled.set(false);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        // cleared before reading, so a frame submitted from here on schedules the next vsync
+        mScheduled.set(false);
+        long submitted = mSubmitted.get();
+        long frames = submitted - mPresentedUpTo;
+        if (frames <= 0) {
+            return;
+        }
+        mPresentedUpTo = submitted;
+        long platformTimestamp = mPlatformTimestamp;
+        mRenderer.run();
+        mPresented++;
+        mCoalesced += frames - 1;
+        if (platformTimestamp > 0) {
+            mFrameAgeSumUs += SystemClock.elapsedRealtimeNanos() / 1000 - platformTimestamp;
+            mFrameAgeCount++;
+        }
+        if (mPresented % REPORT_FRAMES == 0) {
+            Log.d(TAG, "presented " + mPresented + ", coalesced " + mCoalesced + ", frame age "
+                    + String.format("%.1f", mFrameAgeCount > 0 ? mFrameAgeSumUs / 1000f / mFrameAgeCount : 0f) + " ms");
+            mFrameAgeSumUs = 0;
+            mFrameAgeCount = 0;
+        }
+    }
+}
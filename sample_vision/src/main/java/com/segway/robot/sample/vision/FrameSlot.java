@@ -0,0 +1,65 @@
+package com.segway.robot.sample.vision;
+
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock-free single-slot handoff of the latest item from a producer callback to one consumer
+ * thread. {@link #publish} never blocks and replaces an item the consumer has not taken yet, so a
+ * slow consumer costs dropped items instead of latency, and {@link #take} wakes as soon as an item
+ * arrives instead of on the next poll.
+ */
+public class FrameSlot<T> {
+
+    private final AtomicReference<T> mSlot = new AtomicReference<>();
+    private volatile Thread mConsumer;
+
+    /**
+     * @return the item this one replaced, which was never taken and is the caller's to release,
+     * or null
+     */
+    public T publish(T item) {
+        T replaced = mSlot.getAndSet(item);
+        // the consumer registers before it looks at the slot, so it either sees the item or is unparked
+        Thread consumer = mConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return replaced;
+    }
+
+    /**
+     * The latest item, waiting up to timeoutMs for one. Only one thread may take.
+     *
+     * @return null if nothing arrived in time
+     */
+    public T take(long timeoutMs) throws InterruptedException {
+        long deadline = System.nanoTime() + timeoutMs * 1000000L;
+        mConsumer = Thread.currentThread();
+        try {
+            while (true) {
+                T item = mSlot.getAndSet(null);
+                if (item != null) {
+                    return item;
+                }
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            mConsumer = null;
+        }
+    }
+
+    /**
+     * The pending item without waiting, e.g. to release it on shutdown.
+     */
+    public T poll() {
+        return mSlot.getAndSet(null);
+    }
+}
@@ -3,6 +3,7 @@ package com.segway.robot.sample.vision;
 import android.app.Activity;
 import android.graphics.Bitmap;
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.View;
 import android.view.ViewGroup;
@@ -18,8 +19,10 @@ import com.segway.robot.sdk.vision.stream.PixelFormat;
 import com.segway.robot.sdk.vision.stream.Resolution;
 import com.segway.robot.sdk.vision.stream.VisionStreamType;
 
+import java.nio.ByteBuffer;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 /**
  * Vision SDK demo
@@ -27,14 +30,30 @@ import java.util.TimerTask;
 public class MainActivity extends Activity {
 
     private static final String TAG = "VisionSample";
+    /**
+     * The preview shows frames at 1/PREVIEW_SCALE size and is converted at that size.
+     */
+    private static final int PREVIEW_SCALE = 2;
+    private static final int FRAME_WAIT_MS = 500;
+    /**
+     * Frames between two frame age reports in the log.
+     */
+    private static final int AGE_REPORT_FRAMES = 100;
     private Bitmap mBitmap;
     private ImageView mCameraView;
     private Timer mTimer;
-    private ImageDisplay mImageDisplay;
+    private volatile ImageDisplay mImageDisplay;
+    private FramePresenter mPresenter;
     private Button mBtnStartVision1;
     private Button mBtnStartVision2;
     private volatile boolean mIsBind;
     private final Object mLock = new Object();
+    private final YuvConverter mYuvConverter = new YuvConverter();
+    private final FrameSlot<PushedFrame> mPushedFrames = new FrameSlot<>();
+    private final ConcurrentLinkedQueue<PushedFrame> mFreeFrames = new ConcurrentLinkedQueue<>();
+    private DisplayThread mDisplayThread;
+    private long mFrameAgeSumUs;
+    private int mFrameAgeCount;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -43,6 +62,15 @@ public class MainActivity extends Activity {
         mCameraView = findViewById(R.id.iv_camera);
         mBtnStartVision1 = findViewById(R.id.start_vision_1);
         mBtnStartVision2 = findViewById(R.id.start_vision_2);
+        mPresenter = new FramePresenter(new Runnable() {
+            @Override
+            public void run() {
+                ImageDisplay imageDisplay = mImageDisplay;
+                if (imageDisplay != null) {
+                    imageDisplay.run();
+                }
+            }
+        });
     }
 
     public void onClick(View view) {
@@ -73,6 +101,7 @@ public class MainActivity extends Activity {
                     Vision.getInstance().stopVision(VisionStreamType.FISH_EYE);
                     Vision.getInstance().unbindService();
                 }
+                stopDisplayThread();
                 if (mTimer != null) {
                     mTimer.cancel();
                     mTimer = null;
@@ -86,10 +115,12 @@ public class MainActivity extends Activity {
                     Toast.makeText(this, "The vision service is not connected.", Toast.LENGTH_SHORT).show();
                     return;
                 }
+                // the callback only copies the frame into the slot, the display thread converts it
+                startDisplayThread();
                 Vision.getInstance().startVision(VisionStreamType.FISH_EYE, new Vision.FrameListener() {
                     @Override
                     public void onNewFrame(int streamType, Frame frame) {
-                        parseFrame(frame);
+                        publishFrame(frame);
                     }
                 });
                 mBtnStartVision2.setEnabled(false);
@@ -112,6 +143,7 @@ public class MainActivity extends Activity {
                     return;
                 }
                 Vision.getInstance().stopVision(VisionStreamType.FISH_EYE);
+                stopDisplayThread();
                 if (mTimer != null) {
                     mTimer.cancel();
                     mTimer = null;
@@ -125,37 +157,142 @@ public class MainActivity extends Activity {
     }
 
     private void parseFrame(Frame frame) {
-        synchronized (mLock) {
+        int resolution = frame.getInfo().getResolution();
+        convertFrame(frame.getByteBuffer(), Resolution.getWidth(resolution), Resolution.getHeight(resolution),
+                frame.getInfo().getPixelFormat(), frame.getInfo().getPlatformTimeStamp(), "poll");
+    }
 
-            int resolution = frame.getInfo().getResolution();
-            int width = Resolution.getWidth(resolution);
-            int height = Resolution.getHeight(resolution);
+    private void convertFrame(ByteBuffer data, int width, int height, int pixelFormat, long platformTimestamp,
+                              String mode) {
+        synchronized (mLock) {
             if (mBitmap == null) {
-                mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                mBitmap = Bitmap.createBitmap(width / PREVIEW_SCALE, height / PREVIEW_SCALE, Bitmap.Config.ARGB_8888);
                 mImageDisplay = new ImageDisplay(width, height);
             }
-            int pixelFormat = frame.getInfo().getPixelFormat();
             if (pixelFormat == PixelFormat.YUV420 || pixelFormat == PixelFormat.YV12) {
-                int limit = frame.getByteBuffer().limit();
-                byte[] buff = new byte[limit];
-                frame.getByteBuffer().position(0);
-                frame.getByteBuffer().get(buff);
-                yuv2RGBBitmap(buff, mBitmap, width, height);
+                mYuvConverter.toBitmap(data, mBitmap, width, height, PREVIEW_SCALE);
             } else {
                 Log.d(TAG, "An unsupported format");
             }
+            recordFrameAge(platformTimestamp, mode);
+        }
+        // shown on the next vsync, together with anything converted before it
+        mPresenter.submit(platformTimestamp);
+    }
+
+    /**
+     * Age of a frame once its preview is converted, averaged in the log to compare the listener
+     * and polling modes. Platform timestamps count microseconds of elapsedRealtimeNanos.
+     */
+    private void recordFrameAge(long platformTimestamp, String mode) {
+        mFrameAgeSumUs += SystemClock.elapsedRealtimeNanos() / 1000 - platformTimestamp;
+        if (++mFrameAgeCount == AGE_REPORT_FRAMES) {
+            Log.d(TAG, mode + ": frame age " + String.format("%.1f", mFrameAgeSumUs / 1000f / mFrameAgeCount) + " ms");
+            mFrameAgeSumUs = 0;
+            mFrameAgeCount = 0;
+        }
+    }
+
+    /**
+     * Listener callback: copy the pixels into a recycled buffer and publish them, no conversion and
+     * no lock. The service only lends the frame for the callback. A frame the display thread has not
+     * taken yet goes back to the pool.
+     */
+    private void publishFrame(Frame frame) {
+        PushedFrame pushed = mFreeFrames.poll();
+        if (pushed == null) {
+            pushed = new PushedFrame();
+        }
+        pushed.copy(frame);
+        PushedFrame replaced = mPushedFrames.publish(pushed);
+        if (replaced != null) {
+            mFreeFrames.offer(replaced);
+        }
+    }
+
+    private void startDisplayThread() {
+        if (mDisplayThread == null) {
+            mDisplayThread = new DisplayThread();
+            mDisplayThread.start();
+        }
+    }
+
+    private void stopDisplayThread() {
+        if (mDisplayThread != null) {
+            mDisplayThread.interrupt();
+            try {
+                mDisplayThread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mDisplayThread = null;
         }
-        runOnUiThread(mImageDisplay);
     }
 
     @Override
     protected void onDestroy() {
         super.onDestroy();
         Vision.getInstance().stopVision(VisionStreamType.FISH_EYE);
+        stopDisplayThread();
         if (mTimer != null) {
             mTimer.cancel();
             mTimer = null;
         }
+        mPresenter.cancel();
+    }
+
+    /**
+     * A copy of a pushed frame with the info the display thread needs.
+     */
+    static class PushedFrame {
+        ByteBuffer buffer;
+        int width;
+        int height;
+        int pixelFormat;
+        long platformTimestamp;
+
+        void copy(Frame frame) {
+            int resolution = frame.getInfo().getResolution();
+            width = Resolution.getWidth(resolution);
+            height = Resolution.getHeight(resolution);
+            pixelFormat = frame.getInfo().getPixelFormat();
+            platformTimestamp = frame.getInfo().getPlatformTimeStamp();
+            ByteBuffer source = frame.getByteBuffer().duplicate();
+            source.position(0);
+            if (buffer == null || buffer.capacity() < source.limit()) {
+                buffer = ByteBuffer.allocateDirect(source.limit());
+            }
+            buffer.clear();
+            buffer.put(source);
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Converts pushed frames as they arrive, waking on the slot instead of a timer.
+     */
+    class DisplayThread extends Thread {
+
+        @Override
+        public void run() {
+            while (!isInterrupted()) {
+                PushedFrame frame;
+                try {
+                    frame = mPushedFrames.take(FRAME_WAIT_MS);
+                } catch (InterruptedException e) {
+                    break;
+                }
+                if (frame != null) {
+                    convertFrame(frame.buffer, frame.width, frame.height, frame.pixelFormat, frame.platformTimestamp,
+                            "listener");
+                    mFreeFrames.offer(frame);
+                }
+            }
+            PushedFrame pending = mPushedFrames.poll();
+            if (pending != null) {
+                mFreeFrames.offer(pending);
+            }
+        }
     }
 
     class ImageDisplayTimerTask extends TimerTask {
@@ -182,7 +319,7 @@ public class MainActivity extends Activity {
         int mWidth;
         int mHeight;
         boolean setParamsFlag;
-        float zoom = 0.5f;
+        float zoom = 1f / PREVIEW_SCALE;
 
         public ImageDisplay(int width, int height) {
             mWidth = (int) (width * zoom);
@@ -204,27 +341,4 @@ public class MainActivity extends Activity {
 
         }
     }
-
-    private void yuv2RGBBitmap(byte[] data, Bitmap bitmap, int width, int height) {
-        int frameSize = width * height;
-        int[] rgba = new int[frameSize];
-        for (int i = 0; i < height; i++) {
-            for (int j = 0; j < width; j++) {
-                int y = (0xff & ((int) data[i * width + j]));
-                int v = (0xff & ((int) data[frameSize + (i >> 1) * width + (j & ~1) + 0]));
-
-                int u = (0xff & ((int) data[frameSize + (i >> 1) * width + (j & ~1) + 1]));
-
-                y = y < 16 ? 16 : y;
-                int r = Math.round(1.164f * (y - 16) + 1.596f * (v - 128));
-                int g = Math.round(1.164f * (y - 16) - 0.813f * (v - 128) - 0.391f * (u - 128));
-                int b = Math.round(1.164f * (y - 16) + 2.018f * (u - 128));
-                r = r < 0 ? 0 : (r > 255 ? 255 : r);
-                g = g < 0 ? 0 : (g > 255 ? 255 : g);
-                b = b < 0 ? 0 : (b > 255 ? 255 : b);
-                rgba[i * width + j] = 0xff000000 + (b << 16) + (g << 8) + r;
-            }
-        }
-        bitmap.setPixels(rgba, 0, width, 0, 0, width, height);
-    }
 }
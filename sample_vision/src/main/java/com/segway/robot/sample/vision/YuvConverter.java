@@ -0,0 +1,56 @@
+package com.segway.robot.sample.vision;
+
+import android.graphics.Bitmap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * YUV420 semi-planar to ARGB conversion for the preview.
+ * Converts straight to display size by sampling one pixel per scale x scale block, so a
+ * quarter-size preview only touches 1/16 of the frame. The pixel buffer is reused across frames.
+ */
+public class YuvConverter {
+
+    private int[] mPixels;
+
+    /**
+     * @param data   frame in the camera layout, read with absolute gets so the position is unchanged
+     * @param bitmap ARGB_8888 bitmap of at least (width / scale) x (height / scale)
+     * @param scale  1 for a full-resolution conversion
+     */
+    public void toBitmap(ByteBuffer data, Bitmap bitmap, int width, int height, int scale) {
+        int frameSize = width * height;
+        int outWidth = width / scale;
+        int outHeight = height / scale;
+        int outSize = outWidth * outHeight;
+        if (mPixels == null || mPixels.length < outSize) {
+            mPixels = new int[outSize];
+        }
+        int[] rgba = mPixels;
+        // sample the center of each block
+        int offset = scale / 2;
+        for (int oi = 0; oi < outHeight; oi++) {
+            int i = oi * scale + offset;
+            int yRow = i * width;
+            int uvRow = frameSize + (i >> 1) * width;
+            int outRow = oi * outWidth;
+            for (int oj = 0; oj < outWidth; oj++) {
+                int j = oj * scale + offset;
+                int y = (0xff & ((int) data.get(yRow + j)));
+                int v = (0xff & ((int) data.get(uvRow + (j & ~1) + 0)));
+
+                int u = (0xff & ((int) data.get(uvRow + (j & ~1) + 1)));
+
+                y = y < 16 ? 16 : y;
+                int r = Math.round(1.164f * (y - 16) + 1.596f * (v - 128));
+                int g = Math.round(1.164f * (y - 16) - 0.813f * (v - 128) - 0.391f * (u - 128));
+                int b = Math.round(1.164f * (y - 16) + 2.018f * (u - 128));
+                r = r < 0 ? 0 : (r > 255 ? 255 : r);
+                g = g < 0 ? 0 : (g > 255 ? 255 : g);
+                b = b < 0 ? 0 : (b > 255 ? 255 : b);
+                rgba[outRow + oj] = 0xff000000 + (b << 16) + (g << 8) + r;
+            }
+        }
+        bitmap.setPixels(rgba, 0, outWidth, 0, 0, outWidth, outHeight);
+    }
+}